@@ -192,6 +192,11 @@ public class MainActivity extends AppCompatActivity implements DemoWebClient.Dem
             mNokeService.setBluetoothScanDuration(8000);
         }
 
+        @Override
+        public void onNokeLost(NokeDevice noke) {
+            Log.w(TAG, "NOKE LOST: " + noke.getName());
+        }
+
         @Override
         public void onDataUploaded(int result, String message) {
             Log.w(TAG, "DATA UPLOADED: " + message);
@@ -0,0 +1,170 @@
+package com.noke.nokemobilelibrary;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Default scan scheduler.  Starts from the scan duration and delays set on the service and adjusts them:
+ * <ul>
+ * <li>While devices are being discovered the full scan window is used with the shortest pause</li>
+ * <li>When nothing has been discovered for a while the pause grows, up to four times the default</li>
+ * <li>While connecting the scan window is narrowed so the radio isn't shared with the connection</li>
+ * <li>Scans are never started more than five times in 30 seconds. Newer versions of Android block apps that do</li>
+ * </ul>
+ */
+
+class AdaptiveScanScheduler implements NokeScanScheduler {
+
+    /**
+     * Android blocks scanning for apps that start more than this many scans in the budget period
+     */
+    static final int SCAN_START_BUDGET = 5;
+    static final long SCAN_START_BUDGET_PERIOD = 30000;
+    /**
+     * Shortest scan window used while connecting or when idle
+     */
+    static final long MIN_SCAN_WINDOW = 2000;
+    /**
+     * Maximum factor the pause is increased by when no devices are being discovered
+     */
+    static final int MAX_IDLE_BACKOFF = 4;
+    /**
+     * Weight of a new sample in the average time to first discovery
+     */
+    private static final float DISCOVERY_LATENCY_WEIGHT = 0.25f;
+
+    private long scanDuration;
+    private long foregroundPause;
+    private long backgroundPause;
+
+    /**
+     * Start times of the most recent scans. Used as a ring buffer
+     */
+    private final long[] scanStarts = new long[SCAN_START_BUDGET];
+    private int scanStartIndex;
+    private int scanStartCount;
+
+    private long currentScanStart;
+    private int discoveriesThisScan;
+    private int idleScans;
+    private boolean firstDiscoveryRecorded;
+    private float averageFirstDiscovery = -1;
+
+    private long lastWindow;
+    private long lastPause;
+
+    AdaptiveScanScheduler(long scanDuration, long foregroundPause, long backgroundPause) {
+        this.scanDuration = scanDuration;
+        this.foregroundPause = foregroundPause;
+        this.backgroundPause = backgroundPause;
+        this.lastWindow = scanDuration;
+        this.lastPause = foregroundPause;
+    }
+
+    synchronized void setScanDuration(long scanDuration) {
+        this.scanDuration = scanDuration;
+    }
+
+    synchronized void setForegroundPause(long foregroundPause) {
+        this.foregroundPause = foregroundPause;
+    }
+
+    synchronized void setBackgroundPause(long backgroundPause) {
+        this.backgroundPause = backgroundPause;
+    }
+
+    @Override
+    public synchronized long getScanWindow(long now, boolean foreground, boolean connectionPending) {
+        long window = scanDuration;
+        if (connectionPending) {
+            window = Math.min(scanDuration, MIN_SCAN_WINDOW);
+        } else if (!foreground && idleScans > 0) {
+            window = Math.max(Math.min(scanDuration, MIN_SCAN_WINDOW), scanDuration / (idleScans + 1));
+        }
+        lastWindow = window;
+        return window;
+    }
+
+    @Override
+    public synchronized long getScanPause(long now, boolean foreground, boolean connectionPending) {
+        if (discoveriesThisScan > 0) {
+            idleScans = 0;
+        } else if (idleScans < MAX_IDLE_BACKOFF - 1) {
+            idleScans++;
+        }
+
+        long pause;
+        if (foreground || connectionPending || discoveriesThisScan > 0) {
+            pause = foreground ? foregroundPause : Math.min(foregroundPause, backgroundPause);
+        } else {
+            pause = backgroundPause * (idleScans + 1);
+        }
+
+        //Stay inside the scan start budget
+        if (scanStartCount >= SCAN_START_BUDGET) {
+            long oldestStart = scanStarts[scanStartIndex];
+            long earliestStart = oldestStart + SCAN_START_BUDGET_PERIOD;
+            pause = Math.max(pause, earliestStart - now);
+        }
+
+        lastPause = pause;
+        return pause;
+    }
+
+    @Override
+    public synchronized void onScanStarted(long now) {
+        scanStarts[scanStartIndex] = now;
+        scanStartIndex = (scanStartIndex + 1) % SCAN_START_BUDGET;
+        if (scanStartCount < SCAN_START_BUDGET) {
+            scanStartCount++;
+        }
+        currentScanStart = now;
+        discoveriesThisScan = 0;
+        firstDiscoveryRecorded = false;
+    }
+
+    @Override
+    public synchronized void onDeviceDiscovered(long now) {
+        discoveriesThisScan++;
+        if (!firstDiscoveryRecorded) {
+            firstDiscoveryRecorded = true;
+            float sample = now - currentScanStart;
+            if (averageFirstDiscovery < 0) {
+                averageFirstDiscovery = sample;
+            } else {
+                averageFirstDiscovery += DISCOVERY_LATENCY_WEIGHT * (sample - averageFirstDiscovery);
+            }
+        }
+    }
+
+    @Override
+    public synchronized float getDutyCycle() {
+        long period = lastWindow + lastPause;
+        if (period <= 0) {
+            return 1f;
+        }
+        return (float) lastWindow / period;
+    }
+
+    /**
+     * A device that comes into range at a random time waits on average pause^2 / (2 * period) for the next
+     * scan window, then the average time it has taken to discover a device after a scan starts
+     */
+    @Override
+    public synchronized long getPredictedDiscoveryLatency() {
+        long period = lastWindow + lastPause;
+        long waitForWindow = period > 0 ? (lastPause * lastPause) / (2 * period) : 0;
+        long discovery = averageFirstDiscovery < 0 ? 0 : (long) averageFirstDiscovery;
+        return waitForWindow + discovery;
+    }
+}
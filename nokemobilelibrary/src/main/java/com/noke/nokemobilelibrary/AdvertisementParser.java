@@ -0,0 +1,226 @@
+package com.noke.nokemobilelibrary;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Reusable parser for the advertisement data broadcast by Noke devices.  The parser walks the AD structures of the
+ * scan record in place and only stores offsets of the manufacturer data and local name, so parsing an advertisement
+ * doesn't allocate any memory.
+ * An instance should only be used from one thread at a time.
+ */
+
+final class AdvertisementParser {
+
+    /**
+     * AD type for manufacturer specific data
+     */
+    private static final int AD_TYPE_MANUFACTURER_DATA = 0xFF;
+    /**
+     * AD types for the shortened and complete local name
+     */
+    private static final int AD_TYPE_SHORTENED_LOCAL_NAME = 0x08;
+    private static final int AD_TYPE_COMPLETE_LOCAL_NAME = 0x09;
+    /**
+     * Offsets of the Noke broadcast bytes in the manufacturer data.  The first two bytes are the company identifier
+     */
+    private static final int STATUS_OFFSET = 2;
+    private static final int MAJOR_VERSION_OFFSET = 3;
+    private static final int MINOR_VERSION_OFFSET = 4;
+
+    /**
+     * Scan record that is currently being parsed
+     */
+    private byte[] scanRecord;
+    /**
+     * Offset of the manufacturer data in the scan record. -1 if the record has no manufacturer data
+     */
+    private int manufacturerDataOffset = -1;
+    /**
+     * Length of the manufacturer data (not including the AD length and type bytes)
+     */
+    private int manufacturerDataLength;
+    /**
+     * Offset of the local name in the scan record. -1 if the record has no local name
+     */
+    private int localNameOffset = -1;
+    /**
+     * Length of the local name in bytes
+     */
+    private int localNameLength;
+
+    /**
+     * Parses a scan record.  Any previously parsed record is discarded
+     *
+     * @param scanRecord raw advertisement data from the scanner
+     * @return true if the record contains manufacturer data
+     */
+    boolean parse(byte[] scanRecord) {
+        this.scanRecord = scanRecord;
+        manufacturerDataOffset = -1;
+        manufacturerDataLength = 0;
+        localNameOffset = -1;
+        localNameLength = 0;
+        if (scanRecord == null) {
+            return false;
+        }
+
+        int i = 0;
+        while (i < scanRecord.length) {
+            int length = scanRecord[i] & 0xFF;
+            if (length == 0) {
+                //Remaining bytes are padding
+                break;
+            }
+            int next = i + 1 + length;
+            if (next > scanRecord.length) {
+                //Truncated AD structure
+                break;
+            }
+            int type = scanRecord[i + 1] & 0xFF;
+            if (type == AD_TYPE_MANUFACTURER_DATA && manufacturerDataOffset < 0) {
+                manufacturerDataOffset = i + 2;
+                manufacturerDataLength = length - 1;
+            } else if (type == AD_TYPE_COMPLETE_LOCAL_NAME
+                    || (type == AD_TYPE_SHORTENED_LOCAL_NAME && localNameOffset < 0)) {
+                localNameOffset = i + 2;
+                localNameLength = length - 1;
+            }
+            i = next;
+        }
+        return manufacturerDataOffset >= 0;
+    }
+
+    boolean hasLocalName() {
+        return localNameOffset >= 0;
+    }
+
+    /**
+     * Compares the local name in the record with a string without allocating.  Only ASCII names are supported,
+     * which covers all Noke device names
+     *
+     * @param name the name to compare with
+     * @return true if the record has a local name equal to name
+     */
+    boolean localNameEquals(String name) {
+        if (localNameOffset < 0 || name == null || name.length() != localNameLength) {
+            return false;
+        }
+        for (int i = 0; i < localNameLength; i++) {
+            if (scanRecord[localNameOffset + i] != (byte) name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the local name in the record contains a string, ignoring ASCII case, without allocating
+     *
+     * @param part the string to look for
+     * @return true if the record has a local name containing part
+     */
+    boolean localNameContainsIgnoreCase(String part) {
+        int partLength = part.length();
+        for (int start = 0; start + partLength <= localNameLength; start++) {
+            int j = 0;
+            while (j < partLength && toLowerAscii(scanRecord[localNameOffset + start + j]) == toLowerAscii((byte) part.charAt(j))) {
+                j++;
+            }
+            if (j == partLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the local name in the record or null if there isn't one.  Allocates a new string
+     */
+    String getLocalName() {
+        if (localNameOffset < 0) {
+            return null;
+        }
+        char[] chars = new char[localNameLength];
+        for (int i = 0; i < localNameLength; i++) {
+            chars[i] = (char) (scanRecord[localNameOffset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    private static int toLowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    boolean hasManufacturerData() {
+        return manufacturerDataOffset >= 0;
+    }
+
+    int getManufacturerDataLength() {
+        return manufacturerDataLength;
+    }
+
+    /**
+     * Returns a byte of the manufacturer data
+     *
+     * @param index index in the manufacturer data
+     * @return the byte at the index, or 0 if the index is outside of the manufacturer data
+     */
+    byte getManufacturerData(int index) {
+        if (index < 0 || index >= manufacturerDataLength) {
+            return 0;
+        }
+        return scanRecord[manufacturerDataOffset + index];
+    }
+
+    /**
+     * @return the bluetooth company identifier from the manufacturer data. -1 if not present
+     */
+    int getCompanyId() {
+        if (manufacturerDataLength < 2) {
+            return -1;
+        }
+        return (getManufacturerData(0) & 0xFF) | ((getManufacturerData(1) & 0xFF) << 8);
+    }
+
+    /**
+     * @return status byte of the Noke broadcast. Contains the lock state bits
+     */
+    byte getStatus() {
+        return getManufacturerData(STATUS_OFFSET);
+    }
+
+    /**
+     * @return major firmware version of the Noke device
+     */
+    int getFirmwareMajor() {
+        return getManufacturerData(MAJOR_VERSION_OFFSET);
+    }
+
+    /**
+     * @return minor firmware version of the Noke device
+     */
+    int getFirmwareMinor() {
+        return getManufacturerData(MINOR_VERSION_OFFSET);
+    }
+
+    /**
+     * Lock state broadcast by the device. Only valid for hardware that broadcasts its lock state
+     *
+     * @return lock state. @see NokeDefines#NOKE_LOCK_STATE_LOCKED
+     */
+    int getLockState() {
+        byte status = getStatus();
+        return ((status >> 5) & 0x01) + ((status >> 6) & 0x01);
+    }
+}
@@ -0,0 +1,124 @@
+package com.noke.nokemobilelibrary;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Flow control for sending a list of commands with several of them in flight.  Up to window commands are written
+ * before the lock answers the first one, and each answer is matched back to a command in flight by the command id
+ * in byte 2.  The first error result, or an answer that doesn't match any command in flight, drops the window to
+ * one so the rest of the commands are sent stop-and-wait like before.
+ *
+ * Not thread-safe; the service calls it from the GATT callbacks of one connection.
+ */
+
+final class CommandPipeline {
+
+    /**
+     * A command and its id
+     */
+    static final class Command {
+        final String hex;
+        final byte[] bytes;
+        final int id;
+
+        Command(String hex) {
+            this.hex = hex;
+            this.bytes = NokeDefines.hexToBytes(hex);
+            this.id = commandId(bytes);
+        }
+    }
+
+    private final int window;
+    private final ArrayDeque<Command> unsent = new ArrayDeque<>();
+    private final ArrayDeque<Command> inFlight = new ArrayDeque<>();
+    private boolean stopAndWait;
+
+    /**
+     * @param window   maximum number of commands in flight
+     * @param commands hex strings of the commands, in the order to send them
+     */
+    CommandPipeline(int window, List<String> commands) {
+        this.window = Math.max(1, window);
+        for (int i = 0; i < commands.size(); i++) {
+            unsent.add(new Command(commands.get(i)));
+        }
+    }
+
+    /**
+     * @param command the command bytes
+     * @return the id the lock answers the command with, or -1 if the command is too short to have one
+     */
+    static int commandId(byte[] command) {
+        return command.length > 2 ? command[2] & 0xFF : -1;
+    }
+
+    /**
+     * Returns the next command to write if the window has room.  The command counts as in flight from then on
+     *
+     * @return the command, or null if the window is full or every command has been written
+     */
+    Command poll() {
+        if (unsent.isEmpty() || inFlight.size() >= (stopAndWait ? 1 : window)) {
+            return null;
+        }
+        Command command = unsent.poll();
+        inFlight.add(command);
+        return command;
+    }
+
+    /**
+     * Matches an answer from the lock to a command in flight.  Answers that don't match are taken as the answer to
+     * the oldest command in flight, which is what stop-and-wait assumes
+     *
+     * @param id      the command id from byte 2 of the answer
+     * @param success true if the lock answered with a success result
+     * @return the command that was answered, or null if nothing was in flight
+     */
+    Command onResult(int id, boolean success) {
+        if (!success) {
+            stopAndWait = true;
+        }
+        for (Iterator<Command> iterator = inFlight.iterator(); iterator.hasNext(); ) {
+            Command command = iterator.next();
+            if (command.id == id) {
+                iterator.remove();
+                return command;
+            }
+        }
+        stopAndWait = true;
+        return inFlight.poll();
+    }
+
+    /**
+     * @return true once every command has been written and answered
+     */
+    boolean isDone() {
+        return unsent.isEmpty() && inFlight.isEmpty();
+    }
+
+    int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return true if an error dropped the window to one
+     */
+    boolean isStopAndWait() {
+        return stopAndWait;
+    }
+}
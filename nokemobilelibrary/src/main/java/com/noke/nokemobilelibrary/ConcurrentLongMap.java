@@ -0,0 +1,201 @@
+package com.noke.nokemobilelibrary;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Open addressing hash map keyed by a packed MAC address.  Keys and values are stored in two parallel arrays, so an
+ * entry costs 12 bytes per slot instead of a map node, a key string and an entry object.
+ *
+ * Lookups don't lock.  Writes are synchronized.  Within a table a slot only ever goes from empty to used to
+ * removed, and removed slots are only reclaimed by copying the live entries into a new table.  That way a reader
+ * that matched a key can never see the value of a different key.
+ *
+ * @param <V> type of the values
+ */
+
+final class ConcurrentLongMap<V> {
+
+    /**
+     * Keys are stored with this bit set so that a zero slot means empty, even for the address 00:00:00:00:00:00
+     */
+    private static final long PRESENT = 1L << 48;
+    private static final long EMPTY = 0L;
+    private static final long REMOVED = -1L;
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Table<V> {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<V> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table<V> table = new Table<>(MIN_CAPACITY);
+    /**
+     * Number of live entries
+     */
+    private volatile int size;
+    /**
+     * Number of used and removed slots in the current table. Guarded by this
+     */
+    private int occupied;
+
+    static int hash(long mac) {
+        mac ^= mac >>> 33;
+        mac *= 0xff51afd7ed558ccdL;
+        mac ^= mac >>> 33;
+        return (int) mac;
+    }
+
+    /**
+     * @param mac packed MAC address
+     * @return the value or null
+     */
+    V get(long mac) {
+        long key = mac | PRESENT;
+        Table<V> t = table;
+        int i = hash(mac) & t.mask;
+        while (true) {
+            long k = t.keys.get(i);
+            if (k == key) {
+                return t.values.get(i);
+            }
+            if (k == EMPTY) {
+                return null;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    /**
+     * Stores a value
+     *
+     * @param mac          packed MAC address
+     * @param value        the value
+     * @param onlyIfAbsent true to keep an existing value
+     * @return the previous value or null
+     */
+    synchronized V put(long mac, V value, boolean onlyIfAbsent) {
+        long key = mac | PRESENT;
+        Table<V> t = table;
+        int i = hash(mac) & t.mask;
+        while (true) {
+            long k = t.keys.get(i);
+            if (k == key) {
+                V previous = t.values.get(i);
+                if (!onlyIfAbsent) {
+                    t.values.set(i, value);
+                }
+                return previous;
+            }
+            if (k == EMPTY) {
+                break;
+            }
+            i = (i + 1) & t.mask;
+        }
+
+        //Value is published before the key so a reader that finds the key also finds the value
+        t.values.set(i, value);
+        t.keys.set(i, key);
+        size++;
+        occupied++;
+        if (occupied * 4 > t.keys.length() * 3) {
+            rehash(t);
+        }
+        return null;
+    }
+
+    /**
+     * @param mac packed MAC address
+     * @return the removed value or null
+     */
+    synchronized V remove(long mac) {
+        long key = mac | PRESENT;
+        Table<V> t = table;
+        int i = hash(mac) & t.mask;
+        while (true) {
+            long k = t.keys.get(i);
+            if (k == key) {
+                V previous = t.values.get(i);
+                t.keys.set(i, REMOVED);
+                t.values.set(i, null);
+                size--;
+                return previous;
+            }
+            if (k == EMPTY) {
+                return null;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    /**
+     * Copies the live entries into a new table, growing it if it is more than half full
+     */
+    private void rehash(Table<V> old) {
+        int capacity = old.keys.length();
+        if (size * 2 > capacity) {
+            capacity *= 2;
+        }
+        Table<V> t = new Table<>(capacity);
+        for (int j = 0; j < old.keys.length(); j++) {
+            long k = old.keys.get(j);
+            if (k != EMPTY && k != REMOVED) {
+                int i = hash(k & ~PRESENT) & t.mask;
+                while (t.keys.get(i) != EMPTY) {
+                    i = (i + 1) & t.mask;
+                }
+                t.values.set(i, old.values.get(j));
+                t.keys.set(i, k);
+            }
+        }
+        occupied = size;
+        table = t;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds all values to a list
+     */
+    void values(List<? super V> out) {
+        Table<V> t = table;
+        for (int i = 0; i < t.keys.length(); i++) {
+            V value = t.values.get(i);
+            if (value != null) {
+                out.add(value);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries
+     */
+    synchronized void clear() {
+        table = new Table<>(MIN_CAPACITY);
+        size = 0;
+        occupied = 0;
+    }
+}
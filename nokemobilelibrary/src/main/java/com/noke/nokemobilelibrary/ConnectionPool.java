@@ -0,0 +1,292 @@
+package com.noke.nokemobilelibrary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Limits how many GATT connections are open at once.  Most Android stacks can't hold more than four to seven GATT
+ * clients, so connection requests beyond the limit wait in a queue ordered by the caller's priority and then by
+ * signal strength.  When a request arrives that outranks a connected device with nothing to do, that device is
+ * disconnected to make room.  Connecting and disconnecting are done by the Connector outside the pool's lock.
+ */
+
+final class ConnectionPool {
+
+    /**
+     * Opens and closes the connections for the pool
+     */
+    interface Connector {
+        /**
+         * @param noke the device that was given a slot
+         * @return false if the connection couldn't be started, which frees the slot again
+         */
+        boolean connect(NokeDevice noke);
+
+        /**
+         * Disconnects a device to make room for a request with a higher priority.  The pool waits for release()
+         *
+         * @param noke the device to disconnect
+         */
+        void disconnect(NokeDevice noke);
+
+        /**
+         * @param noke a connected device
+         * @return true if the device is connected and has no commands to send
+         */
+        boolean isIdle(NokeDevice noke);
+
+        /**
+         * @return elapsed realtime in milliseconds
+         */
+        long now();
+    }
+
+    private static final class Request {
+        final NokeDevice noke;
+        final int priority;
+        final int rssi;
+        final long enqueuedAt;
+        final long sequence;
+
+        Request(NokeDevice noke, int priority, int rssi, long enqueuedAt, long sequence) {
+            this.noke = noke;
+            this.priority = priority;
+            this.rssi = rssi;
+            this.enqueuedAt = enqueuedAt;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Slot {
+        final int priority;
+        final long acquiredAt;
+        /**
+         * True once the device has been asked to disconnect to make room
+         */
+        boolean preempted;
+
+        Slot(int priority, long acquiredAt) {
+            this.priority = priority;
+            this.acquiredAt = acquiredAt;
+        }
+    }
+
+    /**
+     * Highest priority first, then strongest signal, then first come
+     */
+    private static final Comparator<Request> ORDER = new Comparator<Request>() {
+        @Override
+        public int compare(Request a, Request b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            if (a.rssi != b.rssi) {
+                return a.rssi > b.rssi ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private final Connector connector;
+    private final NokeGattTelemetry telemetry;
+    private final PriorityQueue<Request> pending = new PriorityQueue<>(11, ORDER);
+    private final HashMap<NokeDevice, Request> pendingByDevice = new HashMap<>();
+    private final HashMap<NokeDevice, Slot> active = new HashMap<>();
+    private int maxConnections;
+    private long sequence;
+
+    /**
+     * @param connector      opens and closes the connections
+     * @param telemetry      receives wait times and slot usage
+     * @param maxConnections number of connections that can be open at once
+     */
+    ConnectionPool(Connector connector, NokeGattTelemetry telemetry, int maxConnections) {
+        this.connector = connector;
+        this.telemetry = telemetry;
+        this.maxConnections = Math.max(1, maxConnections);
+        telemetry.onSlotsChanged(0, this.maxConnections, connector.now());
+    }
+
+    /**
+     * Requests a connection.  The device connects right away if a slot is free, otherwise it waits for one.  A
+     * request for a device that is already waiting updates its priority, and a request for a device that already
+     * has a slot is ignored
+     *
+     * @param noke     the device
+     * @param priority higher priorities connect first and can preempt idle connections with lower priorities
+     * @param rssi     signal strength of the device, used to order requests with the same priority
+     */
+    void request(NokeDevice noke, int priority, int rssi) {
+        NokeDevice victim = null;
+        List<NokeDevice> granted;
+        synchronized (this) {
+            if (active.containsKey(noke)) {
+                return;
+            }
+            Request previous = pendingByDevice.remove(noke);
+            if (previous != null) {
+                pending.remove(previous);
+            }
+            long now = connector.now();
+            Request request = new Request(noke, priority, rssi, previous != null ? previous.enqueuedAt : now, sequence++);
+            pending.add(request);
+            pendingByDevice.put(noke, request);
+            granted = grant(now);
+            if (granted.isEmpty()) {
+                victim = findVictim(priority);
+            }
+            telemetry.onPendingChanged(pending.size());
+        }
+        if (victim != null) {
+            telemetry.onPreempted();
+            connector.disconnect(victim);
+        }
+        connect(granted);
+    }
+
+    /**
+     * Removes a request that hasn't been given a slot yet
+     *
+     * @param noke the device
+     * @return true if the device was waiting
+     */
+    synchronized boolean cancel(NokeDevice noke) {
+        Request request = pendingByDevice.remove(noke);
+        if (request == null) {
+            return false;
+        }
+        pending.remove(request);
+        telemetry.onPendingChanged(pending.size());
+        return true;
+    }
+
+    /**
+     * Frees the slot of a device whose connection has ended and gives it to the next request
+     *
+     * @param noke the device
+     */
+    void release(NokeDevice noke) {
+        List<NokeDevice> granted;
+        synchronized (this) {
+            if (active.remove(noke) == null) {
+                return;
+            }
+            long now = connector.now();
+            telemetry.onSlotsChanged(active.size(), maxConnections, now);
+            granted = grant(now);
+        }
+        connect(granted);
+    }
+
+    /**
+     * Changes the number of connections that can be open at once.  Lowering it doesn't close connections; the
+     * pool waits for them to end
+     *
+     * @param maxConnections number of connections, at least 1
+     */
+    void setMaxConnections(int maxConnections) {
+        List<NokeDevice> granted;
+        synchronized (this) {
+            this.maxConnections = Math.max(1, maxConnections);
+            long now = connector.now();
+            telemetry.onSlotsChanged(active.size(), this.maxConnections, now);
+            granted = grant(now);
+        }
+        connect(granted);
+    }
+
+    synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    synchronized boolean isActive(NokeDevice noke) {
+        return active.containsKey(noke);
+    }
+
+    /**
+     * Moves requests into free slots.  Call while holding the lock
+     *
+     * @return the devices that were given a slot
+     */
+    private List<NokeDevice> grant(long now) {
+        List<NokeDevice> granted = null;
+        while (active.size() < maxConnections && !pending.isEmpty()) {
+            Request request = pending.poll();
+            pendingByDevice.remove(request.noke);
+            active.put(request.noke, new Slot(request.priority, now));
+            telemetry.onConnectionGranted(now - request.enqueuedAt);
+            if (granted == null) {
+                granted = new ArrayList<>(2);
+            }
+            granted.add(request.noke);
+        }
+        if (granted == null) {
+            return Collections.emptyList();
+        }
+        telemetry.onSlotsChanged(active.size(), maxConnections, now);
+        telemetry.onPendingChanged(pending.size());
+        return granted;
+    }
+
+    /**
+     * Picks an idle connection with a lower priority to disconnect: the lowest priority, then the one held the
+     * longest.  Call while holding the lock
+     *
+     * @param priority priority of the waiting request
+     * @return the device to disconnect, or null
+     */
+    private NokeDevice findVictim(int priority) {
+        NokeDevice victim = null;
+        Slot victimSlot = null;
+        for (Map.Entry<NokeDevice, Slot> entry : active.entrySet()) {
+            Slot slot = entry.getValue();
+            if (slot.preempted || slot.priority >= priority || !connector.isIdle(entry.getKey())) {
+                continue;
+            }
+            if (victimSlot == null || slot.priority < victimSlot.priority
+                    || (slot.priority == victimSlot.priority && slot.acquiredAt < victimSlot.acquiredAt)) {
+                victim = entry.getKey();
+                victimSlot = slot;
+            }
+        }
+        if (victimSlot != null) {
+            victimSlot.preempted = true;
+        }
+        return victim;
+    }
+
+    private void connect(List<NokeDevice> granted) {
+        for (int i = 0; i < granted.size(); i++) {
+            NokeDevice noke = granted.get(i);
+            if (!connector.connect(noke)) {
+                release(noke);
+            }
+        }
+    }
+}
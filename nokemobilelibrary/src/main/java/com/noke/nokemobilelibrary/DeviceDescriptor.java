@@ -0,0 +1,227 @@
+package com.noke.nokemobilelibrary;
+
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Immutable description of a Noke device parsed from its bluetooth name and broadcast firmware version.
+ * Descriptors are parsed once and cached so the scan and GATT callbacks only need primitive comparisons.
+ */
+
+final class DeviceDescriptor {
+
+    /**
+     * Hardware types of Noke devices. Codes can be found in NokeDefines
+     */
+    enum HardwareType {
+        FIRST_GEN_PADLOCK(NokeDefines.NOKE_HW_TYPE_1ST_GEN_PADLOCK),
+        SECOND_GEN_PADLOCK(NokeDefines.NOKE_HW_TYPE_2ND_GEN_PADLOCK),
+        ULOCK(NokeDefines.NOKE_HW_TYPE_ULOCK),
+        HD_LOCK(NokeDefines.NOKE_HW_TYPE_HD_LOCK),
+        DOOR_CONTROLLER(NokeDefines.NOKE_HW_TYPE_DOOR_CONTROLLER),
+        PB12(NokeDefines.NOKE_HW_TYPE_PB12),
+        UNKNOWN(null);
+
+        final String code;
+
+        HardwareType(String code) {
+            this.code = code;
+        }
+
+        static HardwareType fromCode(String code) {
+            for (HardwareType type : values()) {
+                if (type.code != null && type.code.equals(code)) {
+                    return type;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * First minor firmware version of the HD lock that broadcasts its lock state
+     */
+    static final int HD_LOCK_STATE_BROADCAST_MINOR_VERSION = 13;
+
+    private final String name;
+    private final HardwareType hardwareType;
+    private final String hardwareVersion;
+    private final int firmwareMajor;
+    private final int firmwareMinor;
+    private final String version;
+    private final boolean noke;
+    private final boolean fob;
+    private final boolean firmwareMode;
+    private final boolean firmwareName;
+    private final boolean broadcastsVersion;
+
+    private DeviceDescriptor(String name, int firmwareMajor, int firmwareMinor) {
+        this.name = name;
+        this.firmwareMajor = firmwareMajor;
+        this.firmwareMinor = firmwareMinor;
+        this.noke = name.contains(NokeDefines.NOKE_DEVICE_IDENTIFER_STRING);
+        this.fob = name.contains("FOB") && !name.contains("NFOB");
+        this.firmwareName = name.toLowerCase().contains(NokeDefines.NOKE_FIRMWARE_DEVICE_IDENTIFIER_STRING);
+        this.firmwareMode = name.contains("NOKE_FW") || name.contains("NFOB_FW") || name.contains("N3P_FW");
+
+        String nameVersion = fob ? substring(name, 3, 5) : substring(name, 4, 6);
+        //These hardware versions don't broadcast their firmware version or lock state
+        this.broadcastsVersion = nameVersion != null && !nameVersion.equals("06") && !nameVersion.equals("04");
+
+        String code = substring(name, 4, 6);
+        this.hardwareType = HardwareType.fromCode(code);
+        this.hardwareVersion = hardwareType != HardwareType.UNKNOWN ? hardwareType.code : code != null ? code.intern() : "";
+        this.version = noke ? hardwareVersion + "-" + firmwareMajor + "." + firmwareMinor : "NOT A NOKE DEVICE";
+    }
+
+    private static String substring(String name, int start, int end) {
+        return name.length() >= end ? name.substring(start, end) : null;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    HardwareType getHardwareType() {
+        return hardwareType;
+    }
+
+    /**
+     * @return two character hardware code from the name. @see NokeDefines#NOKE_HW_TYPE_HD_LOCK
+     */
+    String getHardwareVersion() {
+        return hardwareVersion;
+    }
+
+    int getFirmwareMajor() {
+        return firmwareMajor;
+    }
+
+    int getFirmwareMinor() {
+        return firmwareMinor;
+    }
+
+    /**
+     * @return version string. @see NokeDevice#getVersion()
+     */
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the name identifies a Noke device
+     */
+    boolean isNoke() {
+        return noke;
+    }
+
+    boolean isFob() {
+        return fob;
+    }
+
+    /**
+     * @return true if the device is in firmware update mode and uses the firmware service
+     */
+    boolean isFirmwareMode() {
+        return firmwareMode;
+    }
+
+    /**
+     * @return true if the name matches the firmware identifier used when scanning for devices in firmware mode
+     */
+    boolean isFirmwareName() {
+        return firmwareName;
+    }
+
+    /**
+     * @return true if the device broadcasts its firmware version and lock state
+     */
+    boolean broadcastsVersion() {
+        return broadcastsVersion;
+    }
+
+    /**
+     * @return true if the device broadcasts its lock state
+     */
+    boolean broadcastsLockState() {
+        return hardwareType == HardwareType.HD_LOCK && firmwareMinor >= HD_LOCK_STATE_BROADCAST_MINOR_VERSION;
+    }
+
+    /**
+     * Caches the descriptors of tracked Noke devices per MAC address.  Entries are removed when a device is removed
+     * or lost, so devices that only pass by don't stay in the cache.
+     */
+    static final class Cache {
+
+        private final ConcurrentLongMap<DeviceDescriptor> byMac = new ConcurrentLongMap<>();
+
+        /**
+         * Returns the cached descriptor for a device if it still matches the advertisement
+         *
+         * @param mac    packed MAC address of the device
+         * @param parser parser holding the advertisement
+         * @return the descriptor or null if it needs to be parsed with {@link #get(long, String, int, int)}
+         */
+        DeviceDescriptor get(long mac, AdvertisementParser parser) {
+            DeviceDescriptor descriptor = byMac.get(mac);
+            if (descriptor == null
+                    || descriptor.firmwareMajor != parser.getFirmwareMajor()
+                    || descriptor.firmwareMinor != parser.getFirmwareMinor()
+                    || (parser.hasLocalName() && !parser.localNameEquals(descriptor.name))) {
+                return null;
+            }
+            return descriptor;
+        }
+
+        /**
+         * Returns the cached descriptor for a device, or parses a new one if the name or firmware version have
+         * changed.  New descriptors aren't cached until {@link #put} is called for a tracked device
+         *
+         * @param mac           packed MAC address of the device
+         * @param name          bluetooth name of the device
+         * @param firmwareMajor major firmware version from the broadcast
+         * @param firmwareMinor minor firmware version from the broadcast
+         * @return the descriptor
+         */
+        DeviceDescriptor get(long mac, String name, int firmwareMajor, int firmwareMinor) {
+            DeviceDescriptor descriptor = byMac.get(mac);
+            if (descriptor != null && descriptor.firmwareMajor == firmwareMajor
+                    && descriptor.firmwareMinor == firmwareMinor && descriptor.name.equals(name)) {
+                return descriptor;
+            }
+            return new DeviceDescriptor(name, firmwareMajor, firmwareMinor);
+        }
+
+        /**
+         * Caches the descriptor of a tracked device.  Descriptors with names that don't identify a Noke device are
+         * never cached
+         *
+         * @param mac        packed MAC address of the device
+         * @param descriptor the descriptor
+         */
+        void put(long mac, DeviceDescriptor descriptor) {
+            if (descriptor.noke || descriptor.firmwareName) {
+                byMac.put(mac, descriptor, false);
+            }
+        }
+
+        void remove(long mac) {
+            byMac.remove(mac);
+        }
+
+        void clear() {
+            byMac.clear();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.noke.nokemobilelibrary;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Sits between the scan callback and the listener and decides if a discovery event should be sent.  Noke devices
+ * advertise several times a second, so duplicate events for the same device are suppressed until the coalescing
+ * window has passed.  Events are always sent right away if the lock state, firmware version or signal strength
+ * bucket of the device changes.
+ */
+
+final class DiscoveryCoalescer {
+
+    /**
+     * Width of the RSSI buckets in dBm. Changes in signal strength smaller than a bucket don't trigger an event
+     */
+    static final int RSSI_BUCKET_WIDTH = 10;
+
+    /**
+     * Last discovery event sent for a device
+     */
+    private static final class Snapshot {
+        int lockState;
+        int majorVersion;
+        int minorVersion;
+        int rssiBucket;
+        long emittedAt;
+    }
+
+    /**
+     * Snapshots of the last event sent for each device, keyed by packed MAC address
+     */
+    private final ConcurrentLongMap<Snapshot> snapshots = new ConcurrentLongMap<>();
+    /**
+     * Time in milliseconds that duplicate events are suppressed. 0 disables coalescing
+     */
+    private long windowMillis;
+    private long emittedCount;
+    private long coalescedCount;
+
+    DiscoveryCoalescer(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    synchronized void setWindow(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    synchronized long getWindow() {
+        return windowMillis;
+    }
+
+    /**
+     * Checks if a discovery event should be sent for an advertisement.  If it should, the snapshot for the device is
+     * updated.
+     *
+     * @param mac          packed MAC address of the device
+     * @param lockState    lock state from the advertisement
+     * @param majorVersion major firmware version from the advertisement
+     * @param minorVersion minor firmware version from the advertisement
+     * @param rssi         signal strength of the advertisement
+     * @param now          time of the advertisement in milliseconds
+     * @return true if the event should be sent to the listener
+     */
+    synchronized boolean shouldEmit(long mac, int lockState, int majorVersion, int minorVersion, int rssi, long now) {
+        int rssiBucket = rssiBucket(rssi);
+        Snapshot snapshot = snapshots.get(mac);
+        if (snapshot == null) {
+            snapshot = new Snapshot();
+            snapshots.put(mac, snapshot, false);
+        } else if (snapshot.lockState == lockState
+                && snapshot.majorVersion == majorVersion
+                && snapshot.minorVersion == minorVersion
+                && snapshot.rssiBucket == rssiBucket
+                && now - snapshot.emittedAt < windowMillis) {
+            coalescedCount++;
+            return false;
+        }
+
+        snapshot.lockState = lockState;
+        snapshot.majorVersion = majorVersion;
+        snapshot.minorVersion = minorVersion;
+        snapshot.rssiBucket = rssiBucket;
+        snapshot.emittedAt = now;
+        emittedCount++;
+        return true;
+    }
+
+    /**
+     * Forgets the last event sent for a device so that the next advertisement is sent right away.  Used when a
+     * device disconnects or is removed
+     *
+     * @param mac packed MAC address of the device
+     */
+    synchronized void reset(long mac) {
+        snapshots.remove(mac);
+    }
+
+    synchronized void resetAll() {
+        snapshots.clear();
+    }
+
+    synchronized long getEmittedCount() {
+        return emittedCount;
+    }
+
+    synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    static int rssiBucket(int rssi) {
+        //Floor division so that -1 and -9 end up in the same bucket
+        return rssi >= 0 ? rssi / RSSI_BUCKET_WIDTH : -((-rssi + RSSI_BUCKET_WIDTH - 1) / RSSI_BUCKET_WIDTH);
+    }
+}
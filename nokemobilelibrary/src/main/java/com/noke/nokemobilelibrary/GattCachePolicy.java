@@ -0,0 +1,127 @@
+package com.noke.nokemobilelibrary;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Decides when Android's GATT service cache of a device is cleared.  Android keeps the services of unbonded devices
+ * cached even when they change, and the only way to clear them is the hidden BluetoothGatt#refresh method.
+ * Clearing the cache makes the next service discovery go over the air, so it is only done when the cached services
+ * can't be trusted: the device's firmware changed since its services were last discovered, or discovery failed or
+ * came back without the Noke characteristics.
+ */
+
+final class GattCachePolicy {
+
+    private static final String TAG = GattCachePolicy.class.getSimpleName();
+
+    /**
+     * BluetoothGatt#refresh, looked up once.  Null if the platform doesn't have it
+     */
+    private static Method refreshMethod;
+    private static boolean refreshMethodResolved;
+
+    private volatile boolean refreshOnDisconnect;
+
+    /**
+     * @param refreshOnDisconnect true to clear the cache every time a connection ends, like older versions did
+     */
+    GattCachePolicy(boolean refreshOnDisconnect) {
+        this.refreshOnDisconnect = refreshOnDisconnect;
+    }
+
+    void setRefreshOnDisconnect(boolean refreshOnDisconnect) {
+        this.refreshOnDisconnect = refreshOnDisconnect;
+    }
+
+    boolean isRefreshOnDisconnect() {
+        return refreshOnDisconnect;
+    }
+
+    /**
+     * @param noke    a device that just connected
+     * @param version firmware version the device advertises
+     * @return true if the cache should be cleared before discovering services
+     */
+    boolean shouldRefreshBeforeDiscovery(NokeDevice noke, String version) {
+        return noke.gattCacheStale || (noke.gattCacheVersion != null && !noke.gattCacheVersion.equals(version));
+    }
+
+    /**
+     * Remembers the firmware version the services were discovered with
+     *
+     * @param noke    the device
+     * @param version firmware version the device advertises
+     */
+    void onDiscovered(NokeDevice noke, String version) {
+        noke.gattCacheVersion = version;
+        noke.gattCacheStale = false;
+    }
+
+    /**
+     * Marks the cache of a device as stale after discovery failed or came back incomplete
+     *
+     * @param noke the device
+     * @return true if discovery should be tried again with a cleared cache, false if this connection already did
+     */
+    boolean onDiscoveryFailed(NokeDevice noke) {
+        noke.gattCacheStale = true;
+        return !noke.gattCacheRefreshed;
+    }
+
+    /**
+     * @param noke a device whose connection is ending
+     * @return true if the cache should be cleared before the connection is closed
+     */
+    boolean shouldRefreshOnDisconnect(NokeDevice noke) {
+        return refreshOnDisconnect || noke.gattCacheStale;
+    }
+
+    /**
+     * Clears the service cache of a connection
+     *
+     * @param gatt the connection
+     * @return true if the cache was cleared
+     */
+    static boolean refresh(BluetoothGatt gatt) {
+        Method refresh = getRefreshMethod();
+        if (gatt == null || refresh == null) {
+            return false;
+        }
+        try {
+            boolean success = (Boolean) refresh.invoke(gatt);
+            Log.d(TAG, "Refreshing Result: " + success);
+            return success;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static synchronized Method getRefreshMethod() {
+        if (!refreshMethodResolved) {
+            refreshMethodResolved = true;
+            try {
+                //noinspection JavaReflectionMemberAccess
+                refreshMethod = BluetoothGatt.class.getMethod("refresh");
+            } catch (Exception e) {
+                Log.w(TAG, "BluetoothGatt#refresh isn't available");
+            }
+        }
+        return refreshMethod;
+    }
+}
@@ -0,0 +1,112 @@
+package com.noke.nokemobilelibrary;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.UUID;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Characteristics and descriptors of a connection, looked up once after service discovery.  getService and
+ * getCharacteristic scan lists, so commands use these handles instead of looking them up for every write.  The
+ * handles belong to one connection and are dropped when it closes.
+ */
+
+final class GattHandles {
+
+    /**
+     * Characteristic commands are written to. Null in firmware mode
+     */
+    final BluetoothGattCharacteristic rx;
+    /**
+     * Characteristic the lock sends its responses on
+     */
+    final BluetoothGattCharacteristic tx;
+    /**
+     * Characteristic holding the session. Null in firmware mode
+     */
+    final BluetoothGattCharacteristic state;
+    /**
+     * Descriptor that enables notifications on the TX characteristic
+     */
+    final BluetoothGattDescriptor txCccd;
+
+    private GattHandles(BluetoothGattCharacteristic rx, BluetoothGattCharacteristic tx,
+                        BluetoothGattCharacteristic state, BluetoothGattDescriptor txCccd) {
+        this.rx = rx;
+        this.tx = tx;
+        this.state = state;
+        this.txCccd = txCccd;
+    }
+
+    /**
+     * Looks up the handles of a connection after service discovery
+     *
+     * @param gatt     the connection
+     * @param firmware true if the device is in firmware mode
+     * @param missing  receives the names of the handles that weren't found
+     * @return the handles, or null if any of them is missing
+     */
+    static GattHandles resolve(BluetoothGatt gatt, boolean firmware, StringBuilder missing) {
+        if (firmware) {
+            // TODO: - 2i support
+            BluetoothGattService service = gatt.getService(NokeDefines.FIRMWARE_4I_RX_SERVICE_UUID);
+            if (service == null) {
+                missing.append("firmware service");
+                return null;
+            }
+            BluetoothGattCharacteristic tx = find(service, NokeDefines.FIRMWARE_4I_TX_CHAR_UUID, "firmware TX characteristic", missing);
+            BluetoothGattDescriptor cccd = tx != null ? findCccd(tx, missing) : null;
+            return missing.length() == 0 ? new GattHandles(null, tx, null, cccd) : null;
+        }
+
+        BluetoothGattService service = gatt.getService(NokeDefines.RX_SERVICE_UUID);
+        if (service == null) {
+            missing.append("RX service");
+            return null;
+        }
+        BluetoothGattCharacteristic rx = find(service, NokeDefines.RX_CHAR_UUID, "RX characteristic", missing);
+        BluetoothGattCharacteristic tx = find(service, NokeDefines.TX_CHAR_UUID, "TX characteristic", missing);
+        BluetoothGattCharacteristic state = find(service, NokeDefines.STATE_CHAR_UUID, "state characteristic", missing);
+        BluetoothGattDescriptor cccd = tx != null ? findCccd(tx, missing) : null;
+        return missing.length() == 0 ? new GattHandles(rx, tx, state, cccd) : null;
+    }
+
+    private static BluetoothGattCharacteristic find(BluetoothGattService service, UUID uuid, String name,
+                                                    StringBuilder missing) {
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+        if (characteristic == null) {
+            append(missing, name);
+        }
+        return characteristic;
+    }
+
+    private static BluetoothGattDescriptor findCccd(BluetoothGattCharacteristic tx, StringBuilder missing) {
+        BluetoothGattDescriptor descriptor = tx.getDescriptor(NokeDefines.CCCD);
+        if (descriptor == null) {
+            append(missing, "TX notification descriptor");
+        }
+        return descriptor;
+    }
+
+    private static void append(StringBuilder missing, String name) {
+        if (missing.length() > 0) {
+            missing.append(", ");
+        }
+        missing.append(name);
+    }
+}
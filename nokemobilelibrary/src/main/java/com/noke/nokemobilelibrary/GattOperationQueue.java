@@ -0,0 +1,263 @@
+package com.noke.nokemobilelibrary;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayDeque;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Serializes the GATT operations of a connection.  Android only allows one outstanding read or write per
+ * connection and drops or rejects the others, so operations wait here until the callback of the previous one
+ * arrives.  An operation the stack rejects as busy is retried after a short delay, and an operation whose callback
+ * never arrives times out so the queue doesn't stall.  Timeouts run on the service's timer wheel.
+ */
+
+final class GattOperationQueue {
+
+    static final int TYPE_READ_CHARACTERISTIC = 0;
+    static final int TYPE_WRITE_CHARACTERISTIC = 1;
+    static final int TYPE_WRITE_DESCRIPTOR = 2;
+    static final int TYPE_REQUEST_MTU = 3;
+
+    /**
+     * The stack rejected the operation every time it was tried
+     */
+    static final int FAILURE_BUSY = 1;
+    /**
+     * The callback for the operation didn't arrive in time
+     */
+    static final int FAILURE_TIMEOUT = 2;
+
+    /**
+     * Schedules the timeouts of the queue and provides the time
+     */
+    interface Host {
+        void scheduleTimeout(TimerWheel.Timeout timeout, long delay);
+
+        void cancelTimeout(TimerWheel.Timeout timeout);
+
+        /**
+         * @return elapsed realtime in milliseconds
+         */
+        long now();
+    }
+
+    /**
+     * A GATT operation.  Subclasses start the operation in execute and handle the result in onCompleted or
+     * onFailed, which are called without holding the queue's lock
+     */
+    abstract static class Operation extends TimerWheel.Timeout {
+        final int type;
+        private GattOperationQueue queue;
+        private long enqueuedAt;
+        private long startedAt;
+        private int attempts;
+        /**
+         * True while waiting to retry after the stack was busy, false while waiting for the callback
+         */
+        private boolean retrying;
+
+        Operation(int type) {
+            this.type = type;
+        }
+
+        /**
+         * Starts the operation
+         *
+         * @param gatt the connection
+         * @return false if the stack didn't accept the operation
+         */
+        abstract boolean execute(BluetoothGatt gatt);
+
+        /**
+         * @param status GATT status from the callback
+         * @param value  value of the characteristic for reads, otherwise null
+         */
+        void onCompleted(int status, byte[] value) {
+        }
+
+        /**
+         * @param reason FAILURE_BUSY or FAILURE_TIMEOUT
+         */
+        void onFailed(int reason) {
+        }
+
+        @Override
+        final void onTimeout(long now) {
+            queue.onOperationTimeout(this);
+        }
+    }
+
+    private final BluetoothGatt gatt;
+    private final Host host;
+    private final NokeGattTelemetry telemetry;
+    private final long operationTimeout;
+    private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+    /**
+     * Operation waiting for its callback or for a retry, or null if the queue is idle
+     */
+    private Operation current;
+    private boolean closed;
+
+    /**
+     * @param gatt             the connection
+     * @param host             schedules the timeouts
+     * @param telemetry        receives queue depth and latency
+     * @param operationTimeout time in milliseconds to wait for the callback of an operation
+     */
+    GattOperationQueue(BluetoothGatt gatt, Host host, NokeGattTelemetry telemetry, long operationTimeout) {
+        this.gatt = gatt;
+        this.host = host;
+        this.telemetry = telemetry;
+        this.operationTimeout = operationTimeout;
+    }
+
+    /**
+     * Adds an operation to the queue and starts it if the queue is idle.  Operations added after the queue is closed
+     * are dropped
+     *
+     * @param operation the operation.  Can't be reused
+     */
+    void enqueue(Operation operation) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            operation.queue = this;
+            operation.enqueuedAt = host.now();
+            pending.add(operation);
+            telemetry.onEnqueued(size());
+        }
+        startNext();
+    }
+
+    /**
+     * Completes the current operation from its GATT callback and starts the next one.  Callbacks that don't match
+     * the type of the current operation are ignored
+     *
+     * @param type   type of the callback
+     * @param status GATT status from the callback
+     * @param value  value of the characteristic for reads
+     * @return true if an operation was completed
+     */
+    boolean complete(int type, int status, byte[] value) {
+        Operation operation;
+        synchronized (this) {
+            operation = current;
+            if (operation == null || operation.retrying || operation.type != type) {
+                return false;
+            }
+            current = null;
+            telemetry.onCompleted(operation.startedAt - operation.enqueuedAt, host.now() - operation.startedAt,
+                    status == BluetoothGatt.GATT_SUCCESS);
+        }
+        host.cancelTimeout(operation);
+        operation.onCompleted(status, value);
+        startNext();
+        return true;
+    }
+
+    /**
+     * Drops all operations without notifying them.  Called when the connection is closed
+     */
+    void close() {
+        Operation operation;
+        synchronized (this) {
+            closed = true;
+            telemetry.onDropped(size());
+            operation = current;
+            current = null;
+            pending.clear();
+        }
+        if (operation != null) {
+            host.cancelTimeout(operation);
+        }
+    }
+
+    /**
+     * @return number of operations waiting or in progress
+     */
+    synchronized int size() {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    private void startNext() {
+        Operation operation;
+        synchronized (this) {
+            if (closed || current != null || pending.isEmpty()) {
+                return;
+            }
+            operation = pending.poll();
+            current = operation;
+            operation.startedAt = host.now();
+        }
+        execute(operation);
+    }
+
+    private void execute(Operation operation) {
+        boolean started;
+        try {
+            started = operation.execute(gatt);
+        } catch (RuntimeException e) {
+            started = false;
+        }
+        synchronized (this) {
+            if (current != operation) {
+                return;
+            }
+            if (started) {
+                host.scheduleTimeout(operation, operationTimeout);
+                return;
+            }
+            if (operation.attempts < NokeDefines.GATT_OPERATION_BUSY_RETRIES) {
+                operation.attempts++;
+                operation.retrying = true;
+                telemetry.onBusyRetry();
+                host.scheduleTimeout(operation, NokeDefines.GATT_OPERATION_BUSY_DELAY);
+                return;
+            }
+        }
+        fail(operation, FAILURE_BUSY);
+    }
+
+    private void onOperationTimeout(Operation operation) {
+        boolean retry;
+        synchronized (this) {
+            if (current != operation) {
+                return;
+            }
+            retry = operation.retrying;
+            operation.retrying = false;
+        }
+        if (retry) {
+            execute(operation);
+        } else {
+            fail(operation, FAILURE_TIMEOUT);
+        }
+    }
+
+    private void fail(Operation operation, int reason) {
+        synchronized (this) {
+            if (current != operation) {
+                return;
+            }
+            current = null;
+            telemetry.onFailed(reason);
+        }
+        host.cancelTimeout(operation);
+        operation.onFailed(reason);
+        startNext();
+    }
+}
@@ -0,0 +1,78 @@
+package com.noke.nokemobilelibrary;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Converts bluetooth MAC addresses between the "AA:BB:CC:DD:EE:FF" string format and the 48-bit value packed
+ * into a long.
+ */
+
+final class MacAddress {
+
+    /**
+     * Returned by parse for strings that aren't MAC addresses. Valid addresses are never negative
+     */
+    static final long INVALID = -1L;
+
+    private static final int STRING_LENGTH = 17;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {
+    }
+
+    /**
+     * Parses a MAC address without allocating.  Hex digits may be upper or lower case
+     *
+     * @param mac MAC address in the format "AA:BB:CC:DD:EE:FF"
+     * @return the address packed into the lower 48 bits, or INVALID
+     */
+    static long parse(String mac) {
+        if (mac == null || mac.length() != STRING_LENGTH) {
+            return INVALID;
+        }
+        long value = 0;
+        for (int i = 0; i < STRING_LENGTH; i++) {
+            char c = mac.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return INVALID;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return INVALID;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @param value address packed into the lower 48 bits
+     * @return the address in the format "AA:BB:CC:DD:EE:FF"
+     */
+    static String format(long value) {
+        char[] chars = new char[STRING_LENGTH];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (value >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = HEX_DIGITS[b >>> 4];
+            chars[i * 3 + 1] = HEX_DIGITS[b & 0x0F];
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,87 @@
+package com.noke.nokemobilelibrary;
+
+import java.util.EnumSet;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Connection states of a Noke device and the transitions allowed between them.  Every state can move to
+ * DISCONNECTED; the other transitions follow the order a connection goes through.  Codes match the NOKE_STATE
+ * constants returned by NokeDevice#getConnectionState.
+ */
+
+public enum NokeConnectionState {
+    DISCONNECTED(NokeDefines.NOKE_STATE_DISCONNECTED),
+    DISCOVERED(NokeDefines.NOKE_STATE_DISCOVERED),
+    CONNECTING(NokeDefines.NOKE_STATE_CONNECTING),
+    /**
+     * Connected and looking up services.  Reported as connecting by the integer code
+     */
+    DISCOVERING_SERVICES(NokeDefines.NOKE_STATE_CONNECTING),
+    CONNECTED(NokeDefines.NOKE_STATE_CONNECTED),
+    SYNCING(NokeDefines.NOKE_STATE_SYNCING),
+    UNLOCKED(NokeDefines.NOKE_STATE_UNLOCKED);
+
+    static {
+        DISCONNECTED.allow(DISCOVERED, CONNECTING);
+        DISCOVERED.allow(CONNECTING);
+        CONNECTING.allow(DISCOVERING_SERVICES);
+        //The link can drop while services are looked up, in which case the connection is tried again
+        DISCOVERING_SERVICES.allow(CONNECTED, CONNECTING);
+        CONNECTED.allow(SYNCING, UNLOCKED);
+        SYNCING.allow(UNLOCKED);
+        //Pinned devices stay connected after unlocking and are used again
+        UNLOCKED.allow(SYNCING, CONNECTED);
+    }
+
+    private final int code;
+    private EnumSet<NokeConnectionState> next;
+
+    NokeConnectionState(int code) {
+        this.code = code;
+    }
+
+    private void allow(NokeConnectionState first, NokeConnectionState... rest) {
+        next = EnumSet.of(first, rest);
+        next.add(DISCONNECTED);
+    }
+
+    /**
+     * @return the NOKE_STATE code of the state
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @param state the state to move to
+     * @return true if a device in this state can move to the given state.  Staying in the same state is allowed
+     */
+    public boolean canMoveTo(NokeConnectionState state) {
+        return state == this || next.contains(state);
+    }
+
+    /**
+     * @param code a NOKE_STATE code
+     * @return the state with the code, DISCONNECTED for unknown codes
+     */
+    public static NokeConnectionState fromCode(int code) {
+        for (NokeConnectionState state : values()) {
+            if (state.code == code) {
+                return state;
+            }
+        }
+        return DISCONNECTED;
+    }
+}
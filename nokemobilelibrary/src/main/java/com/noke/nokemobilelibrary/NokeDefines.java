@@ -34,6 +34,99 @@ public class NokeDefines {
      * Default scan off time for background scanning
      */
     static final int BLUETOOTH_DEFAULT_SCAN_DURATION = 8000;
+    /**
+     * Maximum number of MAC address filters pushed down to the bluetooth controller.  Most controllers only
+     * support a small number of hardware filters
+     */
+    static final int BLUETOOTH_MAX_OFFLOADED_FILTERS = 16;
+    /**
+     * Default window for coalescing duplicate discovery events from the same device
+     */
+    static final long DISCOVERY_COALESCING_WINDOW_DEFAULT = 1000;
+    /**
+     * Devices that haven't advertised for this long are not included in the nearest devices
+     */
+    static final long PROXIMITY_MAX_AGE_DEFAULT = 10000;
+    /**
+     * Length of a tick of the service's timer wheel in milliseconds. Timeouts fire up to one tick late
+     */
+    static final long TIMER_WHEEL_TICK = 100;
+    /**
+     * Devices that haven't advertised for this long are reported as lost
+     */
+    static final long DEVICE_LOST_TIMEOUT_DEFAULT = 30000;
+    /**
+     * Time in milliseconds to wait for the callback of a GATT operation before moving on to the next one
+     */
+    static final long GATT_OPERATION_TIMEOUT = 5000;
+    /**
+     * Times a GATT operation is tried again when the stack is busy
+     */
+    static final int GATT_OPERATION_BUSY_RETRIES = 3;
+    /**
+     * Time in milliseconds to wait before trying a GATT operation again when the stack is busy
+     */
+    static final long GATT_OPERATION_BUSY_DELAY = 100;
+    /**
+     * Times a connection is retried after GATT error 133 before giving up
+     */
+    static final int GATT_RETRY_BUDGET_DEFAULT = 5;
+    /**
+     * Delay in milliseconds before the first retry after GATT error 133. Doubles with every retry
+     */
+    static final long GATT_RETRY_BASE_DELAY = 500;
+    /**
+     * Longest delay in milliseconds between retries after GATT error 133
+     */
+    static final long GATT_RETRY_MAX_DELAY = 5000;
+    /**
+     * Time in milliseconds to wait for the disconnect callback before closing the GATT connection anyway
+     */
+    static final long DISCONNECT_TIMEOUT = 2000;
+    /**
+     * Number of completed unlock traces kept by the service
+     */
+    static final int UNLOCK_TRACE_BUFFER_SIZE = 50;
+    /**
+     * Callbacks that can be queued for each listener before the listener's overflow policy applies
+     */
+    static final int LISTENER_QUEUE_CAPACITY = 64;
+    /**
+     * Time in milliseconds to wait for a connection attempt to connect
+     */
+    static final long CONNECT_TIMEOUT = 15000;
+    /**
+     * Time in milliseconds to wait for service discovery
+     */
+    static final long SERVICE_DISCOVERY_TIMEOUT = 10000;
+    /**
+     * Time in milliseconds to wait for the session read and for notifications to be enabled
+     */
+    static final long CONNECTION_SETUP_TIMEOUT = 7500;
+    /**
+     * Time in milliseconds to wait for the lock to answer a command
+     */
+    static final long COMMAND_TIMEOUT = 7500;
+    /**
+     * Number of devices that can be connected at once
+     */
+    static final int MAX_CONNECTIONS_DEFAULT = 4;
+    /**
+     * Priority of connection requests that don't set one
+     */
+    static final int CONNECTION_PRIORITY_DEFAULT = 0;
+    /**
+     * MTU of a connection that hasn't negotiated a larger one
+     */
+    static final int DEFAULT_MTU = 23;
+    /**
+     * MTU requested when a sync starts. Locks that don't support it keep the default
+     */
+    static final int SYNC_MTU_DEFAULT = 247;
+    /**
+     * Commands in flight during a sync. 1 sends each command after the lock answers the previous one
+     */
+    static final int PIPELINE_WINDOW_DEFAULT = 1;
     /**
      * Identifer string for Noke hardware devices
      */
@@ -43,9 +136,10 @@ public class NokeDefines {
      */
     static final String NOKE_FIRMWARE_DEVICE_IDENTIFIER_STRING = "_fw";
     /**
-     * Should force gatt refresh
+     * Should force gatt refresh every time a connection ends.  Otherwise the cache is only cleared when a device's
+     * firmware changes or its services can't be discovered
      */
-    static final boolean SHOULD_FORCE_GATT_REFRESH = true;
+    static final boolean SHOULD_FORCE_GATT_REFRESH = false;
 
     /**
      * Identifier for Noke Mobile API Key meta data
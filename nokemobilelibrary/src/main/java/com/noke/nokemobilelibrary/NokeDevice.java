@@ -2,11 +2,26 @@ package com.noke.nokemobilelibrary;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /************************************************************************************************************************************************
  * Copyright © 2018 Nokē Inc. All rights reserved.
@@ -26,8 +41,16 @@ import java.util.List;
  * Class stores information about the Noke device and contains methods for interacting with the Noke device
  */
 
+@JsonAdapter(NokeDevice.GsonAdapterFactory.class)
 public class NokeDevice {
 
+    private final static String TAG = NokeDevice.class.getSimpleName();
+
+    /**
+     * Set in macValue once the MAC has been parsed, so that 00:00:00:00:00:00 isn't mistaken for unparsed
+     */
+    private static final long MAC_VALUE_PARSED = 1L << 48;
+
     /**
      * Time Interval of the most recent time the device was discovered
      */
@@ -42,17 +65,13 @@ public class NokeDevice {
      */
     private String mac;
     /**
-     * Serial number of Noke device. Laser engraved onto the device during manufacturing
+     * MAC address packed into a long with MAC_VALUE_PARSED set. 0 until it is first needed
      */
-    private String serial;
+    private transient long macValue;
     /**
      * Firmware and hardware version of the lock. Follows format: '3P-2.10' where '3P' is the hardware version and '2.10' is the firmware version
      */
     private String version;
-    /**
-     * Tracking key used to track Noke device usage and activity
-     */
-    private String trackingKey;
     /**
      * BluetoothDevice used for interacting with the Noke device via bluetooth
      */
@@ -61,6 +80,34 @@ public class NokeDevice {
      * Provides Bluetooth GATT functionality to enable communication with Bluetooth Smart devices
      */
     transient BluetoothGatt gatt;
+    /**
+     * Serializes the GATT operations of the current connection. Null while not connected
+     */
+    transient GattOperationQueue gattQueue;
+    /**
+     * Characteristics of the current connection, looked up after service discovery. Null while not connected
+     */
+    transient GattHandles gattHandles;
+    /**
+     * True while the connection priority is raised for a sync
+     */
+    transient boolean highPriority;
+    /**
+     * MTU negotiated on the current connection, or 0 if it hasn't been requested
+     */
+    transient int mtu;
+    /**
+     * Time the last command was written in elapsed realtime, or 0 once the lock has answered
+     */
+    transient long commandSentAt;
+    /**
+     * Elapsed realtime when the device reached the connected state, cleared once it unlocks or disconnects
+     */
+    transient long connectedAt;
+    /**
+     * Flow control for the commands being sent when pipelined writes are enabled, otherwise null
+     */
+    transient CommandPipeline commandPipeline;
     /**
      * 40 char string read from the session characteristic upon connecting to the Noke device
      */
@@ -70,23 +117,21 @@ public class NokeDevice {
      */
     private Integer battery;
     /**
-     * Unlock command used with the offline key to unlock the lock without a network connection
+     * Fields that are rarely set or read, kept off the device until one of them is set.  Serialized flat with the
+     * other fields by GsonAdapterFactory
      */
-    private String offlineUnlockCmd;
+    private transient Details details;
     /**
-     * Offline key generated by the API that can be cached on the phone to unlock the lock without a network connection
+     * Connection state of the Noke device and when it was entered.  Null until the first transition, which reads
+     * as disconnected.  Only changed with compare-and-set since the scan, GATT and Bluetooth threads all move it
      */
-    private String offlineKey;
-    /**
-     * Connection state of the Noke device
-     */
-    transient int connectionState;
+    private transient volatile StateChange connectionState;
     /**
      * Lock state of the Noke device
      */
     transient int lockState;
     /**
-     * Attempts made to connect. Sometimes if the gatt throws an error, simply retrying will work. We make 4 attempts to connect before throwing an error
+     * Attempts made to connect. Sometimes if the gatt throws an error, simply retrying will work. Reset once the device is connected and ready for commands
      */
     transient int connectionAttempts;
     /**
@@ -105,7 +150,206 @@ public class NokeDevice {
      * Boolean that indicates if the lock is being restored by the Core API
      */
     transient boolean isRestoring;
+    /**
+     * Hardware type and firmware version parsed from the bluetooth name and broadcast data
+     */
+    transient DeviceDescriptor descriptor;
+    /**
+     * Filter used to smooth the signal strength of the advertisements
+     */
+    transient RssiFilter rssiFilter;
+    /**
+     * Position of the device in the service's proximity ranking
+     */
+    transient ProximityRanking.Entry proximityEntry;
+    /**
+     * Fires when the device hasn't advertised for the device lost timeout
+     */
+    transient TimerWheel.Timeout lostTimeout;
+    /**
+     * Fires when it's time to reconnect after GATT error 133 or a lost link
+     */
+    transient TimerWheel.Timeout retryTimeout;
+    /**
+     * True if the connection is kept open between unlocks and reopened when it drops
+     */
+    transient boolean pinned;
+    /**
+     * True while a pinned device reconnects on its own, which isn't reported to the listener
+     */
+    transient boolean keepAlive;
+    /**
+     * True if the session was read after the last commands were sent, so it can be used for the next unlock
+     */
+    transient boolean sessionFresh;
+    /**
+     * Firmware version the services were last discovered with, or null if they haven't been
+     */
+    transient String gattCacheVersion;
+    /**
+     * True if Android's service cache of the device can't be trusted and is cleared on the next connection
+     */
+    transient boolean gattCacheStale;
+    /**
+     * True if the service cache was cleared, or clearing it was tried, on the current connection
+     */
+    transient boolean gattCacheRefreshed;
+    /**
+     * Time service discovery started in elapsed realtime, or 0 if it isn't in progress
+     */
+    transient long discoveryStartedAt;
+    /**
+     * Elapsed realtime of the first advertisement since the device was last disconnected, or 0
+     */
+    transient long firstAdvertisementAt;
+    /**
+     * Trace of the unlock in progress, started by connectToNoke
+     */
+    transient NokeUnlockTrace.Builder unlockTrace;
+    /**
+     * Deadline for the connection step in progress, created on the first connection
+     */
+    transient NokeDeviceManagerService.Watchdog watchdog;
+    /**
+     * Times to retry connecting after GATT error 133 or a lost link, or null to use the service's budget
+     */
+    transient Integer connectionRetryBudget;
+    /**
+     * True if the service added the device while discovering all devices, rather than the app adding it
+     */
+    transient boolean autoDiscovered;
+    /**
+     * Time between advertisements of the device. Only kept when per device scan telemetry is enabled
+     */
+    transient NokeHistogram advertisingInterval;
+    /**
+     * Order the device was added to the device registry in
+     */
+    transient long registryOrder;
+
+
+    /**
+     * A connection state and when it was entered
+     */
+    static final class StateChange {
+        /**
+         * Stands in for the state of a device that hasn't moved yet, whose time in state isn't known
+         */
+        static final StateChange INITIAL = new StateChange(NokeConnectionState.DISCONNECTED, -1);
+
+        final NokeConnectionState state;
+        /**
+         * Elapsed realtime in milliseconds when the state was entered, or -1 if unknown
+         */
+        final long since;
+
+        StateChange(NokeConnectionState state, long since) {
+            this.state = state;
+            this.since = since;
+        }
+    }
 
+    /**
+     * Serial number, tracking key and offline unlock credentials of a device
+     */
+    static final class Details {
+        /**
+         * Serial number of Noke device. Laser engraved onto the device during manufacturing
+         */
+        String serial;
+        /**
+         * Tracking key used to track Noke device usage and activity
+         */
+        String trackingKey;
+        /**
+         * Unlock command used with the offline key to unlock the lock without a network connection
+         */
+        String offlineUnlockCmd;
+        /**
+         * Offline key generated by the API that can be cached on the phone to unlock the lock without a network connection
+         */
+        String offlineKey;
+    }
+
+    /**
+     * Serializes devices in the same flat format as when the details were fields of the device, so cached devices
+     * keep their offline keys
+     */
+    static final class GsonAdapterFactory implements TypeAdapterFactory {
+        private static final String SERIAL = "serial";
+        private static final String TRACKING_KEY = "trackingKey";
+        private static final String OFFLINE_UNLOCK_CMD = "offlineUnlockCmd";
+        private static final String OFFLINE_KEY = "offlineKey";
+
+        @Override
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (!NokeDevice.class.isAssignableFrom(type.getRawType())) {
+                return null;
+            }
+            final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+            final TypeAdapter<JsonElement> elements = gson.getAdapter(JsonElement.class);
+            return new TypeAdapter<T>() {
+                @Override
+                public void write(JsonWriter out, T value) throws IOException {
+                    JsonElement tree = delegate.toJsonTree(value);
+                    Details details = value != null ? ((NokeDevice) value).details : null;
+                    if (details != null && tree.isJsonObject()) {
+                        tree = flatten(tree.getAsJsonObject(), details);
+                    }
+                    elements.write(out, tree);
+                }
+
+                @Override
+                public T read(JsonReader in) throws IOException {
+                    JsonElement tree = elements.read(in);
+                    T value = delegate.fromJsonTree(tree);
+                    if (value != null && tree.isJsonObject()) {
+                        JsonObject object = tree.getAsJsonObject();
+                        NokeDevice noke = (NokeDevice) value;
+                        noke.setSerial(getString(object, SERIAL));
+                        noke.setTrackingKey(getString(object, TRACKING_KEY));
+                        noke.setOfflineUnlockCmd(getString(object, OFFLINE_UNLOCK_CMD));
+                        noke.setOfflineKey(getString(object, OFFLINE_KEY));
+                    }
+                    return value;
+                }
+            };
+        }
+
+        /**
+         * Adds the details to the other fields in the order the fields used to be declared in
+         */
+        private static JsonObject flatten(JsonObject fields, Details details) {
+            JsonObject flat = new JsonObject();
+            for (Map.Entry<String, JsonElement> field : fields.entrySet()) {
+                flat.add(field.getKey(), field.getValue());
+                if (field.getKey().equals("mac")) {
+                    addString(flat, SERIAL, details.serial);
+                } else if (field.getKey().equals("version")) {
+                    addString(flat, TRACKING_KEY, details.trackingKey);
+                }
+            }
+            addString(flat, SERIAL, details.serial);
+            addString(flat, TRACKING_KEY, details.trackingKey);
+            addString(flat, OFFLINE_UNLOCK_CMD, details.offlineUnlockCmd);
+            addString(flat, OFFLINE_KEY, details.offlineKey);
+            return flat;
+        }
+
+        private static void addString(JsonObject object, String name, String value) {
+            if (value != null && !object.has(name)) {
+                object.addProperty(name, value);
+            }
+        }
+
+        private static String getString(JsonObject object, String name) {
+            JsonElement element = object.get(name);
+            return element != null && !element.isJsonNull() ? element.getAsString() : null;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<NokeDevice, StateChange> CONNECTION_STATE =
+            AtomicReferenceFieldUpdater.newUpdater(NokeDevice.class, StateChange.class, "connectionState");
 
     /**
      * Initializes Noke Device
@@ -135,10 +379,7 @@ public class NokeDevice {
         if (deviceName != null) {
             if (deviceName.contains(NokeDefines.NOKE_DEVICE_IDENTIFER_STRING)) {
                 if (broadcastBytes != null && broadcastBytes.length > 0) {
-                    int majorVersion = broadcastBytes[1];
-                    int minorVersion = broadcastBytes[2];
-                    String hardwareVersion = deviceName.substring(4, 6);
-                    return hardwareVersion + "-" + majorVersion + "." + minorVersion;
+                    return getVersion(broadcastBytes[1], broadcastBytes[2], deviceName);
                 } else {
                     if (deviceName.contains("2P")) {
                         return "P2.0";
@@ -157,6 +398,25 @@ public class NokeDevice {
         return version;
     }
 
+    /**
+     * Builds the version string from the firmware version in the broadcast data
+     *
+     * @param majorVersion major firmware version from the broadcast data
+     * @param minorVersion minor firmware version from the broadcast data
+     * @param deviceName   bluetooth device name of the lock. This contains the hardware version
+     * @return version string. @see #version
+     */
+    String getVersion(int majorVersion, int minorVersion, String deviceName) {
+        if (deviceName == null) {
+            return "";
+        }
+        if (!deviceName.contains(NokeDefines.NOKE_DEVICE_IDENTIFER_STRING)) {
+            return "NOT A NOKE DEVICE";
+        }
+        String hardwareVersion = deviceName.substring(4, 6);
+        return hardwareVersion + "-" + majorVersion + "." + minorVersion;
+    }
+
     /**
      * Sets the session of the lock after connecting.  Session is only valid for the duration that the lock is connected
      *
@@ -187,16 +447,48 @@ public class NokeDevice {
     @SuppressWarnings("unused")
     public void setMac(String mac) {
         this.mac = mac;
+        this.macValue = 0;
+    }
+
+    /**
+     * Returns the MAC address in the numeric form used inside the library
+     *
+     * @return the 48-bit address, or MacAddress.INVALID if the MAC isn't a valid address
+     */
+    long getMacValue() {
+        long value = macValue;
+        if (value == 0) {
+            long parsed = MacAddress.parse(mac);
+            value = parsed == MacAddress.INVALID ? MacAddress.INVALID : parsed | MAC_VALUE_PARSED;
+            macValue = value;
+        }
+        return value == MacAddress.INVALID ? value : value & ~MAC_VALUE_PARSED;
+    }
+
+    /**
+     * @return the details of the device, creating them if a detail is being set for the first time
+     */
+    private Details details(String value) {
+        Details current = details;
+        if (current == null && value != null) {
+            current = new Details();
+            details = current;
+        }
+        return current;
     }
 
     @SuppressWarnings("unused")
     public String getSerial() {
-        return serial;
+        Details current = details;
+        return current != null ? current.serial : null;
     }
 
     @SuppressWarnings("unused")
     public void setSerial(String serial) {
-        this.serial = serial;
+        Details current = details(serial);
+        if (current != null) {
+            current.serial = serial;
+        }
     }
 
     public String getVersion() {
@@ -209,22 +501,30 @@ public class NokeDevice {
 
     @SuppressWarnings("unused")
     public String getOfflineUnlockCmd() {
-        return offlineUnlockCmd;
+        Details current = details;
+        return current != null ? current.offlineUnlockCmd : null;
     }
 
     @SuppressWarnings("unused")
     public void setOfflineUnlockCmd(String offlineUnlockCmd) {
-        this.offlineUnlockCmd = offlineUnlockCmd;
+        Details current = details(offlineUnlockCmd);
+        if (current != null) {
+            current.offlineUnlockCmd = offlineUnlockCmd;
+        }
     }
 
     @SuppressWarnings("unused")
     public String getOfflineKey() {
-        return offlineKey;
+        Details current = details;
+        return current != null ? current.offlineKey : null;
     }
 
     @SuppressWarnings("unused")
     public void setOfflineKey(String offlineKey) {
-        this.offlineKey = offlineKey;
+        Details current = details(offlineKey);
+        if (current != null) {
+            current.offlineKey = offlineKey;
+        }
     }
 
     @SuppressWarnings("unused")
@@ -258,28 +558,142 @@ public class NokeDevice {
 
     @SuppressWarnings("unused")
     public String getTrackingKey() {
-        return trackingKey;
+        Details current = details;
+        return current != null ? current.trackingKey : null;
     }
 
     @SuppressWarnings("unused")
     public void setTrackingKey(String trackingKey) {
-        this.trackingKey = trackingKey;
+        Details current = details(trackingKey);
+        if (current != null) {
+            current.trackingKey = trackingKey;
+        }
     }
 
+    /**
+     * @return the NOKE_STATE code of the connection state
+     */
     @SuppressWarnings("unused")
     public int getConnectionState() {
-        return connectionState;
+        return getState().getCode();
     }
 
+    /**
+     * Moves the connection state if the transition table allows it.  Transitions it doesn't allow are logged and
+     * leave the state unchanged
+     *
+     * @param connectionState a NOKE_STATE code
+     */
     @SuppressWarnings("unused")
     public void setConnectionState(int connectionState) {
-        this.connectionState = connectionState;
+        NokeConnectionState next = NokeConnectionState.fromCode(connectionState);
+        NokeDeviceManagerService service = mService;
+        if (service != null) {
+            service.moveConnectionState(this, next);
+            return;
+        }
+        NokeConnectionState current = getState();
+        if (moveTo(null, next, SystemClock.elapsedRealtime()) == null) {
+            Log.w(TAG, "Illegal connection state change for " + mac + ": " + current + " to " + next);
+        }
+    }
+
+    /**
+     * @return true if the connection is kept open by NokeDeviceManagerService#pinNoke
+     */
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    public NokeConnectionState getState() {
+        StateChange current = connectionState;
+        return current != null ? current.state : NokeConnectionState.DISCONNECTED;
+    }
+
+    /**
+     * Moves the connection state if the transition table allows it.  Staying in the same state keeps the time the
+     * state was entered
+     *
+     * @param expected the state the device has to be in, or null for any state that can move to next
+     * @param next     the state to move to
+     * @param now      elapsed realtime in milliseconds
+     * @return the state that was left, INITIAL if the device had no state yet, or null if the transition wasn't
+     * allowed
+     */
+    StateChange moveTo(NokeConnectionState expected, NokeConnectionState next, long now) {
+        while (true) {
+            StateChange current = connectionState;
+            StateChange from = current != null ? current : StateChange.INITIAL;
+            if ((expected != null && from.state != expected) || !from.state.canMoveTo(next)) {
+                return null;
+            }
+            if (from.state == next) {
+                return from;
+            }
+            if (CONNECTION_STATE.compareAndSet(this, current, new StateChange(next, now))) {
+                return from;
+            }
+        }
+    }
+
+    public Integer getConnectionRetryBudget() {
+        return connectionRetryBudget;
+    }
+
+    /**
+     * Sets how many times the service retries connecting to this device after GATT error 133 or a link lost
+     * before the device was ready
+     *
+     * @param connectionRetryBudget number of retries, or null to use the service's budget
+     */
+    public void setConnectionRetryBudget(Integer connectionRetryBudget) {
+        this.connectionRetryBudget = connectionRetryBudget;
     }
 
     public int getRssi() { return rssi; }
 
     public void setRssi(int rssi) { this.rssi = rssi; }
 
+    /**
+     * Returns the signal strength of the device smoothed over recent advertisements. More stable than getRssi for
+     * deciding which lock is closest
+     *
+     * @return smoothed signal strength in dBm
+     */
+    public int getSmoothedRssi() {
+        if (rssiFilter != null && rssiFilter.isInitialized()) {
+            return Math.round(rssiFilter.getEstimate());
+        }
+        return rssi;
+    }
+
+    /**
+     * Returns the time between advertisements of the device in milliseconds.  Only available when per device scan
+     * telemetry has been enabled on the service
+     *
+     * @return snapshot of the advertising intervals, or null
+     */
+    public NokeHistogram.Snapshot getAdvertisingInterval() {
+        NokeHistogram histogram = advertisingInterval;
+        return histogram != null ? histogram.snapshot() : null;
+    }
+
+    /**
+     * Adds a signal strength reading from an advertisement
+     *
+     * @param rssi signal strength of the advertisement
+     * @param now  time of the advertisement in milliseconds
+     * @return the smoothed signal strength
+     */
+    float updateRssi(int rssi, long now) {
+        this.rssi = rssi;
+        if (rssiFilter == null) {
+            rssiFilter = new RssiFilter();
+            proximityEntry = new ProximityRanking.Entry(this);
+        }
+        return rssiFilter.update(rssi, now);
+    }
+
     /**
      * Sends a + delimited string of commands to the lock
      *
@@ -290,8 +704,9 @@ public class NokeDevice {
         List<String> commandArr = Arrays.asList(commands.split("\\+"));
         this.commands.addAll(commandArr);
         if (this.commands.size() > 1) {
-            this.connectionState = NokeDefines.NOKE_STATE_SYNCING;
+            mService.moveConnectionState(this, NokeConnectionState.SYNCING);
             mService.getNokeListener().onNokeSyncing(this);
+            mService.beginSync(this);
         }
         mService.writeRXCharacteristic(this);
     }
@@ -304,8 +719,9 @@ public class NokeDevice {
     public void sendCommands(ArrayList<String> commands){
         this.commands = commands;
         if (this.commands.size() > 1) {
-            this.connectionState = NokeDefines.NOKE_STATE_SYNCING;
+            mService.moveConnectionState(this, NokeConnectionState.SYNCING);
             mService.getNokeListener().onNokeSyncing(this);
+            mService.beginSync(this);
         }
         mService.writeRXCharacteristic(this);
     }
@@ -319,6 +735,15 @@ public class NokeDevice {
         }
     }
 
+    /**
+     * Returns the MTU of the connection.  A larger MTU is requested when a sync starts
+     *
+     * @return the negotiated MTU, or 23 if a larger one hasn't been negotiated
+     */
+    public int getMtu() {
+        return mtu > 0 ? mtu : NokeDefines.DEFAULT_MTU;
+    }
+
     public Integer getCommandCount(){
         if(this.commands != null){
             return this.commands.size();
@@ -328,8 +753,10 @@ public class NokeDevice {
     }
 
     public String scheduledOfflineUnlock() {
-        if (this.offlineUnlockCmd.length() == NokeDefines.UNLOCK_COMMAND_LENGTH && this.offlineKey.length() == NokeDefines.OFFLINE_KEY_LENGTH) {
-            byte unlockCommand[] = NokeDefines.hexToBytes(this.offlineUnlockCmd);
+        String offlineUnlockCmd = getOfflineUnlockCmd();
+        String offlineKey = getOfflineKey();
+        if (offlineUnlockCmd.length() == NokeDefines.UNLOCK_COMMAND_LENGTH && offlineKey.length() == NokeDefines.OFFLINE_KEY_LENGTH) {
+            byte unlockCommand[] = NokeDefines.hexToBytes(offlineUnlockCmd);
 
             byte header[] = new byte[4];
             header[0] = unlockCommand[0];
@@ -345,7 +772,7 @@ public class NokeDevice {
 
             long unixTime = System.currentTimeMillis() / 1000L;
 
-            byte preSessionKey[] = NokeDefines.hexToBytes(this.offlineKey);
+            byte preSessionKey[] = NokeDefines.hexToBytes(offlineKey);
             byte sessionBytes[] = NokeDefines.hexToBytes(this.session);
 
             for (int x = 0; x < preSessionKey.length; x++) {
@@ -368,8 +795,10 @@ public class NokeDevice {
      * Checks for a valid offline key and offline unlock and unlocks the lock without a network connection
      */
     public String offlineUnlock() {
-        if (this.offlineUnlockCmd.length() == NokeDefines.UNLOCK_COMMAND_LENGTH && this.offlineKey.length() == NokeDefines.OFFLINE_KEY_LENGTH) {
-            byte unlockCommand[] = NokeDefines.hexToBytes(this.offlineUnlockCmd);
+        String offlineUnlockCmd = getOfflineUnlockCmd();
+        String offlineKey = getOfflineKey();
+        if (offlineUnlockCmd.length() == NokeDefines.UNLOCK_COMMAND_LENGTH && offlineKey.length() == NokeDefines.OFFLINE_KEY_LENGTH) {
+            byte unlockCommand[] = NokeDefines.hexToBytes(offlineUnlockCmd);
 
             byte header[] = new byte[4];
             header[0] = unlockCommand[0];
@@ -394,7 +823,7 @@ public class NokeDevice {
             cmddata[4] = timestamp[5];
             cmddata[5] = timestamp[4];
 
-            byte preSessionKey[] = NokeDefines.hexToBytes(this.offlineKey);
+            byte preSessionKey[] = NokeDefines.hexToBytes(offlineKey);
             byte sessionBytes[] = NokeDefines.hexToBytes(this.session);
 
             for (int x = 0; x < preSessionKey.length; x++) {
@@ -447,6 +876,9 @@ public class NokeDevice {
     }
 
     public String getHardwareVersion(){
+        if (this.descriptor != null) {
+            return this.descriptor.getHardwareVersion();
+        }
         return this.version.substring(0,2);
     }
 
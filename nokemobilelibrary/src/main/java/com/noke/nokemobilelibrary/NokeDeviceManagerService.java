@@ -10,12 +10,14 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -28,8 +30,13 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Message;
+import android.os.ParcelUuid;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
@@ -39,13 +46,16 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 
 /************************************************************************************************************************************************
@@ -87,14 +97,75 @@ public class NokeDeviceManagerService extends Service {
     private BluetoothLeScanner mBluetoothScanner;
     /**
      * Bluetooth LE scan callbacks. Scan results are reported using these callbacks
-     * Note: This newer callback introduced in Android 5.0 has been dismissed in favor of the LE callback in Android 4.4
+     * Note: This newer callback introduced in Android 5.0 is only used when the controller supports offloaded filtering
      */
     private ScanCallback mNewBluetoothScanCallback;
     /**
-     * Bluetooth LE scan callbacks.  Testing has shown that the older Android 4.4 bluetooth scanning is faster and more
-     * reliable.
+     * Bluetooth LE scan callbacks.  Used on Android 4.4 and on devices that don't support offloaded filtering
      */
     private BluetoothAdapter.LeScanCallback mOldBluetoothScanCallback;
+    /**
+     * Filters pushed down to the bluetooth controller by the Lollipop scanner.  Rebuilt when the device array changes.
+     * Guarded by mScanFilterLock together with mScanFiltersFirmware
+     */
+    private List<ScanFilter> mScanFilters;
+    /**
+     * Value of firmwareScanning when the scan filters were built
+     */
+    private boolean mScanFiltersFirmware;
+    /**
+     * Lock for the cached scan filters, which are invalidated from the caller's thread when devices are added or removed
+     */
+    private final Object mScanFilterLock = new Object();
+    /**
+     * Scan mode used by the Lollipop scanner
+     */
+    private int mScanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    /**
+     * Delay in milliseconds used for batching scan results in the controller. 0 delivers results immediately
+     */
+    private long mScanReportDelay = 0;
+    /**
+     * Manufacturer ID used for offloaded filtering when devices can't be filtered by MAC address. -1 disables
+     * manufacturer filtering (default)
+     */
+    private int mScanManufacturerId = -1;
+    /**
+     * A boolean indicating if the current scan was started with the Lollipop scanner
+     */
+    private volatile boolean mUsingOffloadedScanner;
+    /**
+     * A boolean indicating that the Lollipop scanner failed to start and the legacy scanner should be used instead
+     */
+    private volatile boolean mOffloadedScanFailed;
+    /**
+     * A boolean that forces the use of the legacy scanner
+     */
+    private volatile boolean mUseLegacyScanner;
+    /**
+     * Parser used for reading the broadcast data of advertisements. Reused for every advertisement
+     */
+    private final AdvertisementParser mAdvertisementParser = new AdvertisementParser();
+    /**
+     * Descriptors parsed from the device names, cached by MAC address
+     */
+    private final DeviceDescriptor.Cache mDeviceDescriptors = new DeviceDescriptor.Cache();
+    /**
+     * Counters and histograms for the scan pipeline
+     */
+    private final NokeScanTelemetry mScanTelemetry = new NokeScanTelemetry();
+    /**
+     * Counters and histograms for the GATT operation queues
+     */
+    private final NokeGattTelemetry mGattTelemetry = new NokeGattTelemetry();
+    /**
+     * Devices ranked by their smoothed signal strength
+     */
+    private final ProximityRanking mProximityRanking = new ProximityRanking(NokeDefines.PROXIMITY_MAX_AGE_DEFAULT);
+    /**
+     * Suppresses duplicate discovery events for devices that advertise several times a second
+     */
+    private final DiscoveryCoalescer mDiscoveryCoalescer = new DiscoveryCoalescer(NokeDefines.DISCOVERY_COALESCING_WINDOW_DEFAULT);
     /**
      * A boolean indicating if the bluetooth broadcast receiver has been registered
      */
@@ -102,12 +173,13 @@ public class NokeDeviceManagerService extends Service {
     /**
      * A boolean indicating if the service is currently scanning for Noke devices
      */
-    private boolean mScanning;
+    private volatile boolean mScanning;
     /**
      * Array containing responses from the lock bundled with the session, mac address, and upload time.
-     * These responses are uploaded directly to the Noke API via the Noke Go library
+     * These responses are uploaded directly to the Noke API via the Noke Go library.  Responses arrive on the GATT
+     * callback threads of several connections while uploads run on the I/O thread, so all access holds its lock
      */
-    ArrayList<JSONObject> globalUploadQueue;
+    final ArrayList<JSONObject> globalUploadQueue = new ArrayList<>();
     /**
      * A boolean that allows the device manager to discover devices that are not in the array
      */
@@ -115,7 +187,7 @@ public class NokeDeviceManagerService extends Service {
 
 
     /**
-     * Listener for Noke device events.  Triggered on various events including:
+     * Listeners for Noke device events.  Triggered on various events including:
      * <ul>
      * <li>Noke device discovery</li>
      * <li>Noke device begin connection</li>
@@ -127,7 +199,16 @@ public class NokeDeviceManagerService extends Service {
      * <p>
      * Also used for error handling
      */
+    private final NokeListenerHub mListenerHub = new NokeListenerHub();
+    /**
+     * Listener set with registerNokeListener
+     */
     private NokeServiceListener mGlobalNokeListener;
+    /**
+     * True to deliver the callbacks of mGlobalNokeListener on the main thread instead of the thread the event
+     * happened on
+     */
+    private boolean mCallbacksOnMainThread;
     /**
      * To conserve battery and be compliant with the Android SDK scanning is done by toggling on and off
      * this variable is the delay between turning off and on
@@ -142,10 +223,125 @@ public class NokeDeviceManagerService extends Service {
      */
     private int bluetoothScanDuration;
     /**
-     * A LinkedHashMap that stores a list of NokeDevices linked my MAC address.
-     * Only devices that are in this array will be discovered when scanning
+     * Default scan scheduler. Configured by the bluetooth delay and scan duration setters
+     */
+    private final AdaptiveScanScheduler mAdaptiveScanScheduler = new AdaptiveScanScheduler(
+            NokeDefines.BLUETOOTH_DEFAULT_SCAN_DURATION, NokeDefines.BLUETOOTH_DEFAULT_SCAN_TIME, NokeDefines.BLUETOOTH_DEFAULT_SCAN_TIME_BACKGROUND);
+    /**
+     * Scheduler that decides the length of scan windows and the pause between them
+     */
+    private NokeScanScheduler mScanScheduler = mAdaptiveScanScheduler;
+    /**
+     * Thread that runs the service's Bluetooth work: opening and closing connections, service discovery, scan
+     * toggles and the timer wheel.  Keeps radio work off the app's main thread, so jank in the app doesn't delay
+     * unlocks and the other way round
+     */
+    private final HandlerThread mBleThread = startBleThread();
+    /**
+     * Handler of the Bluetooth thread.  Work is sent as one of the BleHandler message types, which come from the
+     * message pool, instead of allocating a Handler and a Runnable each time
+     */
+    private final BleHandler mBleHandler = new BleHandler(mBleThread.getLooper());
+    /**
+     * Runs the uploads the service starts itself, so network calls never hold up the Bluetooth thread
+     */
+    private final ExecutorService mIoExecutor = Executors.newSingleThreadExecutor();
+    private final Runnable mUploadTask = new Runnable() {
+        @Override
+        public void run() {
+            uploadData();
+        }
+    };
+    /**
+     * Foreground state of the app when the current scan window started
+     */
+    private boolean mScanForeground;
+    /**
+     * Reused when checking if the app is in the foreground
+     */
+    private final ActivityManager.RunningAppProcessInfo mProcessInfo = new ActivityManager.RunningAppProcessInfo();
+    /**
+     * Timers for the devices, such as the device lost timeout.  Advanced by mTimerTick on the Bluetooth thread
+     */
+    private final TimerWheel mTimerWheel = new TimerWheel(NokeDefines.TIMER_WHEEL_TICK, SystemClock.elapsedRealtime());
+    /**
+     * Time that mTimerTick is posted for, or -1 if it isn't posted. Guarded by mTimerWheel
+     */
+    private long mTimerWakeup = -1;
+    private final Runnable mTimerTick = new Runnable() {
+        @Override
+        public void run() {
+            runTimers();
+        }
+    };
+    /**
+     * Time in milliseconds without advertisements before a device is lost. 0 disables the timeout
+     */
+    private long mDeviceLostTimeout = NokeDefines.DEVICE_LOST_TIMEOUT_DEFAULT;
+    /**
+     * Times a connection is retried after GATT error 133 or a link lost before the device was ready, for devices
+     * that don't set their own budget
+     */
+    private int mConnectionRetryBudget = NokeDefines.GATT_RETRY_BUDGET_DEFAULT;
+    /**
+     * Jitter for the connection retry delays, so locks that failed together don't retry together
+     */
+    private final Random mRetryRandom = new Random();
+    /**
+     * MTU requested when a sync starts. 0 disables the request
      */
-    public LinkedHashMap<String, NokeDevice> nokeDevices;
+    private int mSyncMtu = NokeDefines.SYNC_MTU_DEFAULT;
+    /**
+     * Commands kept in flight during a sync. 1 disables pipelining
+     */
+    private int mPipelineWindow = NokeDefines.PIPELINE_WINDOW_DEFAULT;
+    /**
+     * Registry of NokeDevices keyed by MAC address.
+     * Only devices that are in the registry will be discovered when scanning
+     */
+    private final NokeDeviceRegistry mNokeDevices = new NokeDeviceRegistry();
+    /**
+     * Devices keyed by their open GATT connection.  BluetoothGatt doesn't override equals, so lookups are by
+     * identity and don't need the device address
+     */
+    private final ConcurrentHashMap<BluetoothGatt, NokeDevice> mGattDevices = new ConcurrentHashMap<>();
+    /**
+     * Disconnects waiting for their STATE_DISCONNECTED callback, keyed by connection
+     */
+    private final ConcurrentHashMap<BluetoothGatt, Teardown> mTeardowns = new ConcurrentHashMap<>();
+    /**
+     * Decides when Android's service cache of a device is cleared
+     */
+    private final GattCachePolicy mGattCachePolicy = new GattCachePolicy(NokeDefines.SHOULD_FORCE_GATT_REFRESH);
+    /**
+     * Most recent completed unlock traces
+     */
+    private final NokeUnlockTrace.Buffer mUnlockTraces = new NokeUnlockTrace.Buffer(NokeDefines.UNLOCK_TRACE_BUFFER_SIZE);
+    private volatile NokeUnlockTrace.Listener mUnlockTraceListener;
+    /**
+     * Limits the number of open connections and queues the requests beyond the limit
+     */
+    private final ConnectionPool mConnectionPool = new ConnectionPool(new ConnectionPool.Connector() {
+        @Override
+        public boolean connect(NokeDevice noke) {
+            return connectToDevice(noke.bluetoothDevice, noke.rssi);
+        }
+
+        @Override
+        public void disconnect(NokeDevice noke) {
+            disconnectNoke(noke);
+        }
+
+        @Override
+        public boolean isIdle(NokeDevice noke) {
+            return !noke.pinned && noke.getState() == NokeConnectionState.CONNECTED && (noke.commands == null || noke.commands.isEmpty());
+        }
+
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    }, mGattTelemetry, NokeDefines.MAX_CONNECTIONS_DEFAULT);
 
     public Boolean firmwareScanning = false;
 
@@ -201,9 +397,6 @@ public class NokeDeviceManagerService extends Service {
         registerReceiver(bluetoothBroadcastReceiver, btFilter);
         mReceiverRegistered = true;
         mAllowAllDevices = false;
-        if (nokeDevices == null) {
-            nokeDevices = new LinkedHashMap<>();
-        }
         setBluetoothDelayDefault(NokeDefines.BLUETOOTH_DEFAULT_SCAN_TIME);
         setBluetoothDelayBackgroundDefault(NokeDefines.BLUETOOTH_DEFAULT_SCAN_TIME_BACKGROUND);
         setBluetoothScanDuration(NokeDefines.BLUETOOTH_DEFAULT_SCAN_DURATION);
@@ -213,24 +406,109 @@ public class NokeDeviceManagerService extends Service {
     }
 
     /**
-     * Sets the global listener for the service
+     * Sets the global listener for the service.  Replaces the listener set before, listeners added with
+     * addNokeListener are kept.  The global listener never misses a callback
      *
      * @param listener the listener implemented in the activity the registered the service
      */
     public void registerNokeListener(NokeServiceListener listener) {
-        this.mGlobalNokeListener = listener;
-        if (mBluetoothAdapter != null && mGlobalNokeListener != null) {
-            mGlobalNokeListener.onBluetoothStatusChanged(mBluetoothAdapter.getState());
+        if (mGlobalNokeListener != null) {
+            mListenerHub.remove(mGlobalNokeListener);
+        }
+        mGlobalNokeListener = listener;
+        if (listener != null) {
+            mListenerHub.add(listener, mCallbacksOnMainThread ? NokeListenerHub.mainThread() : NokeListenerHub.DIRECT,
+                    NokeDefines.LISTENER_QUEUE_CAPACITY, NokeListenerHub.Overflow.GROW);
+            if (mBluetoothAdapter != null) {
+                mListenerHub.onBluetoothStatusChanged(listener, mBluetoothAdapter.getState());
+            }
+        }
+    }
+
+    /**
+     * Sets the thread the global listener's callbacks are delivered on.  By default callbacks come on the library's
+     * Bluetooth and scan threads, so they never wait for the app's main thread.  Apps that update their views from
+     * the callbacks can have them posted to the main thread instead.  Applies to the registered listener and later
+     * ones
+     *
+     * @param onMainThread true to deliver callbacks on the main thread
+     */
+    public void setCallbacksOnMainThread(boolean onMainThread) {
+        mCallbacksOnMainThread = onMainThread;
+        if (mGlobalNokeListener != null) {
+            mListenerHub.add(mGlobalNokeListener, onMainThread ? NokeListenerHub.mainThread() : NokeListenerHub.DIRECT,
+                    NokeDefines.LISTENER_QUEUE_CAPACITY, NokeListenerHub.Overflow.GROW);
+        }
+    }
+
+    /**
+     * @return true if the global listener's callbacks are delivered on the main thread
+     */
+    public boolean isCallbacksOnMainThread() {
+        return mCallbacksOnMainThread;
+    }
+
+    /**
+     * Adds a listener next to the global one, such as for analytics or syncing.  Each listener has its own queue
+     * of callbacks, run on its executor, so a slow listener doesn't delay the others or the library
+     *
+     * @param listener the listener
+     * @param executor executor the callbacks run on: NokeListenerHub.DIRECT, NokeListenerHub.mainThread() or a
+     *                 background executor
+     * @param capacity callbacks that can be queued before the overflow policy applies
+     * @param overflow what to do with callbacks when the queue is full
+     */
+    public void addNokeListener(NokeServiceListener listener, Executor executor, int capacity, NokeListenerHub.Overflow overflow) {
+        mListenerHub.add(listener, executor, capacity, overflow);
+        if (mBluetoothAdapter != null) {
+            mListenerHub.onBluetoothStatusChanged(listener, mBluetoothAdapter.getState());
+        }
+    }
+
+    /**
+     * Adds a listener whose queued state callbacks are coalesced when it falls behind
+     *
+     * @param listener the listener
+     * @param executor executor the callbacks run on
+     */
+    public void addNokeListener(NokeServiceListener listener, Executor executor) {
+        addNokeListener(listener, executor, NokeDefines.LISTENER_QUEUE_CAPACITY, NokeListenerHub.Overflow.COALESCE);
+    }
+
+    /**
+     * Removes a listener added with addNokeListener or registerNokeListener.  Callbacks already queued for it are
+     * still delivered
+     *
+     * @param listener the listener
+     */
+    public void removeNokeListener(NokeServiceListener listener) {
+        mListenerHub.remove(listener);
+        if (listener == mGlobalNokeListener) {
+            mGlobalNokeListener = null;
         }
     }
 
     /**
-     * Used for getting the Global Noke Listener
+     * Returns the dispatch statistics of each listener: callbacks delivered, dropped and coalesced, and how long
+     * callbacks waited before running
      *
-     * @return the global listener
+     * @return statistics of each listener, in the order they were added
      */
-    NokeServiceListener getNokeListener() {
-        return mGlobalNokeListener;
+    public List<NokeListenerHub.Stats> getListenerStats() {
+        return mListenerHub.getStats();
+    }
+
+    public void resetListenerStats() {
+        mListenerHub.resetStats();
+    }
+
+    /**
+     * Used for getting the listeners
+     *
+     * @return the listener hub
+     */
+    NokeListenerHub getNokeListener() {
+        return mListenerHub;
     }
 
     @Override
@@ -245,14 +523,17 @@ public class NokeDeviceManagerService extends Service {
      * @param noke The noke device to add
      */
     public void addNokeDevice(NokeDevice noke) {
-        if (nokeDevices == null) {
-            nokeDevices = new LinkedHashMap<>();
-        }
-
-        NokeDevice newNoke = nokeDevices.get(noke.getMac());
-        if (newNoke == null) {
+        NokeDevice existing = mNokeDevices.get(noke.getMac());
+        if (existing == null) {
             noke.mService = this;
-            nokeDevices.put(noke.getMac(), noke);
+            existing = mNokeDevices.putIfAbsent(noke);
+            if (existing == null) {
+                invalidateScanFilters();
+            }
+        }
+        if (existing != null) {
+            //The app now manages the device, so it is no longer removed when it is lost
+            existing.autoDiscovered = false;
         }
     }
 
@@ -262,9 +543,7 @@ public class NokeDeviceManagerService extends Service {
      * @param noke The noke device to remove
      */
     public void removeNokeDevice(NokeDevice noke) {
-        if (nokeDevices != null) {
-            nokeDevices.remove(noke.getMac());
-        }
+        removeNokeDevice(noke.getMac());
     }
 
     /**
@@ -273,18 +552,44 @@ public class NokeDeviceManagerService extends Service {
      * @param mac The mac address of noke device to remove
      */
     public void removeNokeDevice(String mac) {
-        if (nokeDevices != null) {
-            nokeDevices.remove(mac);
+        NokeDevice noke = mNokeDevices.remove(mac);
+        if (noke != null) {
+            stopTrackingDevice(noke);
+        }
+        long macValue = noke != null ? noke.getMacValue() : MacAddress.parse(mac);
+        mDiscoveryCoalescer.reset(macValue);
+        mDeviceDescriptors.remove(macValue);
+        invalidateScanFilters();
+    }
+
+    /**
+     * Stops tracking the signal strength and advertisements of a device that has been removed
+     *
+     * @param noke the removed device
+     */
+    private void stopTrackingDevice(NokeDevice noke) {
+        if (noke.proximityEntry != null) {
+            mProximityRanking.remove(noke.proximityEntry);
         }
+        if (noke.lostTimeout != null) {
+            mTimerWheel.cancel(noke.lostTimeout);
+        }
+        mConnectionPool.cancel(noke);
+        cancelConnectionRetry(noke);
     }
 
     /**
      * Removes all devices from the noke device array
      */
     public void removeAllNoke() {
-        if (nokeDevices != null) {
-            nokeDevices.clear();
+        for (NokeDevice noke : mNokeDevices.snapshot()) {
+            stopTrackingDevice(noke);
         }
+        mNokeDevices.clear();
+        mProximityRanking.clear();
+        mDiscoveryCoalescer.resetAll();
+        mDeviceDescriptors.clear();
+        invalidateScanFilters();
     }
 
     /**
@@ -293,24 +598,85 @@ public class NokeDeviceManagerService extends Service {
      * @return a count of devices in the device manager
      */
     public int getNokeCount() {
-        if (nokeDevices != null) {
-            return nokeDevices.size();
-        } else {
-            return 0;
-        }
+        return mNokeDevices.size();
     }
 
     /**
-     * Returns an array of current noke devices that have been added to the device manager
+     * Returns a snapshot of the scan telemetry: advertisements received, how many passed each filter, how often
+     * locks advertise and how long it takes to find the first lock after a scan starts
      *
-     * @return an array of noke devices
+     * @return snapshot of the scan counters and histograms
      */
-    public ArrayList<NokeDevice> getAllNoke() {
-        if (nokeDevices != null) {
-            return new ArrayList<>(nokeDevices.values());
-        } else {
-            return new ArrayList<>();
-        }
+    public NokeScanTelemetry.Snapshot getScanTelemetry() {
+        return mScanTelemetry.snapshot();
+    }
+
+    public void resetScanTelemetry() {
+        mScanTelemetry.reset();
+    }
+
+    /**
+     * Returns a snapshot of the GATT telemetry: operations queued, retried and timed out, queue depth, and how long
+     * operations wait for their connection and for the lock to answer
+     *
+     * @return snapshot of the GATT counters and histograms
+     */
+    public NokeGattTelemetry.Snapshot getGattTelemetry() {
+        return mGattTelemetry.snapshot();
+    }
+
+    public void resetGattTelemetry() {
+        mGattTelemetry.reset();
+    }
+
+    /**
+     * Keeps an advertising interval histogram for each lock, readable from NokeDevice#getAdvertisingInterval.
+     * Off by default since it uses memory for every lock in range
+     *
+     * @param enabled true to keep a histogram for each lock
+     */
+    public void setPerDeviceScanTelemetry(boolean enabled) {
+        mScanTelemetry.setPerDevice(enabled);
+    }
+
+    /**
+     * Returns the devices with the strongest smoothed signal, strongest first.  Only devices that have advertised
+     * recently are included
+     *
+     * @param count maximum number of devices to return
+     * @return list of the nearest noke devices
+     */
+    public List<NokeDevice> getNearestNoke(int count) {
+        return mProximityRanking.nearest(count, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the device with the strongest smoothed signal
+     *
+     * @return the nearest noke device, or null if no devices have advertised recently
+     */
+    public NokeDevice getNearestNoke() {
+        List<NokeDevice> nearest = mProximityRanking.nearest(1, System.currentTimeMillis());
+        return nearest.isEmpty() ? null : nearest.get(0);
+    }
+
+    /**
+     * Returns the noke devices that have been added to the device manager, in the order they were added.
+     * The list is an immutable snapshot that is shared until a device is added or removed
+     *
+     * @return a list of noke devices
+     */
+    public List<NokeDevice> getAllNoke() {
+        return mNokeDevices.snapshot();
+    }
+
+    /**
+     * Returns the registry holding the noke devices.  Can be used to listen for devices being added and removed
+     *
+     * @return the device registry
+     */
+    public NokeDeviceRegistry getDeviceRegistry() {
+        return mNokeDevices;
     }
 
     @Override
@@ -320,6 +686,9 @@ public class NokeDeviceManagerService extends Service {
             unregisterReceiver(bluetoothBroadcastReceiver);
             mReceiverRegistered = false;
         }
+        mBleHandler.removeCallbacksAndMessages(null);
+        mBleThread.quitSafely();
+        mIoExecutor.shutdown();
         //TODO Handle restarting service
     }
 
@@ -336,8 +705,8 @@ public class NokeDeviceManagerService extends Service {
             }
         }
         mBluetoothAdapter = mBluetoothManager.getAdapter();
-        if (mBluetoothAdapter != null && mGlobalNokeListener != null) {
-            mGlobalNokeListener.onBluetoothStatusChanged(mBluetoothAdapter.getState());
+        if (mBluetoothAdapter != null) {
+            mListenerHub.onBluetoothStatusChanged(mBluetoothAdapter.getState());
         }
         return mBluetoothAdapter != null;
     }
@@ -355,7 +724,7 @@ public class NokeDeviceManagerService extends Service {
                     gps_enabled = lm.isProviderEnabled(LocationManager.GPS_PROVIDER);
                 }
             } catch (Exception e) {
-                mGlobalNokeListener.onError(null, NokeMobileError.ERROR_GPS_ENABLED, "GPS is not enabled");
+                mListenerHub.onError(null, NokeMobileError.ERROR_GPS_ENABLED, "GPS is not enabled");
             }
 
             try {
@@ -363,17 +732,17 @@ public class NokeDeviceManagerService extends Service {
                     network_enabled = lm.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
                 }
             } catch (Exception e) {
-                mGlobalNokeListener.onError(null, NokeMobileError.ERROR_NETWORK_ENABLED, "Network is not enabled");
+                mListenerHub.onError(null, NokeMobileError.ERROR_NETWORK_ENABLED, "Network is not enabled");
             }
 
             int permissionCheck = ContextCompat.checkSelfPermission(getApplicationContext(), Manifest.permission.ACCESS_COARSE_LOCATION);
             if (!gps_enabled && !network_enabled) {
-                mGlobalNokeListener.onError(null, NokeMobileError.ERROR_LOCATION_SERVICES_DISABLED, "Location services are disabled");
+                mListenerHub.onError(null, NokeMobileError.ERROR_LOCATION_SERVICES_DISABLED, "Location services are disabled");
             } else if (permissionCheck != PackageManager.PERMISSION_GRANTED) {
-                mGlobalNokeListener.onError(null, NokeMobileError.ERROR_LOCATION_SERVICES_DISABLED, "Location services are disabled");
+                mListenerHub.onError(null, NokeMobileError.ERROR_LOCATION_SERVICES_DISABLED, "Location services are disabled");
             } else if (mBluetoothAdapter != null) {
                 if (!mBluetoothAdapter.isEnabled()) {
-                    mGlobalNokeListener.onError(null, NokeMobileError.ERROR_BLUETOOTH_DISABLED, "Bluetooth is disabled");
+                    mListenerHub.onError(null, NokeMobileError.ERROR_BLUETOOTH_DISABLED, "Bluetooth is disabled");
                 } else {
                     initiateBackgroundBLEScan();
                 }
@@ -383,13 +752,13 @@ public class NokeDeviceManagerService extends Service {
                     mBluetoothAdapter = mBluetoothManager.getAdapter();
                 }
                 if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
-                    mGlobalNokeListener.onError(null, NokeMobileError.ERROR_BLUETOOTH_DISABLED, "Bluetooth is disabled");
+                    mListenerHub.onError(null, NokeMobileError.ERROR_BLUETOOTH_DISABLED, "Bluetooth is disabled");
                 } else {
                     initiateBackgroundBLEScan();
                 }
             }
         } catch (NullPointerException e) {
-            mGlobalNokeListener.onError(null, NokeMobileError.ERROR_BLUETOOTH_SCANNING, "Bluetooth scanning is not supported");
+            mListenerHub.onError(null, NokeMobileError.ERROR_BLUETOOTH_SCANNING, "Bluetooth scanning is not supported");
         }
     }
 
@@ -409,29 +778,41 @@ public class NokeDeviceManagerService extends Service {
     }
 
     /**
-     * bluetoothDelay in milliseconds
+     * Starts background scanning. Will not stop until cancelled.  The length of the scan window and the pause
+     * between scans are decided by the scan scheduler.
      */
-    int bluetoothDelay;
+    private void turnOnBLEScan() {
+        long now = SystemClock.elapsedRealtime();
+        boolean foreground = isServiceRunningInForeground();
+        boolean connectionPending = isConnectionPending();
+        mScanForeground = foreground;
+        mScanScheduler.onScanStarted(now);
+        mScanTelemetry.onScanStarted(now);
+        startLeScanning();
+        mBleHandler.postDelayed(mScanWindowEnd, mScanScheduler.getScanWindow(now, foreground, connectionPending));
+    }
 
     /**
-     * Starts background scanning. Will not stop until cancelled
+     * Ends the current scan window
      */
-    private void turnOnBLEScan() {
-        startLeScanning();
-        final Handler refreshScan = new Handler(Looper.getMainLooper());
-        refreshScan.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                turnOffBLEScan();
-                if (isServiceRunningInForeground()) {
-                    bluetoothDelay = bluetoothDelayDefault;
-                } else {
-                    bluetoothDelay = bluetoothDelayBackgroundDefault;
-                }
+    private final Runnable mScanWindowEnd = new Runnable() {
+        @Override
+        public void run() {
+            turnOffBLEScan();
+        }
+    };
 
-            }
-        }, bluetoothScanDuration);
-    }
+    /**
+     * Starts the next scan window after the pause
+     */
+    private final Runnable mScanPauseEnd = new Runnable() {
+        @Override
+        public void run() {
+            scanLoopOn = true;
+            scanLoopOff = false;
+            turnOnBLEScan();
+        }
+    };
 
     /**
      * Sets the default delay of scanning in the foreground.  Currently the default is 10 milliseconds
@@ -440,15 +821,17 @@ public class NokeDeviceManagerService extends Service {
      */
     public void setBluetoothDelayDefault(int delay) {
         bluetoothDelayDefault = delay;
+        mAdaptiveScanScheduler.setForegroundPause(delay);
     }
 
     /**
-     * Sets the default delay of scanning in the background.  Currently the default is 10 milliseconds
+     * Sets the default delay of scanning in the background.  Currently the default is 2000 milliseconds
      *
      * @param delay time in milliseconds
      */
     public void setBluetoothDelayBackgroundDefault(int delay) {
         bluetoothDelayBackgroundDefault = delay;
+        mAdaptiveScanScheduler.setBackgroundPause(delay);
     }
 
     /**
@@ -458,6 +841,32 @@ public class NokeDeviceManagerService extends Service {
      */
     public void setBluetoothScanDuration(int duration) {
         bluetoothScanDuration = duration;
+        mAdaptiveScanScheduler.setScanDuration(duration);
+    }
+
+    /**
+     * Sets the scheduler that decides the length of scan windows and the pause between them.  By default the service
+     * uses a scheduler that adapts to the discovery rate, foreground state and pending connections.
+     * Pass null to go back to the default scheduler.
+     *
+     * @param scheduler the scan scheduler
+     */
+    public void setScanScheduler(NokeScanScheduler scheduler) {
+        mScanScheduler = scheduler != null ? scheduler : mAdaptiveScanScheduler;
+    }
+
+    /**
+     * @return fraction of time the service spends scanning, between 0 and 1
+     */
+    public float getScanDutyCycle() {
+        return mScanScheduler.getDutyCycle();
+    }
+
+    /**
+     * @return expected time in milliseconds for a Noke device that comes into range to be discovered
+     */
+    public long getPredictedDiscoveryLatency() {
+        return mScanScheduler.getPredictedDiscoveryLatency();
     }
 
     /**
@@ -466,45 +875,57 @@ public class NokeDeviceManagerService extends Service {
     private void turnOffBLEScan() {
         stopLeScanning();
         if (backgroundScanning) {
-            final Handler refreshScan = new Handler();
-            refreshScan.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    scanLoopOn = true;
-                    scanLoopOff = false;
-                    turnOnBLEScan();
-                }
-            }, bluetoothDelay);
+            long pause = mScanScheduler.getScanPause(SystemClock.elapsedRealtime(), mScanForeground, isConnectionPending());
+            mBleHandler.postDelayed(mScanPauseEnd, pause);
+        }
+    }
+
+    /**
+     * Checks if a connection to a Noke device is in progress
+     *
+     * @return true if any device is connecting
+     */
+    private boolean isConnectionPending() {
+        for (NokeDevice noke : mNokeDevices.snapshot()) {
+            NokeConnectionState state = noke.getState();
+            if (state == NokeConnectionState.CONNECTING || state == NokeConnectionState.DISCOVERING_SERVICES) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
      * Stops scanning for Noke devices
      */
     public void stopScanning() {
+        mBleHandler.removeCallbacks(mScanWindowEnd);
+        mBleHandler.removeCallbacks(mScanPauseEnd);
         stopLeScanning();
         backgroundScanning = false;
     }
 
     /**
-     * Starts BLE scanning using the Bluetooth Adapter.
+     * Starts BLE scanning using the Bluetooth Adapter.  On Lollipop and higher the filters are pushed down to the
+     * bluetooth controller so that advertisements from other devices never wake up the app.  The older scanning API
+     * is only used when the controller doesn't support offloaded filtering.
      */
     @SuppressWarnings("deprecation")
     private void startLeScanning() {
         if (!mScanning) {
             mScanning = true;
             if (mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()) {
-                if (Build.VERSION.SDK_INT >= 100) {
-                    //SCANNING WITH THE OLD APIS IS MORE RELIABLE. HENCE THE 100
-                    initNewBluetoothCallback();
-                    mBluetoothScanner = mBluetoothAdapter.getBluetoothLeScanner();
-                    mBluetoothScanner.startScan(mNewBluetoothScanCallback);
+                if (shouldUseOffloadedScanning()) {
+                    startOffloadedScanning();
                 } else {
-                    initOldBluetoothCallback();
+                    mUsingOffloadedScanner = false;
+                    if (mOldBluetoothScanCallback == null) {
+                        initOldBluetoothCallback();
+                    }
                     mBluetoothAdapter.startLeScan(mOldBluetoothScanCallback);
                 }
             } else {
-                mGlobalNokeListener.onError(null, NokeMobileError.ERROR_BLUETOOTH_SCANNING, "Bluetooth scanning is not supported");
+                mListenerHub.onError(null, NokeMobileError.ERROR_BLUETOOTH_SCANNING, "Bluetooth scanning is not supported");
             }
         }
     }
@@ -517,8 +938,8 @@ public class NokeDeviceManagerService extends Service {
         mScanning = false;
         if (mBluetoothAdapter != null) {
             if (mBluetoothAdapter.isEnabled()) {
-                if (Build.VERSION.SDK_INT >= 100) {
-                    mBluetoothScanner.stopScan(mNewBluetoothScanCallback);
+                if (mUsingOffloadedScanner) {
+                    stopOffloadedScanning();
                 } else {
                     //DEPRECATED. INCLUDING FOR 4.0 SUPPORT
                     if (mOldBluetoothScanCallback != null) {
@@ -530,137 +951,930 @@ public class NokeDeviceManagerService extends Service {
     }
 
     /**
-     * Initializes Bluetooth Scanning Callback for Lollipop and higher OS
+     * Checks if the scanner should use the Lollipop scanning APIs.  These are only used if the bluetooth controller
+     * supports offloaded filtering and the offloaded scanner hasn't failed to start during this session.
+     *
+     * @return true if the offloaded scanner should be used
+     */
+    private boolean shouldUseOffloadedScanning() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && !mUseLegacyScanner
+                && !mOffloadedScanFailed
+                && mBluetoothAdapter.isOffloadedFilteringSupported();
+    }
+
+    /**
+     * Starts scanning with the BluetoothLeScanner using the current scan filters and settings
      */
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private void initNewBluetoothCallback() {
-        mNewBluetoothScanCallback = new ScanCallback() {
-            @Override
-            public void onScanResult(int callbackType, ScanResult result) {
-                super.onScanResult(callbackType, result);
+    private void startOffloadedScanning() {
+        mBluetoothScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (mBluetoothScanner == null) {
+            mScanning = false;
+            mListenerHub.onError(null, NokeMobileError.ERROR_BLUETOOTH_SCANNING, "Bluetooth scanning is not supported");
+            return;
+        }
+        if (mNewBluetoothScanCallback == null) {
+            initNewBluetoothCallback();
+        }
 
-//                noke.setLastSeen(new Date().getTime());
-                //TODO NEW BLUETOOTH SCAN CALLBACK
-            }
-        };
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(mScanMode);
+        if (mScanReportDelay > 0 && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(mScanReportDelay);
+        }
+
+        mUsingOffloadedScanner = true;
+        mBluetoothScanner.startScan(getScanFilters(), settings.build(), mNewBluetoothScanCallback);
     }
 
     /**
-     * Sets mAllowDevices boolean
+     * Stops the BluetoothLeScanner.  Results that are being held by the controller for batching are flushed first, but
+     * the flush is asynchronous and results that arrive after the scan has stopped may still be dropped.
      */
-    @SuppressWarnings("SameParameterValue")
-    public void setAllowAllDevices(boolean allow) {
-        mAllowAllDevices = allow;
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void stopOffloadedScanning() {
+        mUsingOffloadedScanner = false;
+        if (mBluetoothScanner != null && mNewBluetoothScanCallback != null) {
+            if (mScanReportDelay > 0) {
+                mBluetoothScanner.flushPendingScanResults(mNewBluetoothScanCallback);
+            }
+            mBluetoothScanner.stopScan(mNewBluetoothScanCallback);
+        }
     }
 
-
     /**
-     * Initializes Bluetooth Scanning Callback for KitKat OS
+     * Builds the list of filters pushed down to the bluetooth controller.  Advertisements are only filtered in the
+     * controller when every device being scanned for is covered: when scanning for devices in the device array and
+     * each of them fits in a MAC address filter.  Otherwise the scan is unfiltered, unless a manufacturer ID has
+     * been set with {@link #setScanManufacturerId}.  An empty list means no offloaded filtering and all results are
+     * filtered in {@link #onNokeAdvertisement}.
+     *
+     * @return list of scan filters
      */
-    private void initOldBluetoothCallback() {
-        mOldBluetoothScanCallback = new BluetoothAdapter.LeScanCallback() {
-            @Override
-            public void onLeScan(final BluetoothDevice bluetoothDevice, final int rssi, byte[] scanRecord) {
-                String btDeviceName = bluetoothDevice.getName();
-                if (btDeviceName != null && btDeviceName.contains(NokeDefines.NOKE_DEVICE_IDENTIFER_STRING) || (btDeviceName != null && btDeviceName.toLowerCase().contains(NokeDefines.NOKE_FIRMWARE_DEVICE_IDENTIFIER_STRING) && firmwareScanning)) {
-                    NokeDevice noke = nokeDevices.get(bluetoothDevice.getAddress());
-                    if (noke != null || mAllowAllDevices) {
-                        if (noke == null) {
-                            noke = new NokeDevice(btDeviceName, bluetoothDevice.getAddress());
-                        }
-                        noke.bluetoothDevice = bluetoothDevice;
-                        noke.setLastSeen(new Date().getTime());
-                        byte[] broadcastData;
-                        String nameVersion;
-
-                        if (btDeviceName.contains("FOB") && !btDeviceName.contains("NFOB")) {
-                            nameVersion = btDeviceName.substring(3, 5);
-                        } else {
-                            nameVersion = btDeviceName.substring(4, 6);
-                        }
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private List<ScanFilter> getScanFilters() {
+        synchronized (mScanFilterLock) {
+            if (mScanFilters == null || mScanFiltersFirmware != firmwareScanning) {
+                mScanFilters = buildScanFilters();
+                mScanFiltersFirmware = firmwareScanning;
+            }
+            return mScanFilters;
+        }
+    }
 
-                        if (!nameVersion.equals("06") && !nameVersion.equals("04")) {
-                            byte[] getdata = getManufacturerData(scanRecord);
-                            broadcastData = new byte[]{getdata[2], getdata[3], getdata[4]};
-                            String version = noke.getVersion(broadcastData, btDeviceName);
-                            noke.setVersion(version);
-
-                            int lockState = NokeDefines.NOKE_LOCK_STATE_LOCKED;
-                            if (noke.getHardwareVersion().equals(NokeDefines.NOKE_HW_TYPE_HD_LOCK)) {
-                                if (Integer.parseInt(noke.getSoftwareVersion().substring(2)) >= 13) {
-                                    int lockStateBroadcast = (broadcastData[0] >> 5) & 0x01;
-                                    int lockStateBroadcast2 = (broadcastData[0] >> 6) & 0x01;
-                                    lockState = lockStateBroadcast + lockStateBroadcast2;
-                                } else {
-                                    lockState = NokeDefines.NOKE_LOCK_STATE_UNKNOWN;
-                                }
-                            }
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private List<ScanFilter> buildScanFilters() {
+
+        List<ScanFilter> filters = new ArrayList<>();
+        if (!mAllowAllDevices && !firmwareScanning && !mNokeDevices.isEmpty()
+                && mNokeDevices.size() <= NokeDefines.BLUETOOTH_MAX_OFFLOADED_FILTERS
+                && addAddressFilters(filters)) {
+            return filters;
+        }
+
+        filters.clear();
+        if (mScanManufacturerId >= 0) {
+            filters.add(new ScanFilter.Builder().setManufacturerData(mScanManufacturerId, new byte[0]).build());
+            if (firmwareScanning) {
+                filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(NokeDefines.FIRMWARE_RX_SERVICE_UUID)).build());
+            }
+            if (mNokeDevices.size() <= NokeDefines.BLUETOOTH_MAX_OFFLOADED_FILTERS - filters.size()) {
+                addAddressFilters(filters);
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Adds a MAC address filter for each device in the device array
+     *
+     * @return false if a device has an address the controller can't filter on
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean addAddressFilters(List<ScanFilter> filters) {
+        boolean all = true;
+        for (NokeDevice noke : mNokeDevices.snapshot()) {
+            if (BluetoothAdapter.checkBluetoothAddress(noke.getMac())) {
+                filters.add(new ScanFilter.Builder().setDeviceAddress(noke.getMac()).build());
+            } else {
+                all = false;
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Clears the cached scan filters so they are rebuilt the next time scanning starts
+     */
+    private void invalidateScanFilters() {
+        synchronized (mScanFilterLock) {
+            mScanFilters = null;
+        }
+    }
+
+    /**
+     * Initializes Bluetooth Scanning Callback for Lollipop and higher OS
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void initNewBluetoothCallback() {
+        mNewBluetoothScanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                onScanResultReceived(result);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (int i = 0; i < results.size(); i++) {
+                    onScanResultReceived(results.get(i));
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                if (errorCode == SCAN_FAILED_ALREADY_STARTED) {
+                    return;
+                }
+                Log.e(TAG, "Offloaded scan failed: " + errorCode + ". Falling back to legacy scanning");
+                mOffloadedScanFailed = true;
+                mUsingOffloadedScanner = false;
+                mScanning = false;
+                startLeScanning();
+            }
+        };
+    }
+
+    /**
+     * Passes a scan result from the Lollipop scanner to the common advertisement handler
+     *
+     * @param result scan result from the BluetoothLeScanner
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void onScanResultReceived(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        if (record != null) {
+            onNokeAdvertisement(result.getDevice(), result.getRssi(), record.getBytes());
+        }
+    }
+
+    /**
+     * Sets the scan mode used by the Lollipop scanner.  Options can be found in {@link ScanSettings}:
+     * <ul>
+     * <li>SCAN_MODE_LOW_POWER</li>
+     * <li>SCAN_MODE_BALANCED</li>
+     * <li>SCAN_MODE_LOW_LATENCY (default)</li>
+     * </ul>
+     *
+     * @param scanMode the scan mode
+     */
+    public void setScanMode(int scanMode) {
+        mScanMode = scanMode;
+    }
+
+    /**
+     * Sets the report delay used by the Lollipop scanner.  When greater than zero and the controller supports it,
+     * scan results are batched in the controller and delivered together.  This reduces the amount of times the app
+     * is woken up at the cost of discovery latency. Default is 0 (results delivered immediately)
+     *
+     * @param reportDelay delay in milliseconds
+     */
+    public void setScanReportDelay(long reportDelay) {
+        mScanReportDelay = reportDelay;
+    }
+
+    /**
+     * Sets the bluetooth manufacturer ID used to filter advertisements in the controller when devices can't be
+     * filtered by MAC address, such as when scanning for all devices or for more devices than the controller can
+     * track.  Locks that don't broadcast manufacturer data, such as the first generation 2P padlock, are only found
+     * when their address fits in the remaining filters.  Set to -1 to disable manufacturer filtering (default)
+     *
+     * @param manufacturerId the company identifier in the manufacturer specific data
+     */
+    public void setScanManufacturerId(int manufacturerId) {
+        mScanManufacturerId = manufacturerId;
+        invalidateScanFilters();
+    }
+
+    /**
+     * Forces the service to use the Android 4.4 scanning APIs even when offloaded scanning is supported
+     *
+     * @param useLegacyScanner true to use the legacy scanner
+     */
+    public void setUseLegacyScanner(boolean useLegacyScanner) {
+        mUseLegacyScanner = useLegacyScanner;
+    }
+
+    /**
+     * Sets the window used for coalescing discovery events.  After a device is discovered, further advertisements
+     * from the device don't trigger onNokeDiscovered until the window has passed, unless the lock state, firmware
+     * version or signal strength of the device changes.  Set to 0 to receive an event for every advertisement.
+     * Default is 1000 milliseconds
+     *
+     * @param window time in milliseconds
+     */
+    public void setDiscoveryCoalescingWindow(long window) {
+        mDiscoveryCoalescer.setWindow(window);
+    }
+
+    /**
+     * @return number of discovery events sent to the listener
+     */
+    public long getDiscoveryEventsEmitted() {
+        return mDiscoveryCoalescer.getEmittedCount();
+    }
+
+    /**
+     * @return number of discovery events suppressed because nothing changed since the last event
+     */
+    public long getDiscoveryEventsCoalesced() {
+        return mDiscoveryCoalescer.getCoalescedCount();
+    }
+
+    /**
+     * Sets mAllowDevices boolean
+     */
+    @SuppressWarnings("SameParameterValue")
+    public void setAllowAllDevices(boolean allow) {
+        mAllowAllDevices = allow;
+        invalidateScanFilters();
+    }
+
+
+    /**
+     * Initializes Bluetooth Scanning Callback for KitKat OS
+     */
+    private void initOldBluetoothCallback() {
+        mOldBluetoothScanCallback = new BluetoothAdapter.LeScanCallback() {
+            @Override
+            public void onLeScan(final BluetoothDevice bluetoothDevice, final int rssi, byte[] scanRecord) {
+                onNokeAdvertisement(bluetoothDevice, rssi, scanRecord);
+            }
+        };
+    }
+
+    /**
+     * Handles advertisements from both the KitKat and Lollipop scanners. Parses the broadcast data and notifies
+     * the listener when a Noke device is discovered
+     *
+     * @param bluetoothDevice the device that sent the advertisement
+     * @param rssi            signal strength of the advertisement
+     * @param scanRecord      raw advertisement data
+     */
+    private void onNokeAdvertisement(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+        AdvertisementParser parser = mAdvertisementParser;
+        parser.parse(scanRecord);
+        mScanTelemetry.onAdvertisement();
+
+        //Reject other devices by their advertised name before doing any other work
+        if (parser.hasLocalName() && !parser.localNameContainsIgnoreCase(NokeDefines.NOKE_DEVICE_IDENTIFER_STRING)
+                && !(firmwareScanning && parser.localNameContainsIgnoreCase(NokeDefines.NOKE_FIRMWARE_DEVICE_IDENTIFIER_STRING))) {
+            return;
+        }
+
+        String mac = bluetoothDevice.getAddress();
+        long macValue = MacAddress.parse(mac);
+        if (macValue == MacAddress.INVALID) {
+            return;
+        }
+        DeviceDescriptor descriptor = mDeviceDescriptors.get(macValue, parser);
+        boolean parsed = descriptor == null;
+        if (parsed) {
+            String btDeviceName = parser.hasLocalName() ? parser.getLocalName() : bluetoothDevice.getName();
+            if (btDeviceName == null) {
+                return;
+            }
+            descriptor = mDeviceDescriptors.get(macValue, btDeviceName, parser.getFirmwareMajor(), parser.getFirmwareMinor());
+        }
+
+        if (descriptor.isNoke() || (descriptor.isFirmwareName() && firmwareScanning)) {
+            mScanTelemetry.onNokeAdvertisement();
+            NokeDevice noke = mNokeDevices.get(macValue);
+            if (noke != null || mAllowAllDevices) {
+                if (noke == null) {
+                    noke = new NokeDevice(descriptor.getName(), mac);
+                    noke.autoDiscovered = true;
+                }
+                noke.bluetoothDevice = bluetoothDevice;
+                noke.descriptor = descriptor;
+                long now = System.currentTimeMillis();
+                long previousSeen = noke.getLastSeen();
+                noke.setLastSeen(now);
+                long elapsed = SystemClock.elapsedRealtime();
+                mScanScheduler.onDeviceDiscovered(elapsed);
+                mScanTelemetry.onAllowlistHit(noke, previousSeen > 0 ? now - previousSeen : -1, elapsed);
+
+                if (descriptor.broadcastsVersion()) {
+                    noke.setVersion(descriptor.getVersion());
+
+                    int lockState = NokeDefines.NOKE_LOCK_STATE_LOCKED;
+                    if (descriptor.getHardwareType() == DeviceDescriptor.HardwareType.HD_LOCK) {
+                        if (descriptor.broadcastsLockState()) {
+                            lockState = parser.getLockState();
+                        } else {
+                            lockState = NokeDefines.NOKE_LOCK_STATE_UNKNOWN;
+                        }
+                    }
+
+                    //Connected devices keep their state; only a disconnected device becomes discovered
+                    compareAndMoveConnectionState(noke, NokeConnectionState.DISCONNECTED, NokeConnectionState.DISCOVERED);
+
+                    NokeDevice existing = mNokeDevices.putIfAbsent(noke);
+                    if (existing != null) {
+                        noke = existing;
+                    }
+                    noke.lockState = lockState;
+                    if (noke.firstAdvertisementAt == 0) {
+                        noke.firstAdvertisementAt = elapsed;
+                    }
+                    trackDeviceLost(noke);
+                    if (parsed) {
+                        //Only devices that are tracked, and so get removed or lost again, are cached
+                        mDeviceDescriptors.put(macValue, descriptor);
+                    }
+                    float smoothedRssi = noke.updateRssi(rssi, noke.getLastSeen());
+                    mProximityRanking.update(noke.proximityEntry, smoothedRssi);
+                    //removeNokeDevice takes the device out of the registry before the ranking, so if it was removed
+                    //while this advertisement was handled, either it unlinks the entry after this update or this
+                    //check sees the device gone
+                    if (mNokeDevices.get(macValue) != noke) {
+                        mProximityRanking.remove(noke.proximityEntry);
+                    }
+                    if (mDiscoveryCoalescer.shouldEmit(macValue, lockState, descriptor.getFirmwareMajor(), descriptor.getFirmwareMinor(), Math.round(smoothedRssi), noke.getLastSeen())) {
+                        mScanTelemetry.onDiscovery();
+                        mListenerHub.onNokeDiscovered(noke);
+                    }
+                } else {
+                    mScanTelemetry.onVersionFilterDrop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the descriptor of a device, parsing it from the bluetooth name if the device hasn't been scanned
+     *
+     * @param noke the noke device
+     * @param gatt gatt of the device
+     * @return the device descriptor
+     */
+    private DeviceDescriptor getDescriptor(NokeDevice noke, BluetoothGatt gatt) {
+        DeviceDescriptor descriptor = noke.descriptor;
+        if (descriptor == null) {
+            String name = gatt.getDevice().getName();
+            descriptor = mDeviceDescriptors.get(noke.getMacValue(), name != null ? name : "", 0, 0);
+            mDeviceDescriptors.put(noke.getMacValue(), descriptor);
+            noke.descriptor = descriptor;
+        }
+        return descriptor;
+    }
+
+    /**
+     * Starts connection to Noke device
+     *
+     * @param noke - The device to which to connect
+     */
+    public void connectToNoke(NokeDevice noke) {
+        connectToNoke(noke, NokeDefines.CONNECTION_PRIORITY_DEFAULT);
+    }
+
+    /**
+     * Starts connection to Noke device once a connection slot is free.  Requests waiting for a slot connect in order
+     * of priority and then signal strength, and a request can disconnect a connected device with a lower priority
+     * that has no commands to send
+     *
+     * @param noke     - The device to which to connect
+     * @param priority - Higher priorities connect first. connectToNoke(NokeDevice) uses 0
+     */
+    public void connectToNoke(NokeDevice noke, int priority) {
+        startUnlockTrace(noke);
+        if (noke.pinned && resumePinned(noke)) {
+            return;
+        }
+        mConnectionPool.request(noke, priority, noke.getSmoothedRssi());
+    }
+
+    /**
+     * Keeps the connection to a device open after it unlocks, for door controllers and other devices that are
+     * unlocked often.  Connecting to a pinned device that is still connected reuses the connection and its session,
+     * so an unlock only takes a command round trip.  If the connection drops it is reopened in the background,
+     * without reporting the disconnect or the new connection.  Pinned devices keep their connection slot and are
+     * never disconnected to make room for other devices
+     *
+     * @param noke the device to keep connected
+     */
+    public void pinNoke(NokeDevice noke) {
+        noke.pinned = true;
+    }
+
+    /**
+     * Stops keeping a device connected.  A connection that is open stays open until disconnectNoke is called or
+     * the device drops it, and a background reconnect that is waiting for the device is cancelled
+     *
+     * @param noke the device
+     */
+    public void unpinNoke(NokeDevice noke) {
+        noke.pinned = false;
+        if (noke.keepAlive) {
+            if (noke.gatt != null) {
+                disconnectNoke(noke);
+            } else {
+                onNokeTornDown(noke);
+            }
+        }
+    }
+
+    /**
+     * Reads the session of a connected device again without reconnecting.  onNokeConnected is called once the new
+     * session has been read
+     *
+     * @param noke the connected device
+     */
+    public void refreshSession(NokeDevice noke) {
+        readSession(noke, true);
+    }
+
+    /**
+     * Serves a connection request for a pinned device from the connection that is already open
+     *
+     * @param noke the pinned device
+     * @return false if the device isn't connected, in which case it connects like any other device
+     */
+    private boolean resumePinned(NokeDevice noke) {
+        NokeConnectionState state = noke.getState();
+        if (noke.keepAlive && state != NokeConnectionState.DISCONNECTED) {
+            //Reconnecting in the background; report the connection this time
+            noke.keepAlive = false;
+            return true;
+        }
+        if ((state != NokeConnectionState.CONNECTED && state != NokeConnectionState.UNLOCKED) || noke.gattHandles == null) {
+            return false;
+        }
+        mGattTelemetry.onPinnedResume();
+        if (noke.sessionFresh) {
+            moveConnectionState(noke, NokeConnectionState.CONNECTED);
+            mListenerHub.onNokeConnected(noke);
+        } else {
+            readSession(noke, true);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the MTU requested when a sync of several commands starts.  Locks that don't support a larger MTU keep
+     * the default of 23
+     *
+     * @param mtu the MTU to request, or 0 to not request one
+     */
+    public void setSyncMtu(int mtu) {
+        mSyncMtu = mtu;
+    }
+
+    public int getSyncMtu() {
+        return mSyncMtu;
+    }
+
+    /**
+     * Enables pipelined writes for syncs of several commands.  Up to window commands are written before the lock
+     * answers, using write without response where the lock supports it.  Only for firmware that can buffer
+     * commands; any error result sends the rest of the sync one command at a time
+     *
+     * @param window commands in flight, or 1 to wait for each answer before the next command
+     */
+    public void setPipelinedWrites(int window) {
+        mPipelineWindow = Math.max(1, window);
+    }
+
+    public int getPipelinedWrites() {
+        return mPipelineWindow;
+    }
+
+    /**
+     * Clears Android's service cache of every device when its connection ends, which makes each connection
+     * discover services over the air.  By default the cache is only cleared when a device's firmware changes or
+     * its services can't be discovered
+     *
+     * @param force true to clear the cache on every disconnect
+     */
+    public void setForceGattRefresh(boolean force) {
+        mGattCachePolicy.setRefreshOnDisconnect(force);
+    }
+
+    public boolean isForceGattRefresh() {
+        return mGattCachePolicy.isRefreshOnDisconnect();
+    }
+
+    /**
+     * Sets a listener for unlock traces.  A trace starts when connectToNoke is called and is delivered when the
+     * device unlocks; connections that end without unlocking don't produce one
+     *
+     * @param listener the listener, or null
+     */
+    public void setUnlockTraceListener(NokeUnlockTrace.Listener listener) {
+        mUnlockTraceListener = listener;
+    }
+
+    /**
+     * @return the most recent completed unlock traces, oldest first.  Use NokeUnlockTrace#summarize for percentiles
+     */
+    public List<NokeUnlockTrace> getUnlockTraces() {
+        return mUnlockTraces.toList();
+    }
+
+    public void clearUnlockTraces() {
+        mUnlockTraces.clear();
+    }
+
+    private void startUnlockTrace(NokeDevice noke) {
+        NokeUnlockTrace.Builder trace = new NokeUnlockTrace.Builder(noke.getMac());
+        if (noke.firstAdvertisementAt > 0) {
+            trace.mark(NokeUnlockTrace.Phase.FIRST_ADVERTISEMENT, noke.firstAdvertisementAt);
+        }
+        trace.mark(NokeUnlockTrace.Phase.CONNECT_REQUESTED, SystemClock.elapsedRealtime());
+        noke.unlockTrace = trace;
+    }
+
+    private void markUnlockTrace(NokeDevice noke, NokeUnlockTrace.Phase phase) {
+        NokeUnlockTrace.Builder trace = noke.unlockTrace;
+        if (trace != null) {
+            trace.mark(phase, SystemClock.elapsedRealtime());
+        }
+    }
+
+    private void finishUnlockTrace(NokeDevice noke) {
+        NokeUnlockTrace.Builder builder = noke.unlockTrace;
+        if (builder == null) {
+            return;
+        }
+        builder.mark(NokeUnlockTrace.Phase.UNLOCKED, SystemClock.elapsedRealtime());
+        noke.unlockTrace = null;
+        noke.firstAdvertisementAt = 0;
+        NokeUnlockTrace trace = builder.build();
+        mUnlockTraces.add(trace);
+        NokeUnlockTrace.Listener listener = mUnlockTraceListener;
+        if (listener != null) {
+            listener.onUnlockTrace(trace);
+        }
+    }
+
+    /**
+     * Sets how many devices can be connected at once.  Most phones can't hold more than four to seven connections.
+     * Lowering the limit doesn't disconnect devices that are already connected
+     *
+     * @param maxConnections number of connections, at least 1
+     */
+    public void setMaxConnections(int maxConnections) {
+        mConnectionPool.setMaxConnections(maxConnections);
+    }
+
+    public int getMaxConnections() {
+        return mConnectionPool.getMaxConnections();
+    }
+
+    /**
+     * Sets how long a device can go without advertising before it is reported as lost.  Devices that were added
+     * because all devices are allowed are also removed when they are lost
+     *
+     * @param timeout time in milliseconds. 0 disables the timeout
+     */
+    public void setDeviceLostTimeout(long timeout) {
+        mDeviceLostTimeout = timeout;
+    }
+
+    public long getDeviceLostTimeout() {
+        return mDeviceLostTimeout;
+    }
+
+    /**
+     * Sets how many times a connection is retried after GATT error 133, or after the link drops before the device
+     * is ready, before the error is reported.  Devices can override this with NokeDevice#setConnectionRetryBudget
+     *
+     * @param budget number of retries. 0 reports the first error
+     */
+    public void setConnectionRetryBudget(int budget) {
+        mConnectionRetryBudget = budget;
+    }
+
+    public int getConnectionRetryBudget() {
+        return mConnectionRetryBudget;
+    }
+
+    private int getConnectionRetryBudget(NokeDevice noke) {
+        Integer budget = noke.connectionRetryBudget;
+        return budget != null ? budget : mConnectionRetryBudget;
+    }
+
+    /**
+     * Schedules the next connection attempt after GATT error 133 or a lost link.  The delay doubles with every attempt, and half of
+     * it is random so that locks that failed together don't retry together
+     *
+     * @param noke the device to reconnect to
+     */
+    private void scheduleConnectionRetry(final NokeDevice noke) {
+        if (noke.retryTimeout == null) {
+            noke.retryTimeout = new TimerWheel.Timeout() {
+                @Override
+                void onTimeout(long now) {
+                    Log.d(TAG, "Initializing gatt connection: " + connectToGatt(noke));
+                }
+            };
+        }
+        cancelWatchdog(noke);
+        long delay = getRetryDelay(noke.connectionAttempts - 1, NokeDefines.GATT_RETRY_BASE_DELAY,
+                NokeDefines.GATT_RETRY_MAX_DELAY, mRetryRandom);
+        mGattTelemetry.onRetryScheduled(delay);
+        scheduleTimeout(noke.retryTimeout, delay);
+    }
+
+    /**
+     * Exponential backoff with equal jitter: the delay is between half and all of base * 2^retry, capped at max
+     *
+     * @param retry  number of retries before this one
+     * @param base   delay in milliseconds before the first retry
+     * @param max    longest delay in milliseconds
+     * @param random source of the jitter
+     * @return delay in milliseconds
+     */
+    static long getRetryDelay(int retry, long base, long max, Random random) {
+        long delay = Math.min(max, base << Math.min(Math.max(retry, 0), 20));
+        long half = delay / 2;
+        return delay - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /**
+     * Cancels a connection retry that is waiting after GATT error 133, for example when the user walks away from
+     * the lock.  The device is reported as disconnected
+     *
+     * @param noke the device
+     * @return true if a retry was cancelled
+     */
+    public boolean cancelConnectionRetry(NokeDevice noke) {
+        if (noke.retryTimeout == null || !mTimerWheel.cancel(noke.retryTimeout)) {
+            return false;
+        }
+        mGattTelemetry.onRetryCancelled();
+        noke.connectionAttempts = 0;
+        moveConnectionState(noke, NokeConnectionState.DISCONNECTED);
+        mConnectionPool.release(noke);
+        mListenerHub.onNokeDisconnected(noke);
+        return true;
+    }
+
+    /**
+     * Makes sure a device that just advertised has a lost timeout scheduled.  The timeout isn't moved on every
+     * advertisement; when it fires it checks the last seen time and schedules itself again if the device was seen
+     * in the meantime, so the cost per advertisement is O(1)
+     *
+     * @param noke the device that advertised
+     */
+    private void trackDeviceLost(final NokeDevice noke) {
+        if (mDeviceLostTimeout <= 0) {
+            return;
+        }
+        if (noke.lostTimeout == null) {
+            noke.lostTimeout = new TimerWheel.Timeout() {
+                @Override
+                void onTimeout(long now) {
+                    onDeviceLostTimeout(noke);
+                }
+            };
+        }
+        if (!noke.lostTimeout.isScheduled()) {
+            scheduleTimeout(noke.lostTimeout, mDeviceLostTimeout);
+        }
+    }
+
+    /**
+     * Called when the lost timeout of a device fires
+     *
+     * @param noke the device
+     */
+    private void onDeviceLostTimeout(NokeDevice noke) {
+        long timeout = mDeviceLostTimeout;
+        if (timeout <= 0 || mNokeDevices.get(noke.getMac()) != noke) {
+            return;
+        }
+        long age = System.currentTimeMillis() - noke.getLastSeen();
+        if (age < timeout) {
+            scheduleTimeout(noke.lostTimeout, timeout - age);
+            return;
+        }
+        NokeConnectionState state = noke.getState();
+        if (state != NokeConnectionState.DISCOVERED && state != NokeConnectionState.DISCONNECTED) {
+            //Devices stop advertising while they are connected
+            scheduleTimeout(noke.lostTimeout, timeout);
+            return;
+        }
 
-                            noke.bluetoothDevice = bluetoothDevice;
-                            noke.connectionState = NokeDefines.NOKE_STATE_DISCOVERED;
+        moveConnectionState(noke, NokeConnectionState.DISCONNECTED);
+        if (noke.proximityEntry != null) {
+            mProximityRanking.remove(noke.proximityEntry);
+        }
+        mDiscoveryCoalescer.reset(noke.getMacValue());
+        mDeviceDescriptors.remove(noke.getMacValue());
+        if (noke.autoDiscovered) {
+            removeNokeDevice(noke.getMac());
+        }
+        mListenerHub.onNokeLost(noke);
+    }
 
-                            if (nokeDevices.get(noke.getMac()) == null) {
-                                nokeDevices.put(noke.getMac(), noke);
-                            }
-                            noke.lockState = lockState;
-                            mGlobalNokeListener.onNokeDiscovered(noke);
-                        }
-                    }
-                }
+    /**
+     * Schedules a timeout on the service's timer wheel
+     *
+     * @param timeout the timeout
+     * @param delay   time in milliseconds until the timeout fires
+     */
+    void scheduleTimeout(TimerWheel.Timeout timeout, long delay) {
+        long deadline = SystemClock.elapsedRealtime() + delay;
+        mTimerWheel.schedule(timeout, deadline);
+        long tick = mTimerWheel.getTickMillis();
+        long wakeup = (deadline + tick - 1) / tick * tick;
+        synchronized (mTimerWheel) {
+            if (mTimerWakeup < 0 || wakeup < mTimerWakeup) {
+                mTimerWakeup = wakeup;
+                mBleHandler.removeCallbacks(mTimerTick);
+                mBleHandler.postDelayed(mTimerTick, Math.max(0, wakeup - SystemClock.elapsedRealtime()));
             }
-        };
+        }
     }
 
     /**
-     * Parses through the manufacturer data
-     *
-     * @param scanRecord - broadcast data from the lock
-     * @return - returns formatted manufacturer data
+     * Advances the timer wheel, runs the expired timeouts and posts the next tick
      */
-    private byte[] getManufacturerData(byte[] scanRecord) {
-        int i = 0;
-        do {
-            try {
-                int length = scanRecord[i];
-                i++;
-                byte type = scanRecord[i];
-                if (type == (byte) 0xFF) {
-                    i++;
-                    byte[] manufacturerdata = new byte[length];
-                    for (int j = 0; j < length; j++) {
-                        manufacturerdata[j] = scanRecord[i];
-                        i++;
-                    }
-                    return manufacturerdata;
-                } else {
-                    i = i + length;
-                }
-            } catch (ArrayIndexOutOfBoundsException e) {
-                return new byte[]{0, 0, 0, 0, 0};
+    private void runTimers() {
+        long now = SystemClock.elapsedRealtime();
+        mTimerWheel.advance(now);
+        TimerWheel.Timeout timeout;
+        while ((timeout = mTimerWheel.poll()) != null) {
+            timeout.onTimeout(now);
+        }
+        synchronized (mTimerWheel) {
+            long next = mTimerWheel.nextWakeup();
+            mTimerWakeup = next;
+            mBleHandler.removeCallbacks(mTimerTick);
+            if (next >= 0) {
+                mBleHandler.postDelayed(mTimerTick, Math.max(0, next - SystemClock.elapsedRealtime()));
             }
-        } while (i < scanRecord.length);
-        return new byte[]{0, 0, 0, 0, 0};
+        }
     }
 
     /**
-     * Starts connection to Noke device
-     *
-     * @param noke - The device to which to connect
+     * Starts the thread that runs the service's Bluetooth work
      */
-    public void connectToNoke(NokeDevice noke) {
-        connectToDevice(noke.bluetoothDevice, noke.rssi);
+    private static HandlerThread startBleThread() {
+        HandlerThread thread = new HandlerThread("NokeBluetooth", Process.THREAD_PRIORITY_FOREGROUND);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Runs the Bluetooth work of the service.  Each message type is one kind of work, with the device, connection
+     * or teardown it applies to in Message#obj
+     */
+    final class BleHandler extends Handler {
+        /**
+         * Closes a connection left over from an earlier attempt and opens a new one.  obj is the device
+         */
+        static final int MSG_CONNECT = 1;
+        /**
+         * Opens the connection of a device.  obj is the device, arg1 is 1 to connect automatically
+         */
+        static final int MSG_OPEN_GATT = 2;
+        /**
+         * Gives up on a device after its connection attempts are used up.  obj is the device, arg1 is 1 if the last
+         * attempt lost the link rather than failing with GATT error 133
+         */
+        static final int MSG_GIVE_UP_CONNECTING = 3;
+        /**
+         * Closes the connection of a device after a failed attempt and schedules another one.  obj is the device
+         */
+        static final int MSG_RETRY_CONNECTING = 4;
+        /**
+         * Starts service discovery on a connection that just connected.  obj is the connection
+         */
+        static final int MSG_DISCOVER_SERVICES = 5;
+        /**
+         * Discovers the services of a device again with a cleared cache.  obj is the device
+         */
+        static final int MSG_REDISCOVER_SERVICES = 6;
+        /**
+         * Reopens the connection of a pinned device that dropped.  obj is the device
+         */
+        static final int MSG_RECONNECT_PINNED = 7;
+        /**
+         * Closes a connection once its teardown finished.  obj is the teardown
+         */
+        static final int MSG_CLOSE_TEARDOWN = 8;
+        /**
+         * Closes a connection that doesn't belong to any device.  obj is the connection
+         */
+        static final int MSG_CLOSE_STRAY_GATT = 9;
+
+        BleHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_CONNECT: {
+                    NokeDevice noke = (NokeDevice) msg.obj;
+                    /*Reusing GATT objects causes issues.  If the gatt object is not null when
+                     * connecting to lock. Disconnect/null object and try reconnecting
+                     */
+                    if (noke.gatt != null) {
+                        noke.gatt.disconnect();
+                        closeGatt(noke);
+                    }
+                    Log.d(TAG, "Initializing gatt connection: " + connectToGatt(noke));
+                    break;
+                }
+                case MSG_OPEN_GATT:
+                    openGatt((NokeDevice) msg.obj, msg.arg1 == 1);
+                    break;
+                case MSG_GIVE_UP_CONNECTING: {
+                    NokeDevice noke = (NokeDevice) msg.obj;
+                    if (noke.gatt != null) {
+                        noke.gatt.disconnect();
+                        closeGatt(noke);
+                    }
+                    moveConnectionState(noke, NokeConnectionState.DISCONNECTED);
+                    mConnectionPool.release(noke);
+                    mListenerHub.onError(noke, NokeMobileError.ERROR_BLUETOOTH_GATT, msg.arg1 == 1
+                            ? "Connection lost before the device was ready" : "Bluetooth Gatt Error: 133");
+                    break;
+                }
+                case MSG_RETRY_CONNECTING: {
+                    NokeDevice noke = (NokeDevice) msg.obj;
+                    noke.connectionAttempts++;
+                    if (mGattCachePolicy.isRefreshOnDisconnect()) {
+                        refreshGattCache(noke, noke.gatt);
+                    }
+                    if (noke.gatt != null) {
+                        noke.gatt.disconnect();
+                        closeGatt(noke);
+                    }
+                    scheduleConnectionRetry(noke);
+                    break;
+                }
+                case MSG_DISCOVER_SERVICES: {
+                    BluetoothGatt gatt = (BluetoothGatt) msg.obj;
+                    NokeDevice noke = getNokeForGatt(gatt);
+                    if (noke == null) {
+                        mGattDevices.remove(gatt);
+                        gatt.close();
+                        break;
+                    }
+                    boolean refresh = mGattCachePolicy.shouldRefreshBeforeDiscovery(noke, getDescriptor(noke, gatt).getVersion());
+                    if (noke.gatt != null) {
+                        Log.i(TAG, "Gatt not null. Attempting to start service discovery:" +
+                                discoverServices(noke, refresh));
+                    } else {
+                        openGatt(noke, gatt);
+                        Log.i(TAG, "Gatt was null. Attempting to start service discovery:" +
+                                discoverServices(noke, refresh));
+                    }
+                    break;
+                }
+                case MSG_REDISCOVER_SERVICES: {
+                    NokeDevice noke = (NokeDevice) msg.obj;
+                    if (noke.gatt != null) {
+                        Log.i(TAG, "Discovering services again: " + discoverServices(noke, true));
+                    }
+                    break;
+                }
+                case MSG_RECONNECT_PINNED: {
+                    NokeDevice noke = (NokeDevice) msg.obj;
+                    closeGatt(noke);
+                    if (noke.getState() == NokeConnectionState.CONNECTING) {
+                        Log.d(TAG, "Reconnecting pinned device: " + connectToGatt(noke, true));
+                    }
+                    break;
+                }
+                case MSG_CLOSE_TEARDOWN:
+                    ((Teardown) msg.obj).close();
+                    break;
+                case MSG_CLOSE_STRAY_GATT:
+                    BluetoothGatt stray = (BluetoothGatt) msg.obj;
+                    mGattDevices.remove(stray);
+                    stray.close();
+                    break;
+                default:
+                    super.handleMessage(msg);
+            }
+        }
     }
 
     /**
-     * Attempts to match MAC address to device in nokeDevices list.  If device is found, stop scanning and
+     * Attempts to match MAC address to device in the device registry.  If device is found, stop scanning and
      * call connectToGatt to start service discovery and connect to device.
      *
      * @param device Bluetooth device that was obtained from the scanner callback
      * @param rssi   RSSI value obtained from the scanner.  Can be used for adjusting or checking connecting range.
+     * @return true if the device is in the registry and is connecting or already connected
      */
-    private void connectToDevice(BluetoothDevice device, int rssi) {
+    private boolean connectToDevice(BluetoothDevice device, int rssi) {
         if (device != null) {
-            NokeDevice noke = nokeDevices.get(device.getAddress());
+            NokeDevice noke = mNokeDevices.get(MacAddress.parse(device.getAddress()));
             if (noke != null) {
                 noke.mService = this;
                 noke.connectionAttempts = 0;
@@ -670,29 +1884,11 @@ public class NokeDeviceManagerService extends Service {
                     noke.bluetoothDevice = device;
                 }
 
-                if (noke.connectionState == NokeDefines.NOKE_STATE_DISCONNECTED || noke.connectionState == NokeDefines.NOKE_STATE_DISCOVERED) {
+                if (startConnecting(noke)) {
                     mBluetoothAdapter.cancelDiscovery();
-                    noke.connectionState = NokeDefines.NOKE_STATE_CONNECTING;
-
-                    Handler handler = new Handler(Looper.getMainLooper());
-                    final NokeDevice finalNoke = noke;
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (finalNoke.gatt == null) {
-                                Log.d(TAG, "Initializing gatt connection: " + connectToGatt(finalNoke));
-                            } else {
-                                /*Reusing GATT objects causes issues.  If the gatt object is not null when first
-                                 * connecting to lock. Disconnect/null object and try reconnecting
-                                 */
-                                finalNoke.gatt.disconnect();
-                                finalNoke.gatt.close();
-                                finalNoke.gatt = null;
-                                Log.d(TAG, "Initializing gatt connection: " + connectToGatt(finalNoke));
-                            }
-                        }
-                    });
+                    mBleHandler.obtainMessage(BleHandler.MSG_CONNECT, noke).sendToTarget();
                 }
+                return true;
             } else if (device.getName() != null) {
                 if (device.getName().contains(NokeDefines.NOKE_DEVICE_IDENTIFER_STRING)) {
                     stopLeScanning();
@@ -700,9 +1896,8 @@ public class NokeDeviceManagerService extends Service {
                     if (noke.bluetoothDevice == null) {
                         noke.bluetoothDevice = device;
                     }
-                    if (noke.connectionState == NokeDefines.NOKE_STATE_DISCONNECTED || noke.connectionState == NokeDefines.NOKE_STATE_DISCOVERED) {
+                    if (startConnecting(noke)) {
                         mBluetoothAdapter.cancelDiscovery();
-                        noke.connectionState = NokeDefines.NOKE_STATE_CONNECTING;
                         if (noke.gatt == null) {
                             Log.d(TAG, "Initializing gatt connection: " + connectToGatt(noke));
                         } else {
@@ -711,8 +1906,7 @@ public class NokeDeviceManagerService extends Service {
                              * connecting to lock. Disconnect/null object and try reconnecting
                              */
                             noke.gatt.disconnect();
-                            noke.gatt.close();
-                            noke.gatt = null;
+                            closeGatt(noke);
 
                             Log.d(TAG, "Initializing gatt connection: " + connectToGatt(noke));
                         }
@@ -720,6 +1914,7 @@ public class NokeDeviceManagerService extends Service {
                 }
             }
         }
+        return false;
     }
 
     /**
@@ -732,30 +1927,193 @@ public class NokeDeviceManagerService extends Service {
      * callback.
      */
     private boolean connectToGatt(final NokeDevice noke) {
+        return connectToGatt(noke, false);
+    }
+
+    /**
+     * @param noke        The destination noke device
+     * @param autoConnect true to let the stack connect whenever the device is in range, which doesn't time out
+     * @return Return true if the connection is initiated successfully.
+     */
+    private boolean connectToGatt(final NokeDevice noke, final boolean autoConnect) {
         if (mBluetoothAdapter == null || noke == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_BLUETOOTH_DISABLED, "Bluetooth is disabled");
+            mListenerHub.onError(noke, NokeMobileError.ERROR_BLUETOOTH_DISABLED, "Bluetooth is disabled");
             return false;
         }
 
         if (noke.bluetoothDevice == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
+            mListenerHub.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
             return false;
         }
 
-        Handler handler = new Handler(Looper.getMainLooper());
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    noke.gatt = noke.bluetoothDevice.connectGatt(NokeDeviceManagerService.this, false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
-                } else {
-                    noke.gatt = noke.bluetoothDevice.connectGatt(NokeDeviceManagerService.this, false, mGattCallback);
-                }
-            }
-        });
+        if (!autoConnect) {
+            armWatchdog(noke, "Connection", NokeDefines.CONNECT_TIMEOUT);
+        }
+        mBleHandler.obtainMessage(BleHandler.MSG_OPEN_GATT, autoConnect ? 1 : 0, 0, noke).sendToTarget();
+        return true;
+    }
+
+    /**
+     * Opens the GATT connection of a device.  Runs on the Bluetooth thread
+     *
+     * @param noke        the noke device
+     * @param autoConnect true to let the stack connect whenever the device is in range
+     */
+    private void openGatt(NokeDevice noke, boolean autoConnect) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            noke.gatt = noke.bluetoothDevice.connectGatt(NokeDeviceManagerService.this, autoConnect, mGattCallback, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            noke.gatt = noke.bluetoothDevice.connectGatt(NokeDeviceManagerService.this, autoConnect, mGattCallback);
+        }
+        if (noke.gatt != null) {
+            openGatt(noke, noke.gatt);
+        }
+    }
+
+    /**
+     * Runs the timeouts of the GATT operation queues on the service's timer wheel
+     */
+    private final GattOperationQueue.Host mGattQueueHost = new GattOperationQueue.Host() {
+        @Override
+        public void scheduleTimeout(TimerWheel.Timeout timeout, long delay) {
+            NokeDeviceManagerService.this.scheduleTimeout(timeout, delay);
+        }
+
+        @Override
+        public void cancelTimeout(TimerWheel.Timeout timeout) {
+            mTimerWheel.cancel(timeout);
+        }
+
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    /**
+     * Sets the GATT connection of a device, adds it to the GATT map and creates its operation queue
+     *
+     * @param noke the noke device
+     * @param gatt the new connection
+     */
+    private void openGatt(NokeDevice noke, BluetoothGatt gatt) {
+        noke.gatt = gatt;
+        noke.gattHandles = null;
+        mGattDevices.put(gatt, noke);
+        if (noke.gattQueue != null) {
+            noke.gattQueue.close();
+        }
+        noke.gattQueue = new GattOperationQueue(gatt, mGattQueueHost, mGattTelemetry, NokeDefines.GATT_OPERATION_TIMEOUT);
+    }
+
+    /**
+     * Starts service discovery on the connection of a device
+     *
+     * @param noke    the noke device
+     * @param refresh true to clear Android's service cache first, so the services are read from the device
+     * @return the result of discoverServices
+     */
+    private boolean discoverServices(NokeDevice noke, boolean refresh) {
+        BluetoothGatt gatt = noke.gatt;
+        if (refresh) {
+            //Counts as tried even if the platform can't clear the cache, so discovery is only retried once
+            refreshGattCache(noke, gatt);
+            noke.gattCacheRefreshed = true;
+        }
+        noke.discoveryStartedAt = SystemClock.elapsedRealtime();
+        return gatt.discoverServices();
+    }
+
+    /**
+     * Clears Android's service cache of a connection
+     *
+     * @param noke the noke device
+     * @param gatt the connection
+     * @return true if the cache was cleared
+     */
+    private boolean refreshGattCache(NokeDevice noke, BluetoothGatt gatt) {
+        if (!GattCachePolicy.refresh(gatt)) {
+            return false;
+        }
+        mGattTelemetry.onGattCacheRefreshed();
+        noke.gattCacheStale = false;
         return true;
     }
 
+    /**
+     * Returns the device a GATT connection belongs to.  Callbacks can arrive before connectGatt has returned, so
+     * devices that haven't been mapped yet are looked up by address
+     *
+     * @param gatt the GATT connection from the callback
+     * @return the noke device, or null if the connection doesn't belong to a device
+     */
+    private NokeDevice getNokeForGatt(BluetoothGatt gatt) {
+        NokeDevice noke = mGattDevices.get(gatt);
+        if (noke == null) {
+            noke = mNokeDevices.get(MacAddress.parse(gatt.getDevice().getAddress()));
+        }
+        return noke;
+    }
+
+    /**
+     * Closes the GATT connection of a device, removes it from the GATT map and drops its queued operations.  Call
+     * from the Bluetooth thread
+     *
+     * @param noke the noke device
+     */
+    private void closeGatt(NokeDevice noke) {
+        BluetoothGatt gatt = noke.gatt;
+        if (gatt != null) {
+            mGattDevices.remove(gatt);
+            gatt.close();
+            noke.gatt = null;
+        }
+        noke.gattHandles = null;
+        noke.highPriority = false;
+        noke.mtu = 0;
+        noke.commandSentAt = 0;
+        noke.commandPipeline = null;
+        noke.gattCacheRefreshed = false;
+        noke.discoveryStartedAt = 0;
+        cancelWatchdog(noke);
+        if (noke.gattQueue != null) {
+            noke.gattQueue.close();
+            noke.gattQueue = null;
+        }
+    }
+
+    /**
+     * Closes a GATT connection whose callback doesn't belong to any device, such as one left open for a device that
+     * was removed
+     *
+     * @param gatt the GATT connection from the callback
+     */
+    private void closeStrayGatt(BluetoothGatt gatt) {
+        Log.w(TAG, "GATT callback for unknown device " + gatt.getDevice().getAddress() + ", closing connection");
+        mBleHandler.obtainMessage(BleHandler.MSG_CLOSE_STRAY_GATT, gatt).sendToTarget();
+    }
+
+    /**
+     * Completes the current GATT operation of a device from its callback.  Connections that don't belong to a device
+     * are closed
+     *
+     * @param gatt   the GATT connection from the callback
+     * @param type   type of the callback
+     * @param status GATT status from the callback
+     * @param value  value of the characteristic for reads
+     */
+    private void completeGattOperation(BluetoothGatt gatt, int type, int status, byte[] value) {
+        NokeDevice noke = getNokeForGatt(gatt);
+        if (noke == null) {
+            closeStrayGatt(gatt);
+            return;
+        }
+        GattOperationQueue queue = noke.gattQueue;
+        if (queue == null || !queue.complete(type, status, value)) {
+            Log.d(TAG, "No GATT operation waiting for callback " + type);
+        }
+    }
+
     /**
      * Implementation of the the BluetoothGatt callbacks.
      * Read more here: <a href="https://developer.android.com/reference/android/bluetooth/BluetoothGattCallback.html">https://developer.android.com/reference/android/bluetooth/BluetoothGattCallback.html</a>
@@ -764,124 +2122,101 @@ public class NokeDeviceManagerService extends Service {
 
         @Override
         public void onConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
-            final NokeDevice noke = nokeDevices.get(gatt.getDevice().getAddress());
+            final NokeDevice noke = getNokeForGatt(gatt);
+            if (noke == null) {
+                Teardown teardown = mTeardowns.remove(gatt);
+                if (teardown != null) {
+                    teardown.finish(false);
+                } else {
+                    closeStrayGatt(gatt);
+                }
+                return;
+            }
             if (status == NokeDefines.NOKE_GATT_ERROR) {
-                if (noke.connectionAttempts > 4) {
-                    Handler handler = new Handler(Looper.getMainLooper());
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (noke.gatt != null) {
-                                noke.gatt.disconnect();
-                                noke.gatt.close();
-                                noke.gatt = null;
-                            }
-                            noke.connectionState = NokeDefines.NOKE_STATE_DISCONNECTED;
-                            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_BLUETOOTH_GATT, "Bluetooth Gatt Error: 133");
-                        }
-                    });
+                if (noke.connectionAttempts >= getConnectionRetryBudget(noke)) {
+                    mGattTelemetry.onRetryBudgetExhausted();
+                    mBleHandler.obtainMessage(BleHandler.MSG_GIVE_UP_CONNECTING, 0, 0, noke).sendToTarget();
                 } else {
-                    Handler handler = new Handler(Looper.getMainLooper());
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            noke.connectionAttempts++;
-                            refreshDeviceCache(noke.gatt, true);
-                            if (noke.gatt != null) {
-                                noke.gatt.disconnect();
-                                noke.gatt.close();
-                                noke.gatt = null;
-                            }
-                            try {
-                                Thread.sleep(2600);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            Log.d(TAG, "Initializing gatt connection: " + connectToGatt(noke));
-                        }
-                    });
+                    mBleHandler.obtainMessage(BleHandler.MSG_RETRY_CONNECTING, noke).sendToTarget();
                 }
             } else if (newState == BluetoothProfile.STATE_CONNECTED) {
-                noke.connectionAttempts = 0;
-                noke.connectionState = NokeDefines.NOKE_STATE_CONNECTING;
+                markUnlockTrace(noke, NokeUnlockTrace.Phase.GATT_CONNECTED);
+                mGattTelemetry.onConnected(noke.connectionAttempts + 1);
+                moveConnectionState(noke, NokeConnectionState.DISCOVERING_SERVICES);
+                armWatchdog(noke, "Service discovery", NokeDefines.SERVICE_DISCOVERY_TIMEOUT);
                 noke.isRestoring = false;
-                mGlobalNokeListener.onNokeConnecting(noke);
-
-                Handler handler = new Handler(Looper.getMainLooper());
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
+                if (!noke.keepAlive) {
+                    mListenerHub.onNokeConnecting(noke);
+                }
 
-                        if (noke.gatt != null) {
-                            Log.i(TAG, "Gatt not null. Attempting to start service discovery:" +
-                                    noke.gatt.discoverServices());
-                        } else {
-                            noke.gatt = gatt;
-                            Log.i(TAG, "Gatt was null. Attempting to start service discovery:" +
-                                    noke.gatt.discoverServices());
-                        }
-                    }
-                });
+                mBleHandler.obtainMessage(BleHandler.MSG_DISCOVER_SERVICES, gatt).sendToTarget();
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-
-                if (noke.connectionState == 2) {
-                    Handler handler = new Handler(Looper.getMainLooper());
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (noke.gatt != null) {
-                                noke.gatt.disconnect();
-                            }
-                            if (noke.gatt != null) {
-                                noke.gatt.close();
-                                noke.gatt = null;
-                            }
-                            Log.d(TAG, "Initializing gatt connection: " + connectToGatt(noke));
-                        }
-                    });
+                Teardown teardown = mTeardowns.remove(gatt);
+
+                //A link that drops before the device is ready for commands is tried again, with the same budget
+                //and backoff as GATT error 133
+                boolean reconnect = teardown == null && (noke.getState() == NokeConnectionState.CONNECTING
+                        || compareAndMoveConnectionState(noke, NokeConnectionState.DISCOVERING_SERVICES, NokeConnectionState.CONNECTING));
+                if (reconnect) {
+                    if (noke.connectionAttempts >= getConnectionRetryBudget(noke)) {
+                        mGattTelemetry.onRetryBudgetExhausted();
+                        mBleHandler.obtainMessage(BleHandler.MSG_GIVE_UP_CONNECTING, 1, 0, noke).sendToTarget();
+                    } else {
+                        mBleHandler.obtainMessage(BleHandler.MSG_RETRY_CONNECTING, noke).sendToTarget();
+                    }
+                } else if (teardown == null && noke.pinned) {
+                    reconnectPinned(noke);
                 } else {
-                    if (noke.connectionAttempts == 0) {
-                        refreshDeviceCache(noke.gatt, NokeDefines.SHOULD_FORCE_GATT_REFRESH);
-                        noke.connectionState = NokeDefines.NOKE_STATE_DISCONNECTED;
-                        mGlobalNokeListener.onNokeDisconnected(noke);
-                        uploadData();
+                    if (teardown != null || noke.connectionAttempts == 0) {
+                        if (mGattCachePolicy.shouldRefreshOnDisconnect(noke)) {
+                            refreshGattCache(noke, gatt);
+                        }
+                        onNokeTornDown(noke);
+                        scheduleUpload();
                     }
                 }
-            }
-        }
-
-        void refreshDeviceCache(final BluetoothGatt gatt, final boolean force) {
-            /*
-             * If the device is bonded this is up to the Service Changed characteristic to notify Android that the services has changed.
-             * There is no need for this trick in that case.
-             * If not bonded, the Android should not keep the services cached when the Service Changed characteristic is present in the target device database.
-             * However, due to the Android bug (still exists in Android 5.0.1), it is keeping them anyway and the only way to clear services is by using this hidden refresh method.
-             */
-            if (force || gatt.getDevice().getBondState() == BluetoothDevice.BOND_NONE) {
-                /*
-                 * There is a refresh() method in BluetoothGatt class but for now it's hidden. We will call it using reflections.
-                 */
-                try {
-                    @SuppressWarnings("JavaReflectionMemberAccess") final Method refresh = gatt.getClass().getMethod("refresh");
-                    if (refresh != null) {
-                        final boolean success = (Boolean) refresh.invoke(gatt);
-                        Log.d(TAG, "Refreshing Result: " + success);
-                    }
-                } catch (Exception e) {
-                    //Log.e(TAG, "REFRESH DEVICE CACHE");
+                if (teardown != null) {
+                    teardown.finish(false);
                 }
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            NokeDevice noke = nokeDevices.get(gatt.getDevice().getAddress());
+            final NokeDevice noke = getNokeForGatt(gatt);
+            if (noke == null) {
+                closeStrayGatt(gatt);
+                return;
+            }
+            if (noke.discoveryStartedAt > 0) {
+                mGattTelemetry.onServiceDiscovery(SystemClock.elapsedRealtime() - noke.discoveryStartedAt, noke.gattCacheRefreshed);
+                noke.discoveryStartedAt = 0;
+            }
+            DeviceDescriptor descriptor = getDescriptor(noke, gatt);
+            GattHandles handles = null;
+            StringBuilder missing = new StringBuilder();
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (gatt.getDevice().getName().contains("NOKE_FW") || gatt.getDevice().getName().contains("NFOB_FW") || gatt.getDevice().getName().contains("N3P_FW")) {
-                    enableFirmwareTXNotification(noke);
+                handles = GattHandles.resolve(gatt, descriptor.isFirmwareMode(), missing);
+            }
+            if (handles == null) {
+                if (mGattCachePolicy.onDiscoveryFailed(noke)) {
+                    //The services may have come from a stale cache, so clear it and look again
+                    mBleHandler.obtainMessage(BleHandler.MSG_REDISCOVER_SERVICES, noke).sendToTarget();
+                } else if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mListenerHub.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device, missing " + missing);
                 } else {
-                    readStateCharacteristic(noke);
+                    mListenerHub.onError(noke, NokeMobileError.ERROR_BLUETOOTH_GATT, "Service discovery failed: " + status);
                 }
+                return;
+            }
+            mGattCachePolicy.onDiscovered(noke, descriptor.getVersion());
+            markUnlockTrace(noke, NokeUnlockTrace.Phase.SERVICES_DISCOVERED);
+            noke.gattHandles = handles;
+            armWatchdog(noke, "Connection setup", NokeDefines.CONNECTION_SETUP_TIMEOUT);
+            if (descriptor.isFirmwareMode()) {
+                enableTXNotification(noke);
+            } else {
+                readStateCharacteristic(noke);
             }
         }
 
@@ -890,14 +2225,7 @@ public class NokeDeviceManagerService extends Service {
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-
-                if (NokeDefines.STATE_CHAR_UUID.equals(characteristic.getUuid())) {
-                    NokeDevice noke = nokeDevices.get(gatt.getDevice().getAddress());
-                    noke.setSession(characteristic.getValue());
-                    enableTXNotification(noke);
-                }
-            }
+            completeGattOperation(gatt, GattOperationQueue.TYPE_READ_CHARACTERISTIC, status, characteristic.getValue());
         }
 
         @Override
@@ -905,7 +2233,11 @@ public class NokeDeviceManagerService extends Service {
                                             BluetoothGattCharacteristic characteristic) {
 
             Log.d(TAG, "On Characteristic Changed: " + NokeDefines.bytesToHex(characteristic.getValue()));
-            NokeDevice noke = nokeDevices.get(gatt.getDevice().getAddress());
+            NokeDevice noke = getNokeForGatt(gatt);
+            if (noke == null) {
+                closeStrayGatt(gatt);
+                return;
+            }
             byte[] data = characteristic.getValue();
             onReceivedDataFromLock(data, noke);
         }
@@ -914,22 +2246,22 @@ public class NokeDeviceManagerService extends Service {
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             Log.d(TAG, "On Descriptor Write: " + descriptor.toString() + " Status: " + status);
-            if (gatt.getDevice().getName().contains("NOKE_FW") || gatt.getDevice().getName().contains("NFOB_FW") || gatt.getDevice().getName().contains("N3P_FW")) {
-                NokeDevice noke = nokeDevices.get(gatt.getDevice().getAddress());
-                noke.connectionState = NokeDefines.NOKE_STATE_CONNECTED;
-                mGlobalNokeListener.onNokeConnected(noke);
-            } else {
-                NokeDevice noke = nokeDevices.get(gatt.getDevice().getAddress());
-                noke.connectionState = NokeDefines.NOKE_STATE_CONNECTED;
-                mGlobalNokeListener.onNokeConnected(noke);
-            }
+            completeGattOperation(gatt, GattOperationQueue.TYPE_WRITE_DESCRIPTOR, status, null);
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-
+            completeGattOperation(gatt, GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, status, null);
+        }
 
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            NokeDevice noke = getNokeForGatt(gatt);
+            if (noke != null && status == BluetoothGatt.GATT_SUCCESS) {
+                noke.mtu = mtu;
+                mGattTelemetry.onMtuNegotiated(mtu);
+            }
+            completeGattOperation(gatt, GattOperationQueue.TYPE_REQUEST_MTU, status, null);
         }
     };
 
@@ -947,32 +2279,64 @@ public class NokeDeviceManagerService extends Service {
 
 
         byte destination = data[0];
+        if (destination == NokeDefines.APP_Dest && noke.commandSentAt > 0) {
+            mGattTelemetry.onCommandRoundTrip(SystemClock.elapsedRealtime() - noke.commandSentAt, noke.highPriority);
+            noke.commandSentAt = 0;
+        }
+        if (destination == NokeDefines.APP_Dest) {
+            //Pipelined commands still in flight keep waiting; the next write arms the watchdog again otherwise
+            CommandPipeline inFlight = noke.commandPipeline;
+            if (inFlight != null && inFlight.getInFlight() > 1) {
+                armWatchdog(noke, "Command", NokeDefines.COMMAND_TIMEOUT);
+            } else {
+                cancelWatchdog(noke);
+            }
+        }
         if (destination == NokeDefines.SERVER_Dest) {
             if (noke.session != null) {
                 addDataPacketToQueue(NokeDefines.bytesToHex(data), noke.session, noke.getMac());
             }
         } else if (destination == NokeDefines.APP_Dest) {
             byte resulttype = data[1];
+            CommandPipeline pipeline = noke.commandPipeline;
+            if (pipeline != null) {
+                boolean pipelined = !pipeline.isStopAndWait();
+                CommandPipeline.Command answered = pipeline.onResult(data[2] & 0xFF, resulttype == NokeDefines.SUCCESS_ResultType);
+                if (answered != null) {
+                    noke.commands.remove(answered.hex);
+                }
+                if (pipelined && pipeline.isStopAndWait()) {
+                    mGattTelemetry.onPipelineFallback();
+                }
+            }
             switch (resulttype) {
                 case NokeDefines.SUCCESS_ResultType: {
                     int commandid = data[2];
+                    markUnlockTrace(noke, NokeUnlockTrace.Phase.COMMAND_SUCCEEDED);
                     if (noke.isRestoring) {
                         noke.commands.clear();
-                        globalUploadQueue.clear();
+                        synchronized (globalUploadQueue) {
+                            globalUploadQueue.clear();
+                        }
                         noke.isRestoring = false;
                         confirmRestore(noke.getMac(), commandid);
                         disconnectNoke(noke);
                     } else {
                         moveToNext(noke);
                         if (noke.commands.size() == 0) {
-                            noke.connectionState = NokeDefines.NOKE_STATE_UNLOCKED;
-                            mGlobalNokeListener.onNokeUnlocked(noke);
+                            moveConnectionState(noke, NokeConnectionState.UNLOCKED);
+                            finishUnlockTrace(noke);
+                            mListenerHub.onNokeUnlocked(noke);
+                            if (noke.pinned) {
+                                //Have a session ready for the next unlock
+                                readSession(noke, false);
+                            }
                         }
                     }
                     break;
                 }
                 case NokeDefines.INVALIDKEY_ResultType: {
-                    mGlobalNokeListener.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_KEY, "Invalid Key Result");
+                    mListenerHub.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_KEY, "Invalid Key Result");
                     moveToNext(noke);
 //                    if (noke.commands.size() == 0) {
                     //If library receives an invalid key error, it will attempt to restore the key by working with the API
@@ -983,12 +2347,12 @@ public class NokeDeviceManagerService extends Service {
                     break;
                 }
                 case NokeDefines.INVALIDCMD_ResultType: {
-                    mGlobalNokeListener.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_CMD, "Invalid Command Result");
+                    mListenerHub.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_CMD, "Invalid Command Result");
                     moveToNext(noke);
                     break;
                 }
                 case NokeDefines.INVALIDPERMISSION_ResultType: {
-                    mGlobalNokeListener.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_PERMISSION, "Invalid Permission (wrong key) Result");
+                    mListenerHub.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_PERMISSION, "Invalid Permission (wrong key) Result");
                     moveToNext(noke);
                     break;
                 }
@@ -1009,57 +2373,112 @@ public class NokeDeviceManagerService extends Service {
                         didTimeout = false;
                     }
 
-                    mGlobalNokeListener.onNokeShutdown(noke, isLocked, didTimeout);
-                    disconnectNoke(noke);
+                    mListenerHub.onNokeShutdown(noke, isLocked, didTimeout);
+                    if (!noke.pinned) {
+                        disconnectNoke(noke);
+                    }
                     break;
                 }
                 case NokeDefines.INVALIDDATA_ResultType: {
-                    mGlobalNokeListener.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_DATA, "Invalid Data Result");
+                    mListenerHub.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_DATA, "Invalid Data Result");
                     moveToNext(noke);
                     break;
                 }
                 case NokeDefines.INVALID_ResultType: {
-                    mGlobalNokeListener.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_RESULT, "Invalid Result");
+                    mListenerHub.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_RESULT, "Invalid Result");
                     moveToNext(noke);
                     break;
                 }
                 case NokeDefines.FAILEDTOLOCK_ResultType: {
-                    mGlobalNokeListener.onError(noke, NokeMobileError.DEVICE_ERROR_FAILED_TO_LOCK, "Device Failed to Lock");
+                    mListenerHub.onError(noke, NokeMobileError.DEVICE_ERROR_FAILED_TO_LOCK, "Device Failed to Lock");
                     moveToNext(noke);
                     break;
                 }
                 case NokeDefines.FAILEDTOUNLOCK_ResultType: {
-                    mGlobalNokeListener.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_RESULT, "Device Failed to Unlock");
+                    mListenerHub.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_RESULT, "Device Failed to Unlock");
                     moveToNext(noke);
                     break;
                 }
                 case NokeDefines.FAILEDTOUNSHACKLE_ResultType: {
-                    mGlobalNokeListener.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_RESULT, "Device Failed to Unlock Shackle");
+                    mListenerHub.onError(noke, NokeMobileError.DEVICE_ERROR_INVALID_RESULT, "Device Failed to Unlock Shackle");
                     moveToNext(noke);
                     break;
                 }
                 default: {
-                    mGlobalNokeListener.onError(noke, NokeMobileError.DEVICE_ERROR_UNKNOWN, "Invalid packet received");
+                    mListenerHub.onError(noke, NokeMobileError.DEVICE_ERROR_UNKNOWN, "Invalid packet received");
                     moveToNext(noke);
                     break;
                 }
-            }
-
+            }
+
+        }
+    }
+
+    /**
+     * Moves through the noke command array to the next command
+     *
+     * @param noke the noke device that contains the commands
+     */
+    public void moveToNext(NokeDevice noke) {
+        CommandPipeline pipeline = noke.commandPipeline;
+        if (pipeline != null) {
+            //The answered command was already removed when the result was matched
+            if (pipeline.isDone() || noke.commands.isEmpty()) {
+                noke.commandPipeline = null;
+                endSync(noke);
+            } else {
+                writePipelinedCommands(noke);
+            }
+            return;
+        }
+        if (noke.commands.size() > 0) {
+            noke.commands.remove(0);
+            if (noke.commands.size() > 0) {
+                writeRXCharacteristic(noke);
+            } else {
+                endSync(noke);
+            }
+        }
+    }
+
+    /**
+     * Raises the connection priority for a sync of several commands, so each command takes a shorter connection
+     * interval to answer, and requests a larger MTU the first time on each connection.  Called when a device starts
+     * syncing
+     *
+     * @param noke the syncing device
+     */
+    void beginSync(NokeDevice noke) {
+        BluetoothGatt gatt = noke.gatt;
+        if (gatt == null || noke.gattQueue == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        if (!noke.highPriority) {
+            noke.highPriority = gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        }
+        final int mtu = mSyncMtu;
+        if (noke.mtu == 0 && mtu > NokeDefines.DEFAULT_MTU) {
+            noke.mtu = NokeDefines.DEFAULT_MTU;
+            noke.gattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_REQUEST_MTU) {
+                @Override
+                boolean execute(BluetoothGatt gatt) {
+                    return gatt.requestMtu(mtu);
+                }
+            });
         }
     }
 
     /**
-     * Moves through the noke command array to the next command
+     * Drops the connection priority back to balanced once the commands of a sync have all been sent
      *
-     * @param noke the noke device that contains the commands
+     * @param noke the device
      */
-    public void moveToNext(NokeDevice noke) {
-        if (noke.commands.size() > 0) {
-            noke.commands.remove(0);
-            if (noke.commands.size() > 0) {
-                writeRXCharacteristic(noke);
-            }
+    private void endSync(NokeDevice noke) {
+        BluetoothGatt gatt = noke.gatt;
+        if (noke.highPriority && gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
         }
+        noke.highPriority = false;
     }
 
     /**
@@ -1071,71 +2490,130 @@ public class NokeDeviceManagerService extends Service {
      */
     public void addDataPacketToQueue(String response, String session, String mac) {
         long unixTime = System.currentTimeMillis() / 1000L;
-        if (globalUploadQueue == null) {
-            globalUploadQueue = new ArrayList<>();
+        synchronized (globalUploadQueue) {
+            for (int i = 0; i < globalUploadQueue.size(); i++) {
+                JSONObject dataObject = globalUploadQueue.get(i);
+                try {
+                    String dataSession = dataObject.getString("session");
+                    if (session.equals(dataSession)) {
+                        JSONArray responses = dataObject.getJSONArray("responses");
+                        responses.put(response);
+                        //TODO: CACHE UPLOAD QUEUE
+                        return;
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                JSONArray responses = new JSONArray();
+                responses.put(response);
+                JSONObject sessionPacket = new JSONObject();
+                sessionPacket.accumulate("session", session);
+                sessionPacket.accumulate("responses", responses);
+                sessionPacket.accumulate("mac", mac);
+                sessionPacket.accumulate("received_time", unixTime);
+
+                globalUploadQueue.add(sessionPacket);
+
+                //TODO: CACHE UPLOAD QUEUE
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
         }
-        for (int i = 0; i < globalUploadQueue.size(); i++) {
-            JSONObject dataObject = globalUploadQueue.get(i);
+    }
+
+    /**
+     * Uploads server packets from the Noke device to the server for parsing via the Noke Go Library
+     */
+    public void uploadData() {
+        JSONObject[] uploaded;
+        int[] responseCounts;
+        String body;
+        //Snapshot the entries and how many responses each has, so responses that arrive during the upload are kept
+        synchronized (globalUploadQueue) {
+            if (globalUploadQueue.isEmpty()) {
+                return;
+            }
+            uploaded = globalUploadQueue.toArray(new JSONObject[globalUploadQueue.size()]);
+            responseCounts = new int[uploaded.length];
             try {
-                String dataSession = dataObject.getString("session");
-                if (session.equals(dataSession)) {
-                    JSONArray responses = dataObject.getJSONArray("responses");
-                    responses.put(response);
-                    //TODO: CACHE UPLOAD QUEUE
-                    return;
+                JSONObject jsonObject = new JSONObject();
+                JSONArray data = new JSONArray();
+                for (int i = 0; i < uploaded.length; i++) {
+                    data.put(uploaded[i]);
+                    JSONArray responses = uploaded[i] != null ? uploaded[i].optJSONArray("responses") : null;
+                    responseCounts[i] = responses != null ? responses.length() : 0;
                 }
-            } catch (JSONException e) {
+                jsonObject.accumulate("logs", data);
+                body = jsonObject.toString();
+            } catch (Exception e) {
                 e.printStackTrace();
+                return;
             }
         }
 
         try {
-            JSONArray responses = new JSONArray();
-            responses.put(response);
-            JSONObject sessionPacket = new JSONObject();
-            sessionPacket.accumulate("session", session);
-            sessionPacket.accumulate("responses", responses);
-            sessionPacket.accumulate("mac", mac);
-            sessionPacket.accumulate("received_time", unixTime);
-
-            globalUploadQueue.add(sessionPacket);
-
-            //TODO: CACHE UPLOAD QUEUE
-        } catch (JSONException e) {
+            PackageManager pm = getApplicationContext().getPackageManager();
+            ApplicationInfo ai = pm.getApplicationInfo(getApplicationContext().getPackageName(), PackageManager.GET_META_DATA);
+            Bundle bundle = ai.metaData;
+            String nokeMobileApiKey = bundle.getString(NokeDefines.NOKE_MOBILE_API_KEY);
+            this.uploadDataCallback(NokeMobileApiClient.POST(NokeDefines.uploadURL, body, nokeMobileApiKey, "", 0),
+                    uploaded, responseCounts);
+        } catch (PackageManager.NameNotFoundException | NullPointerException e) {
+            e.printStackTrace();
+            mListenerHub.onError(null, NokeMobileError.ERROR_MISSING_API_KEY, "No API Key found. Have you set it in your Android Manifest?");
+        } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Uploads server packets from the Noke device to the server for parsing via the Noke Go Library
+     * Removes the responses that were uploaded from the upload queue.  Responses added to an entry after the upload
+     * started stay in the queue
+     *
+     * @param uploaded       the entries that were uploaded
+     * @param responseCounts number of responses each entry had when it was uploaded
      */
-    public void uploadData() {
-        if (globalUploadQueue != null) {
-            if (globalUploadQueue.size() > 0) {
-                try {
-                    JSONObject jsonObject = new JSONObject();
-                    JSONArray data = new JSONArray();
-                    for (int i = 0; i < globalUploadQueue.size(); i++) {
-                        data.put(globalUploadQueue.get(i));
-                    }
-                    jsonObject.accumulate("logs", data);
-                    try {
-                        PackageManager pm = getApplicationContext().getPackageManager();
-                        ApplicationInfo ai = pm.getApplicationInfo(getApplicationContext().getPackageName(), PackageManager.GET_META_DATA);
-                        Bundle bundle = ai.metaData;
-                        String nokeMobileApiKey = bundle.getString(NokeDefines.NOKE_MOBILE_API_KEY);
-                        this.uploadDataCallback(NokeMobileApiClient.POST(NokeDefines.uploadURL, jsonObject.toString(), nokeMobileApiKey, "", 0));
-                    } catch (PackageManager.NameNotFoundException | NullPointerException e) {
-                        e.printStackTrace();
-                        mGlobalNokeListener.onError(null, NokeMobileError.ERROR_MISSING_API_KEY, "No API Key found. Have you set it in your Android Manifest?");
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
+    private void removeUploadedData(JSONObject[] uploaded, int[] responseCounts) {
+        synchronized (globalUploadQueue) {
+            for (int i = 0; i < uploaded.length; i++) {
+                JSONArray responses = uploaded[i] != null ? uploaded[i].optJSONArray("responses") : null;
+                if (responses == null || responses.length() <= responseCounts[i]) {
+                    removeUploadEntry(uploaded[i]);
+                    continue;
+                }
+                for (int j = 0; j < responseCounts[i]; j++) {
+                    responses.remove(0);
                 }
             }
         }
     }
 
+    /**
+     * Removes an entry from the upload queue by identity.  Call while holding the queue's lock
+     */
+    private void removeUploadEntry(JSONObject entry) {
+        for (int i = 0; i < globalUploadQueue.size(); i++) {
+            if (globalUploadQueue.get(i) == entry) {
+                globalUploadQueue.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Uploads the responses from the locks on the I/O thread
+     */
+    private void scheduleUpload() {
+        try {
+            mIoExecutor.execute(mUploadTask);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Service destroyed, upload skipped");
+        }
+    }
+
     /**
      * Caches the upload data from the lock in the case that an internet connection isn't present
      *
@@ -1144,9 +2622,11 @@ public class NokeDeviceManagerService extends Service {
     @SuppressWarnings("unused")
     void cacheUploadData(Context context) {
         Set<String> data = new HashSet<>();
-        for (int i = 0; i < globalUploadQueue.size(); i++) {
-            String jsonData = globalUploadQueue.get(i).toString();
-            data.add(jsonData);
+        synchronized (globalUploadQueue) {
+            for (int i = 0; i < globalUploadQueue.size(); i++) {
+                String jsonData = globalUploadQueue.get(i).toString();
+                data.add(jsonData);
+            }
         }
 
         context.getSharedPreferences(NokeDefines.PREFS_NAME, MODE_PRIVATE).edit()
@@ -1163,9 +2643,6 @@ public class NokeDeviceManagerService extends Service {
     void retrieveUploadData(Context context) {
         SharedPreferences pref = context.getSharedPreferences(NokeDefines.PREFS_NAME, MODE_PRIVATE);
         Set<String> data = pref.getStringSet(NokeDefines.PREF_UPLOADDATA, null);
-        if (globalUploadQueue == null) {
-            globalUploadQueue = new ArrayList<>();
-        }
 
         if (data != null) {
             for (String entry : data) {
@@ -1175,7 +2652,9 @@ public class NokeDeviceManagerService extends Service {
                 } catch (JSONException e) {
                     e.printStackTrace();
                 }
-                globalUploadQueue.add(dataEntry);
+                synchronized (globalUploadQueue) {
+                    globalUploadQueue.add(dataEntry);
+                }
             }
         }
     }
@@ -1188,9 +2667,9 @@ public class NokeDeviceManagerService extends Service {
     @SuppressWarnings("unused")
     void cacheNokeDevices(Context context) {
         Set<String> setNokeDevices = new HashSet<>();
-        for (Map.Entry<String, NokeDevice> entry : this.nokeDevices.entrySet()) {
+        for (NokeDevice noke : mNokeDevices.snapshot()) {
             Gson gson = new Gson();
-            String jsonNoke = gson.toJson(entry.getValue());
+            String jsonNoke = gson.toJson(noke);
             setNokeDevices.add(jsonNoke);
         }
 
@@ -1215,8 +2694,10 @@ public class NokeDeviceManagerService extends Service {
                 for (String entry : locks) {
                     Gson gson = new Gson();
                     NokeDevice noke = gson.fromJson(entry, NokeDevice.class);
-                    nokeDevices.put(noke.getMac(), noke);
+                    noke.mService = this;
+                    mNokeDevices.put(noke);
                 }
+                invalidateScanFilters();
             } catch (final Exception e) {
                 Log.e(TAG, "Retrieval Error");
             }
@@ -1230,122 +2711,240 @@ public class NokeDeviceManagerService extends Service {
      *
      * @param noke The device to read the session characteristic from.
      */
-    private void readStateCharacteristic(NokeDevice noke) {
-        if (mBluetoothAdapter == null || noke.gatt == null) {
+    private void readStateCharacteristic(final NokeDevice noke) {
+        final GattHandles handles = noke.gattHandles;
+        if (mBluetoothAdapter == null || handles == null || noke.gattQueue == null) {
             return;
         }
 
-        BluetoothGattService RxService = noke.gatt.getService(NokeDefines.RX_SERVICE_UUID);
+        noke.gattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_READ_CHARACTERISTIC) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readCharacteristic(handles.state);
+            }
+
+            @Override
+            void onCompleted(int status, byte[] value) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    noke.setSession(value);
+                    noke.sessionFresh = true;
+                    markUnlockTrace(noke, NokeUnlockTrace.Phase.SESSION_READ);
+                    enableTXNotification(noke);
+                } else {
+                    mListenerHub.onError(noke, NokeMobileError.ERROR_BLUETOOTH_GATT, "Failed to read session: " + status);
+                }
+            }
 
-        if (noke.gatt == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
-        }
+            @Override
+            void onFailed(int reason) {
+                onGattOperationFailed(noke, "Session read", reason);
+            }
+        });
+    }
 
-        if (RxService == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
+    /**
+     * Reads the session of a connected device again
+     *
+     * @param noke     the connected device
+     * @param announce true to report the device as connected once the session is read
+     */
+    private void readSession(final NokeDevice noke, final boolean announce) {
+        final GattHandles handles = noke.gattHandles;
+        if (handles == null || handles.state == null || noke.gattQueue == null) {
             return;
         }
-        BluetoothGattCharacteristic StateChar = RxService.getCharacteristic(NokeDefines.STATE_CHAR_UUID);
-        if (StateChar == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
+
+        noke.gattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_READ_CHARACTERISTIC) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readCharacteristic(handles.state);
+            }
+
+            @Override
+            void onCompleted(int status, byte[] value) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    mListenerHub.onError(noke, NokeMobileError.ERROR_BLUETOOTH_GATT, "Failed to read session: " + status);
+                    return;
+                }
+                noke.setSession(value);
+                noke.sessionFresh = true;
+                if (announce) {
+                    markUnlockTrace(noke, NokeUnlockTrace.Phase.SESSION_READ);
+                }
+                if (announce && moveConnectionState(noke, NokeConnectionState.CONNECTED)) {
+                    mListenerHub.onNokeConnected(noke);
+                }
+            }
+
+            @Override
+            void onFailed(int reason) {
+                onGattOperationFailed(noke, "Session read", reason);
+            }
+        });
+    }
+
+    /**
+     * Reopens the connection of a pinned device that dropped.  The stack connects with autoConnect as soon as the
+     * device is in range again, and the device keeps its connection slot in the meantime
+     *
+     * @param noke the pinned device
+     */
+    private void reconnectPinned(final NokeDevice noke) {
+        mGattTelemetry.onKeepAliveReconnect();
+        if (noke.commands != null && !noke.commands.isEmpty()) {
+            mListenerHub.onError(noke, NokeMobileError.ERROR_BLUETOOTH_GATT, "Connection lost while sending commands, reconnecting");
+            noke.commands.clear();
+        }
+        moveConnectionState(noke, NokeConnectionState.DISCONNECTED);
+        if (!startConnecting(noke)) {
             return;
         }
-        noke.gatt.readCharacteristic(StateChar);
+        noke.keepAlive = true;
+        noke.sessionFresh = false;
+        mBleHandler.obtainMessage(BleHandler.MSG_RECONNECT_PINNED, noke).sendToTarget();
     }
 
     /**
-     * Enable Notification on TX characteristic
+     * Enable Notification on TX characteristic.  In firmware mode this is the firmware TX characteristic.  The
+     * device is connected once the descriptor write completes
      *
      * @param noke Noke device
      */
 
-    private void enableTXNotification(NokeDevice noke) {
-
-        if (noke.gatt == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
+    private void enableTXNotification(final NokeDevice noke) {
+        final GattHandles handles = noke.gattHandles;
+        if (handles == null || noke.gattQueue == null) {
+            mListenerHub.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
             return;
         }
 
-        BluetoothGattService RxService = noke.gatt.getService(NokeDefines.RX_SERVICE_UUID);
-        if (RxService == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
-            return;
-        }
-        BluetoothGattCharacteristic TxChar = RxService.getCharacteristic(NokeDefines.TX_CHAR_UUID);
-        if (TxChar == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
-            return;
-        }
-        noke.gatt.setCharacteristicNotification(TxChar, true);
+        noke.gattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_WRITE_DESCRIPTOR) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                gatt.setCharacteristicNotification(handles.tx, true);
+                handles.txCccd.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                return gatt.writeDescriptor(handles.txCccd);
+            }
+
+            @Override
+            void onCompleted(int status, byte[] value) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    moveConnectionState(noke, NokeConnectionState.CONNECTED);
+                    markUnlockTrace(noke, NokeUnlockTrace.Phase.NOTIFICATIONS_ENABLED);
+                    if (noke.keepAlive) {
+                        noke.keepAlive = false;
+                    } else {
+                        mListenerHub.onNokeConnected(noke);
+                    }
+                } else {
+                    mListenerHub.onError(noke, NokeMobileError.ERROR_BLUETOOTH_GATT, "Failed to enable notifications: " + status);
+                }
+            }
 
-        BluetoothGattDescriptor descriptor = TxChar.getDescriptor(NokeDefines.CCCD);
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        noke.gatt.writeDescriptor(descriptor);
+            @Override
+            void onFailed(int reason) {
+                onGattOperationFailed(noke, "Enable notifications", reason);
+            }
+        });
     }
 
+    /**
+     * Write RX characteristic on Noke device.  Writes the first command of the device once the operations queued
+     * before it have completed.  When pipelined writes are enabled, a sync of several commands starts a pipeline
+     * instead
+     *
+     * @param noke Noke device
+     */
 
-    private void enableFirmwareTXNotification(NokeDevice noke) {
-        // TODO: - 2i support
-        if (noke.gatt == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
+    void writeRXCharacteristic(final NokeDevice noke) {
+        final GattHandles handles = noke.gattHandles;
+        if (handles == null || noke.gattQueue == null || noke.commands == null || noke.commands.isEmpty()) {
             return;
         }
-
-        BluetoothGattService RxService = noke.gatt.getService(NokeDefines.FIRMWARE_4I_RX_SERVICE_UUID);
-        if (RxService == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
+        if (handles.rx == null) {
+            mListenerHub.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
             return;
         }
-        BluetoothGattCharacteristic TxChar = RxService.getCharacteristic(NokeDefines.FIRMWARE_4I_TX_CHAR_UUID);
-        if (TxChar == null) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
+
+        noke.sessionFresh = false;
+        if (mPipelineWindow > 1 && noke.commands.size() > 1) {
+            noke.commandPipeline = new CommandPipeline(mPipelineWindow, noke.commands);
+            mGattTelemetry.onPipelineStarted();
+            writePipelinedCommands(noke);
             return;
         }
-        noke.gatt.setCharacteristicNotification(TxChar, true);
-        BluetoothGattDescriptor descriptor = TxChar.getDescriptor(NokeDefines.CCCD);
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        noke.gatt.writeDescriptor(descriptor);
+        noke.commandPipeline = null;
+        writeCommand(noke, handles, NokeDefines.hexToBytes(noke.commands.get(0)), false);
     }
 
     /**
-     * Write RX characteristic on Noke device.
+     * Writes commands from the pipeline of a device until its window is full
      *
      * @param noke Noke device
      */
+    private void writePipelinedCommands(NokeDevice noke) {
+        CommandPipeline pipeline = noke.commandPipeline;
+        GattHandles handles = noke.gattHandles;
+        if (pipeline == null || handles == null || handles.rx == null || noke.gattQueue == null) {
+            return;
+        }
+        CommandPipeline.Command command;
+        while ((command = pipeline.poll()) != null) {
+            writeCommand(noke, handles, command.bytes, !pipeline.isStopAndWait());
+        }
+    }
 
-    void writeRXCharacteristic(final NokeDevice noke) {
-
-        try {
-            if (noke.gatt == null) {
-                return;
+    /**
+     * Queues a write of one command to the RX characteristic
+     *
+     * @param noke       Noke device
+     * @param handles    handles of the connection
+     * @param command    the command
+     * @param noResponse true to write without response if the characteristic supports it
+     */
+    private void writeCommand(final NokeDevice noke, final GattHandles handles, final byte[] command, boolean noResponse) {
+        final int writeType = noResponse && (handles.rx.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+                ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+        noke.gattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_WRITE_CHARACTERISTIC) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                handles.rx.setWriteType(writeType);
+                handles.rx.setValue(command);
+                if (noke.commandSentAt == 0) {
+                    noke.commandSentAt = SystemClock.elapsedRealtime();
+                }
+                armWatchdog(noke, "Command", NokeDefines.COMMAND_TIMEOUT);
+                markUnlockTrace(noke, NokeUnlockTrace.Phase.COMMAND_WRITTEN);
+                return gatt.writeCharacteristic(handles.rx);
             }
 
-            Handler handler = new Handler(Looper.getMainLooper());
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-
-                    BluetoothGattService RxService = noke.gatt.getService(NokeDefines.RX_SERVICE_UUID);
-
-                    if (RxService == null) {
-                        mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
-                        return;
-                    }
-                    BluetoothGattCharacteristic RxChar = RxService.getCharacteristic(NokeDefines.RX_CHAR_UUID);
-                    if (RxChar == null) {
-                        mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
-                        return;
-                    }
-
-                    RxChar.setValue(NokeDefines.hexToBytes(noke.commands.get(0)));
-                    boolean status = noke.gatt.writeCharacteristic(RxChar);
-                    Log.d(TAG, "write TXchar - status =" + status);
+            @Override
+            void onCompleted(int status, byte[] value) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    mListenerHub.onError(noke, NokeMobileError.ERROR_BLUETOOTH_GATT, "Failed to write command: " + status);
                 }
-            });
+            }
 
+            @Override
+            void onFailed(int reason) {
+                onGattOperationFailed(noke, "Command write", reason);
+            }
+        });
+    }
 
-        } catch (NullPointerException e) {
-            mGlobalNokeListener.onError(noke, NokeMobileError.ERROR_INVALID_NOKE_DEVICE, "Invalid noke device");
+    /**
+     * Reports a GATT operation that the stack kept rejecting or that never got a callback
+     *
+     * @param noke      Noke device
+     * @param operation name of the operation for the error message
+     * @param reason    GattOperationQueue.FAILURE_BUSY or FAILURE_TIMEOUT
+     */
+    private void onGattOperationFailed(NokeDevice noke, String operation, int reason) {
+        if (reason == GattOperationQueue.FAILURE_TIMEOUT) {
+            cancelWatchdog(noke);
+            onConnectionTimeout(noke, operation);
+        } else {
+            mListenerHub.onError(noke, NokeMobileError.ERROR_BLUETOOTH_GATT, operation + " failed, Bluetooth is busy");
         }
     }
 
@@ -1353,30 +2952,226 @@ public class NokeDeviceManagerService extends Service {
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * callback, which closes the connection.  If the callback doesn't arrive within DISCONNECT_TIMEOUT the
+     * connection is closed anyway.  Doesn't block, so any number of devices can be disconnected at once.
      */
     public void disconnectNoke(final NokeDevice noke) {
-        if (mBluetoothAdapter == null || noke.gatt == null) {
+        cancelConnectionRetry(noke);
+        BluetoothGatt gatt = noke.gatt;
+        if (mBluetoothAdapter == null || gatt == null) {
             return;
         }
 
-        Handler handler = new Handler(Looper.getMainLooper());
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
+        Teardown teardown = new Teardown(noke, gatt, SystemClock.elapsedRealtime());
+        if (mTeardowns.putIfAbsent(gatt, teardown) != null) {
+            return;
+        }
+        scheduleTimeout(teardown, NokeDefines.DISCONNECT_TIMEOUT);
+        gatt.disconnect();
+    }
 
-                if (noke.gatt != null) {
-                    noke.gatt.disconnect();
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    noke.gatt.close();
-                    noke.gatt = null;
-                }
+    /**
+     * A disconnect waiting for its STATE_DISCONNECTED callback.  The GATT connection is closed when the callback
+     * arrives, or when the timeout fires if it never does.  Whichever comes first removes the teardown from
+     * mTeardowns, so the connection is only closed once
+     */
+    private final class Teardown extends TimerWheel.Timeout {
+        private final NokeDevice noke;
+        private final BluetoothGatt gatt;
+        private final long startedAt;
+
+        Teardown(NokeDevice noke, BluetoothGatt gatt, long startedAt) {
+            this.noke = noke;
+            this.gatt = gatt;
+            this.startedAt = startedAt;
+        }
+
+        @Override
+        void onTimeout(long now) {
+            if (mTeardowns.remove(gatt, this)) {
+                Log.d(TAG, "Disconnect timed out, closing gatt");
+                onNokeTornDown(noke);
+                finish(true);
             }
-        });
+        }
+
+        /**
+         * Records the teardown and closes the connection on the Bluetooth thread
+         *
+         * @param timedOut true if the STATE_DISCONNECTED callback never arrived
+         */
+        void finish(boolean timedOut) {
+            mTimerWheel.cancel(this);
+            mGattTelemetry.onTeardown(SystemClock.elapsedRealtime() - startedAt, timedOut);
+            mBleHandler.obtainMessage(BleHandler.MSG_CLOSE_TEARDOWN, this).sendToTarget();
+        }
+
+        /**
+         * Closes the connection.  Runs on the Bluetooth thread
+         */
+        void close() {
+            if (noke.gatt == gatt) {
+                closeGatt(noke);
+            } else {
+                mGattDevices.remove(gatt);
+                gatt.close();
+            }
+        }
+    }
+
+    /**
+     * Arms the watchdog of a device for the connection step that just started, replacing the deadline of the
+     * previous step.  Arming reuses the device's watchdog, so it costs a wheel insert and no allocation
+     *
+     * @param noke      the noke device
+     * @param operation name of the step for the error message
+     * @param timeout   time in milliseconds the step can take
+     */
+    private void armWatchdog(NokeDevice noke, String operation, long timeout) {
+        Watchdog watchdog = noke.watchdog;
+        if (watchdog == null) {
+            watchdog = new Watchdog(noke);
+            noke.watchdog = watchdog;
+        }
+        watchdog.operation = operation;
+        scheduleTimeout(watchdog, timeout);
+    }
+
+    private void cancelWatchdog(NokeDevice noke) {
+        Watchdog watchdog = noke.watchdog;
+        if (watchdog != null) {
+            watchdog.operation = null;
+            mTimerWheel.cancel(watchdog);
+        }
+    }
+
+    /**
+     * Reports a connection step that never finished and tears the connection down, which closes the GATT
+     * connection, frees the connection slot and reports the device as disconnected
+     *
+     * @param noke      the noke device
+     * @param operation name of the step that timed out
+     */
+    private void onConnectionTimeout(NokeDevice noke, String operation) {
+        mGattTelemetry.onConnectionTimeout();
+        mListenerHub.onError(noke, NokeMobileError.ERROR_CONNECTION_TIMEOUT, operation + " timed out");
+        //The disconnect callback only reports the teardown for devices that aren't retrying
+        noke.connectionAttempts = 0;
+        if (noke.gatt != null) {
+            disconnectNoke(noke);
+        } else {
+            closeGatt(noke);
+            onNokeTornDown(noke);
+        }
+    }
+
+    /**
+     * Deadline for the connection step a device is in: connecting, service discovery, the session read and
+     * enabling notifications, or waiting for the lock to answer a command.  Each device has one, which is moved
+     * along as the connection progresses
+     */
+    final class Watchdog extends TimerWheel.Timeout {
+        private final NokeDevice noke;
+        /**
+         * Step being watched, or null once the watchdog is cancelled
+         */
+        volatile String operation;
+
+        Watchdog(NokeDevice noke) {
+            this.noke = noke;
+        }
+
+        @Override
+        void onTimeout(long now) {
+            String expired = operation;
+            if (expired == null) {
+                return;
+            }
+            operation = null;
+            onConnectionTimeout(noke, expired);
+        }
+    }
+
+    /**
+     * Moves a device to a new connection state and records how long it spent in the old one.  Transitions the
+     * state table doesn't allow are logged and counted, and leave the state unchanged
+     *
+     * @param noke the noke device
+     * @param next the state to move to
+     * @return true if the device is in the new state
+     */
+    boolean moveConnectionState(NokeDevice noke, NokeConnectionState next) {
+        NokeConnectionState current = noke.getState();
+        if (moveConnectionState(noke, null, next)) {
+            return true;
+        }
+        mGattTelemetry.onIllegalTransition();
+        Log.w(TAG, "Illegal connection state change for " + noke.getMac() + ": " + current + " to " + next);
+        return false;
+    }
+
+    /**
+     * Moves a device to a new connection state only if it is in the expected state
+     *
+     * @param noke     the noke device
+     * @param expected the state the device has to be in
+     * @param next     the state to move to
+     * @return true if the device was in the expected state and moved
+     */
+    private boolean compareAndMoveConnectionState(NokeDevice noke, NokeConnectionState expected, NokeConnectionState next) {
+        return moveConnectionState(noke, expected, next);
+    }
+
+    private boolean moveConnectionState(NokeDevice noke, NokeConnectionState expected, NokeConnectionState next) {
+        long now = SystemClock.elapsedRealtime();
+        NokeDevice.StateChange left = noke.moveTo(expected, next, now);
+        if (left == null) {
+            return false;
+        }
+        if (left.state == next) {
+            return true;
+        }
+        mGattTelemetry.onStateLeft(left.state, left.since >= 0 ? now - left.since : -1);
+        if (next == NokeConnectionState.CONNECTED) {
+            noke.connectedAt = now;
+            noke.connectionAttempts = 0;
+            cancelWatchdog(noke);
+        } else if (next == NokeConnectionState.UNLOCKED && noke.connectedAt > 0) {
+            mGattTelemetry.onUnlocked(now - noke.connectedAt);
+            noke.connectedAt = 0;
+        } else if (next == NokeConnectionState.DISCONNECTED) {
+            noke.connectedAt = 0;
+            noke.keepAlive = false;
+            cancelWatchdog(noke);
+        }
+        return true;
+    }
+
+    /**
+     * Claims a device for a new connection.  Only one caller can move a device from disconnected or discovered to
+     * connecting, so a device that is already connecting or connected isn't connected twice
+     *
+     * @param noke the noke device
+     * @return true if the caller should connect
+     */
+    private boolean startConnecting(NokeDevice noke) {
+        return compareAndMoveConnectionState(noke, NokeConnectionState.DISCOVERED, NokeConnectionState.CONNECTING)
+                || compareAndMoveConnectionState(noke, NokeConnectionState.DISCONNECTED, NokeConnectionState.CONNECTING);
+    }
+
+    /**
+     * Reports a device whose connection has ended as disconnected.  Doesn't upload the responses, since it also runs
+     * from timeouts and app calls that must not wait for the network
+     *
+     * @param noke the noke device
+     */
+    private void onNokeTornDown(NokeDevice noke) {
+        moveConnectionState(noke, NokeConnectionState.DISCONNECTED);
+        noke.unlockTrace = null;
+        noke.firstAdvertisementAt = 0;
+        mDiscoveryCoalescer.reset(noke.getMacValue());
+        mConnectionPool.release(noke);
+        mListenerHub.onNokeDisconnected(noke);
     }
 
     /**
@@ -1386,9 +3181,8 @@ public class NokeDeviceManagerService extends Service {
      */
     private boolean isServiceRunningInForeground() {
 
-        ActivityManager.RunningAppProcessInfo myProcess = new ActivityManager.RunningAppProcessInfo();
-        ActivityManager.getMyMemoryState(myProcess);
-        return myProcess.importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+        ActivityManager.getMyMemoryState(mProcessInfo);
+        return mProcessInfo.importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
 
     }
 
@@ -1413,7 +3207,7 @@ public class NokeDeviceManagerService extends Service {
                         case BluetoothAdapter.STATE_TURNING_ON:
                             break;
                     }
-                    mGlobalNokeListener.onBluetoothStatusChanged(state);
+                    mListenerHub.onBluetoothStatusChanged(state);
                 }
             }
         }
@@ -1429,18 +3223,18 @@ public class NokeDeviceManagerService extends Service {
         NokeDefines.uploadURL = uploadUrl;
     }
 
-    private void uploadDataCallback(String s) {
+    private void uploadDataCallback(String s, JSONObject[] uploaded, int[] responseCounts) {
         try {
             JSONObject obj = new JSONObject(s);
             int errorCode = obj.getInt("error_code");
             String message = obj.getString("message");
 
             if (errorCode == NokeMobileError.SUCCESS) {
-                this.globalUploadQueue.clear();
+                removeUploadedData(uploaded, responseCounts);
             }
-            this.getNokeListener().onDataUploaded(errorCode, message);
+            mListenerHub.onDataUploaded(errorCode, message);
         } catch (JSONException e) {
-            this.getNokeListener().onDataUploaded(NokeMobileError.ERROR_JSON_UPLOAD, e.toString());
+            mListenerHub.onDataUploaded(NokeMobileError.ERROR_JSON_UPLOAD, e.toString());
         }
     }
 
@@ -1467,7 +3261,7 @@ public class NokeDeviceManagerService extends Service {
                         NokeDeviceManagerService.this.restoreKeyCallback(NokeMobileApiClient.POST(url, jsonObject.toString(), nokeMobileApiKey, "", 0), noke);
                     } catch (PackageManager.NameNotFoundException | NullPointerException e) {
                         e.printStackTrace();
-                        mGlobalNokeListener.onError(null, NokeMobileError.ERROR_MISSING_API_KEY, "No API Key found. Have you set it in your Android Manifest?");
+                        mListenerHub.onError(null, NokeMobileError.ERROR_MISSING_API_KEY, "No API Key found. Have you set it in your Android Manifest?");
                         noke.isRestoring = false;
                     }
                 } catch (Exception e) {
@@ -1518,7 +3312,7 @@ public class NokeDeviceManagerService extends Service {
                         NokeDeviceManagerService.this.confirmRestoreCallback(NokeMobileApiClient.POST(url, jsonObject.toString(), nokeMobileApiKey, "", 0));
                     } catch (PackageManager.NameNotFoundException | NullPointerException e) {
                         e.printStackTrace();
-                        mGlobalNokeListener.onError(null, NokeMobileError.ERROR_MISSING_API_KEY, "No API Key found. Have you set it in your Android Manifest?");
+                        mListenerHub.onError(null, NokeMobileError.ERROR_MISSING_API_KEY, "No API Key found. Have you set it in your Android Manifest?");
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -1536,11 +3330,11 @@ public class NokeDeviceManagerService extends Service {
             String message = obj.getString("message");
 
             if (errorCode == NokeMobileError.SUCCESS) {
-                this.getNokeListener().onDataUploaded(errorCode, "Restore Successful: " + message);
+                mListenerHub.onDataUploaded(errorCode, "Restore Successful: " + message);
             }
 
         } catch (JSONException e) {
-            this.getNokeListener().onDataUploaded(NokeMobileError.ERROR_JSON_UPLOAD, e.toString());
+            mListenerHub.onDataUploaded(NokeMobileError.ERROR_JSON_UPLOAD, e.toString());
         }
     }
 
@@ -0,0 +1,442 @@
+package com.noke.nokemobilelibrary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Thread-safe registry of the Noke devices added to the device manager, keyed by MAC address.  The registry is
+ * accessed from the scan callback, the GATT callbacks and the app's main thread.
+ *
+ * Lookups don't take any locks.  Adds and removes take one of a fixed set of locks chosen by the MAC address, so
+ * changes to different devices rarely contend and changes to the same device are applied (and reported to
+ * listeners) in order.  Listing the devices returns an immutable snapshot that is only rebuilt after a change.
+ *
+ * In compact mode devices are keyed by their MAC address packed into a long and stored in open addressing tables
+ * instead of map nodes, so looking a device up by its packed address doesn't allocate.  This is meant for apps that load every lock at a large site.  In both modes the order a
+ * device was added in is kept on the device itself, so snapshots list devices in the order they were added.
+ */
+
+public final class NokeDeviceRegistry {
+
+    /**
+     * Receives changes to the registry.  Called on the thread that made the change while holding the lock for the
+     * device, so implementations should return quickly
+     */
+    public interface Listener {
+        void onNokeDeviceAdded(NokeDevice noke);
+
+        void onNokeDeviceRemoved(NokeDevice noke);
+    }
+
+    /**
+     * Number of write locks. Must be a power of two
+     */
+    static final int STRIPE_COUNT = 16;
+
+    /**
+     * Storage for the devices.  Callers hold the lock for the MAC address when changing a device
+     */
+    private interface Store {
+        NokeDevice get(String mac);
+
+        NokeDevice get(long mac);
+
+        NokeDevice put(NokeDevice noke);
+
+        NokeDevice remove(String mac);
+
+        NokeDevice remove(long mac);
+
+        int size();
+
+        List<NokeDevice> values();
+    }
+
+    /**
+     * Snapshot of the devices tagged with the modification count it was built from
+     */
+    private static final class Snapshot {
+        final long modCount;
+        final List<NokeDevice> devices;
+
+        Snapshot(long modCount, List<NokeDevice> devices) {
+            this.modCount = modCount;
+            this.devices = devices;
+        }
+    }
+
+    private static final Comparator<NokeDevice> INSERTION_ORDER = new Comparator<NokeDevice>() {
+        @Override
+        public int compare(NokeDevice lhs, NokeDevice rhs) {
+            return lhs.registryOrder < rhs.registryOrder ? -1 : lhs.registryOrder == rhs.registryOrder ? 0 : 1;
+        }
+    };
+
+    /**
+     * Default store
+     */
+    private static final class MapStore implements Store {
+        private final ConcurrentHashMap<String, NokeDevice> devices = new ConcurrentHashMap<>(16, 0.75f, STRIPE_COUNT);
+
+        @Override
+        public NokeDevice get(String mac) {
+            return devices.get(mac);
+        }
+
+        @Override
+        public NokeDevice get(long mac) {
+            return devices.get(MacAddress.format(mac));
+        }
+
+        @Override
+        public NokeDevice put(NokeDevice noke) {
+            return devices.put(noke.getMac(), noke);
+        }
+
+        @Override
+        public NokeDevice remove(String mac) {
+            return devices.remove(mac);
+        }
+
+        @Override
+        public NokeDevice remove(long mac) {
+            return devices.remove(MacAddress.format(mac));
+        }
+
+        @Override
+        public int size() {
+            return devices.size();
+        }
+
+        @Override
+        public List<NokeDevice> values() {
+            ArrayList<NokeDevice> sorted = new ArrayList<>(devices.values());
+            Collections.sort(sorted, INSERTION_ORDER);
+            return sorted;
+        }
+    }
+
+    /**
+     * Compact store. Devices are spread over segments by packed MAC address.  Devices with an address that can't be
+     * packed are kept in a small fallback map
+     */
+    private static final class CompactStore implements Store {
+        @SuppressWarnings("unchecked")
+        private final ConcurrentLongMap<NokeDevice>[] segments = (ConcurrentLongMap<NokeDevice>[]) new ConcurrentLongMap<?>[STRIPE_COUNT];
+        private final ConcurrentHashMap<String, NokeDevice> fallback = new ConcurrentHashMap<>(4, 0.75f, 1);
+
+        CompactStore() {
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                segments[i] = new ConcurrentLongMap<>();
+            }
+        }
+
+        private ConcurrentLongMap<NokeDevice> segmentFor(long mac) {
+            return segments[(ConcurrentLongMap.hash(mac) >>> 28) & (STRIPE_COUNT - 1)];
+        }
+
+        @Override
+        public NokeDevice get(String mac) {
+            long packed = MacAddress.parse(mac);
+            if (packed == MacAddress.INVALID) {
+                return fallback.get(mac);
+            }
+            return segmentFor(packed).get(packed);
+        }
+
+        @Override
+        public NokeDevice get(long mac) {
+            return segmentFor(mac).get(mac);
+        }
+
+        @Override
+        public NokeDevice put(NokeDevice noke) {
+            long packed = noke.getMacValue();
+            if (packed == MacAddress.INVALID) {
+                return fallback.put(noke.getMac(), noke);
+            }
+            return segmentFor(packed).put(packed, noke, false);
+        }
+
+        @Override
+        public NokeDevice remove(String mac) {
+            long packed = MacAddress.parse(mac);
+            if (packed == MacAddress.INVALID) {
+                return fallback.remove(mac);
+            }
+            return segmentFor(packed).remove(packed);
+        }
+
+        @Override
+        public NokeDevice remove(long mac) {
+            return segmentFor(mac).remove(mac);
+        }
+
+        @Override
+        public int size() {
+            int size = fallback.size();
+            for (ConcurrentLongMap<NokeDevice> segment : segments) {
+                size += segment.size();
+            }
+            return size;
+        }
+
+        @Override
+        public List<NokeDevice> values() {
+            ArrayList<NokeDevice> devices = new ArrayList<>(size());
+            for (ConcurrentLongMap<NokeDevice> segment : segments) {
+                segment.values(devices);
+            }
+            devices.addAll(fallback.values());
+            Collections.sort(devices, INSERTION_ORDER);
+            return devices;
+        }
+    }
+
+    private volatile Store store = new MapStore();
+    private final Object[] stripes = new Object[STRIPE_COUNT];
+    /**
+     * Incremented after every add or remove. Used to tell if the cached snapshot is stale
+     */
+    private final AtomicLong modCount = new AtomicLong();
+    /**
+     * Source of the order devices are added in
+     */
+    private final AtomicLong insertionOrder = new AtomicLong();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.<NokeDevice>emptyList());
+
+    public NokeDeviceRegistry() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Picks the lock by packed address when the address can be packed, so a device is locked the same way whether
+     * it is changed by its string or packed address
+     */
+    private Object stripeFor(String mac) {
+        long packed = MacAddress.parse(mac);
+        if (packed != MacAddress.INVALID) {
+            return stripeFor(packed);
+        }
+        int h = mac.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPE_COUNT - 1)];
+    }
+
+    private Object stripeFor(long mac) {
+        return stripes[(ConcurrentLongMap.hash(mac) >>> 28) & (STRIPE_COUNT - 1)];
+    }
+
+    private Object stripeFor(NokeDevice noke) {
+        long packed = noke.getMacValue();
+        return packed != MacAddress.INVALID ? stripeFor(packed) : stripeFor(noke.getMac());
+    }
+
+    /**
+     * @param mac MAC address of the device
+     * @return the device or null if it hasn't been added
+     */
+    public NokeDevice get(String mac) {
+        return store.get(mac);
+    }
+
+    /**
+     * Looks a device up by its MAC address packed into a long.  Only finds devices whose address can be packed.  The
+     * default store formats the address for the lookup; the compact store doesn't allocate
+     *
+     * @param mac MAC address of the device, as returned by MacAddress.parse
+     * @return the device or null if it hasn't been added
+     */
+    NokeDevice get(long mac) {
+        if (mac == MacAddress.INVALID) {
+            return null;
+        }
+        return store.get(mac);
+    }
+
+    public boolean contains(String mac) {
+        return store.get(mac) != null;
+    }
+
+    /**
+     * Adds a device if no device with the same MAC address has been added
+     *
+     * @param noke the device to add
+     * @return the device already in the registry, or null if noke was added
+     */
+    public NokeDevice putIfAbsent(NokeDevice noke) {
+        synchronized (stripeFor(noke)) {
+            NokeDevice existing = store.get(noke.getMac());
+            if (existing != null) {
+                return existing;
+            }
+            //Set before the device is published so a snapshot never sees it without its order
+            noke.registryOrder = insertionOrder.incrementAndGet();
+            store.put(noke);
+            modCount.incrementAndGet();
+            for (Listener listener : listeners) {
+                listener.onNokeDeviceAdded(noke);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Adds a device, replacing any device with the same MAC address.  The replaced device is reported as removed
+     *
+     * @param noke the device to add
+     * @return the device that was replaced, or null
+     */
+    public NokeDevice put(NokeDevice noke) {
+        synchronized (stripeFor(noke)) {
+            noke.registryOrder = insertionOrder.incrementAndGet();
+            NokeDevice previous = store.put(noke);
+            modCount.incrementAndGet();
+            for (Listener listener : listeners) {
+                if (previous != null) {
+                    listener.onNokeDeviceRemoved(previous);
+                }
+                listener.onNokeDeviceAdded(noke);
+            }
+            return previous;
+        }
+    }
+
+    /**
+     * @param mac MAC address of the device to remove
+     * @return the removed device, or null if it wasn't in the registry
+     */
+    public NokeDevice remove(String mac) {
+        synchronized (stripeFor(mac)) {
+            return removed(store.remove(mac));
+        }
+    }
+
+    /**
+     * @param mac MAC address of the device to remove, as returned by MacAddress.parse
+     * @return the removed device, or null if it wasn't in the registry
+     */
+    NokeDevice remove(long mac) {
+        if (mac == MacAddress.INVALID) {
+            return null;
+        }
+        synchronized (stripeFor(mac)) {
+            return removed(store.remove(mac));
+        }
+    }
+
+    /**
+     * Counts a removal and reports it to the listeners.  Call while holding the lock for the device
+     */
+    private NokeDevice removed(NokeDevice removed) {
+        if (removed == null) {
+            return null;
+        }
+        modCount.incrementAndGet();
+        for (Listener listener : listeners) {
+            listener.onNokeDeviceRemoved(removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all devices.  Devices added by other threads while clearing may remain
+     */
+    public void clear() {
+        for (NokeDevice noke : store.values()) {
+            remove(noke.getMac());
+        }
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    public boolean isEmpty() {
+        return store.size() == 0;
+    }
+
+    /**
+     * Returns the devices in the order they were added.  The list is shared between callers until the registry
+     * changes, so it is cheap to call repeatedly
+     *
+     * @return an immutable list of the devices
+     */
+    public List<NokeDevice> snapshot() {
+        Snapshot current = snapshot;
+        long count = modCount.get();
+        if (current.modCount == count) {
+            return current.devices;
+        }
+
+        List<NokeDevice> devices = store.values();
+        //Tagged with the count read before iterating, so a change made while building forces another rebuild
+        current = new Snapshot(count, Collections.unmodifiableList(devices));
+        snapshot = current;
+        return current.devices;
+    }
+
+    /**
+     * Switches between the default and compact storage.  Devices are moved to the new storage, keeping the order
+     * they were added in, and listeners aren't notified.  Blocks changes to the registry while the devices are moved
+     *
+     * @param compact true to key devices by packed MAC address in open addressing tables
+     */
+    public void setCompact(boolean compact) {
+        lockAndMove(0, compact);
+    }
+
+    public boolean isCompact() {
+        return store instanceof CompactStore;
+    }
+
+    /**
+     * Takes the write locks one at a time, then moves the devices to the new store once all of them are held
+     */
+    private void lockAndMove(int stripe, boolean compact) {
+        if (stripe < STRIPE_COUNT) {
+            synchronized (stripes[stripe]) {
+                lockAndMove(stripe + 1, compact);
+            }
+            return;
+        }
+        if (compact == isCompact()) {
+            return;
+        }
+        Store moved = compact ? new CompactStore() : new MapStore();
+        for (NokeDevice noke : store.values()) {
+            moved.put(noke);
+        }
+        store = moved;
+        modCount.incrementAndGet();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+}
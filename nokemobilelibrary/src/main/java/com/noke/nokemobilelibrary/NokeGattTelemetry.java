@@ -0,0 +1,783 @@
+package com.noke.nokemobilelibrary;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Counters and histograms for GATT connections and operations across all devices: how many operations are queued,
+ * how long they wait for the connection and how long the lock takes to answer them, how often connections are
+ * retried after GATT error 133, how long teardowns take, how busy the connection pool is and how long devices spend
+ * in each connection state.  Lock-free like the scan telemetry.
+ */
+
+public final class NokeGattTelemetry {
+
+    /**
+     * Bucket bounds in milliseconds for queue wait and operation latency
+     */
+    private static final long[] LATENCY_BOUNDS = {
+            5, 10, 20, 30, 50, 75, 100, 150, 200, 300, 500, 750, 1000, 2000, 5000};
+    /**
+     * Bucket bounds in milliseconds for the delay before retrying a connection
+     */
+    private static final long[] RETRY_DELAY_BOUNDS = {
+            250, 500, 750, 1000, 1500, 2000, 2500, 3000, 4000, 5000, 7500, 10000};
+    /**
+     * Bucket bounds for the number of attempts it took to connect
+     */
+    private static final long[] ATTEMPT_BOUNDS = {1, 2, 3, 4, 5, 6, 8, 10};
+    /**
+     * Bucket bounds in milliseconds for the time from disconnecting to closing the connection
+     */
+    private static final long[] TEARDOWN_BOUNDS = {
+            10, 20, 50, 100, 150, 200, 300, 500, 750, 1000, 1500, 2000, 3000};
+    /**
+     * Bucket bounds in milliseconds for the time a connection request waits for a slot
+     */
+    private static final long[] CONNECTION_WAIT_BOUNDS = {
+            0, 100, 250, 500, 1000, 2000, 5000, 10000, 20000, 30000, 60000};
+    /**
+     * Bucket bounds in milliseconds for the time spent in a connection state
+     */
+    private static final long[] STATE_BOUNDS = {
+            50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000, 30000, 60000};
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong busyRetries = new AtomicLong();
+    private final AtomicLong busyFailures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final NokeHistogram queueWait = new NokeHistogram(LATENCY_BOUNDS);
+    private final NokeHistogram operationLatency = new NokeHistogram(LATENCY_BOUNDS);
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong retriesScheduled = new AtomicLong();
+    private final AtomicLong retriesCancelled = new AtomicLong();
+    private final AtomicLong retryBudgetsExhausted = new AtomicLong();
+    private final NokeHistogram retryDelay = new NokeHistogram(RETRY_DELAY_BOUNDS);
+    private final NokeHistogram connectAttempts = new NokeHistogram(ATTEMPT_BOUNDS);
+    private final AtomicLong teardowns = new AtomicLong();
+    private final AtomicLong teardownTimeouts = new AtomicLong();
+    private final NokeHistogram teardownLatency = new NokeHistogram(TEARDOWN_BOUNDS);
+    private final AtomicLong connectionsGranted = new AtomicLong();
+    private final AtomicLong preemptions = new AtomicLong();
+    private final NokeHistogram connectionWait = new NokeHistogram(CONNECTION_WAIT_BOUNDS);
+    private final AtomicInteger pendingConnections = new AtomicInteger();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger maxConnections = new AtomicInteger();
+    /**
+     * Connection slots in use and available, integrated over time.  Only written by the connection pool while it
+     * holds its lock
+     */
+    private final AtomicLong usedSlotMillis = new AtomicLong();
+    private final AtomicLong availableSlotMillis = new AtomicLong();
+    private volatile long slotsChangedAt = -1;
+    private final NokeHistogram commandRoundTrip = new NokeHistogram(LATENCY_BOUNDS);
+    private final NokeHistogram commandRoundTripHighPriority = new NokeHistogram(LATENCY_BOUNDS);
+    private final AtomicLong mtuNegotiations = new AtomicLong();
+    private final AtomicInteger lastMtu = new AtomicInteger();
+    private final AtomicLong pipelinedSyncs = new AtomicLong();
+    private final AtomicLong pipelineFallbacks = new AtomicLong();
+    /**
+     * Time spent in each connection state, indexed by ordinal
+     */
+    private final NokeHistogram[] timeInState = newStateHistograms();
+    private final NokeHistogram connectedToUnlocked = new NokeHistogram(STATE_BOUNDS);
+    private final AtomicLong illegalTransitions = new AtomicLong();
+    private final AtomicLong connectionTimeouts = new AtomicLong();
+    private final AtomicLong pinnedResumes = new AtomicLong();
+    private final AtomicLong keepAliveReconnects = new AtomicLong();
+    private final NokeHistogram serviceDiscovery = new NokeHistogram(LATENCY_BOUNDS);
+    private final NokeHistogram serviceDiscoveryRefreshed = new NokeHistogram(LATENCY_BOUNDS);
+    private final AtomicLong gattCacheRefreshes = new AtomicLong();
+
+    private static NokeHistogram[] newStateHistograms() {
+        NokeHistogram[] histograms = new NokeHistogram[NokeConnectionState.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new NokeHistogram(STATE_BOUNDS);
+        }
+        return histograms;
+    }
+
+    /**
+     * @param depth depth of the connection's queue including the new operation
+     */
+    void onEnqueued(int depth) {
+        enqueued.incrementAndGet();
+        queueDepth.incrementAndGet();
+        int current = maxQueueDepth.get();
+        while (depth > current && !maxQueueDepth.compareAndSet(current, depth)) {
+            current = maxQueueDepth.get();
+        }
+    }
+
+    /**
+     * @param wait    time in milliseconds the operation waited in the queue
+     * @param latency time in milliseconds from starting the operation to its callback
+     * @param success true if the callback reported success
+     */
+    void onCompleted(long wait, long latency, boolean success) {
+        queueDepth.decrementAndGet();
+        completed.incrementAndGet();
+        if (!success) {
+            errors.incrementAndGet();
+        }
+        queueWait.record(wait);
+        operationLatency.record(latency);
+    }
+
+    void onBusyRetry() {
+        busyRetries.incrementAndGet();
+    }
+
+    /**
+     * @param reason GattOperationQueue.FAILURE_BUSY or FAILURE_TIMEOUT
+     */
+    void onFailed(int reason) {
+        queueDepth.decrementAndGet();
+        if (reason == GattOperationQueue.FAILURE_BUSY) {
+            busyFailures.incrementAndGet();
+        } else {
+            timeouts.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param count operations dropped because their connection was closed
+     */
+    void onDropped(int count) {
+        queueDepth.addAndGet(-count);
+        dropped.addAndGet(count);
+    }
+
+    /**
+     * @param attempts connection attempts it took to connect, including the first one
+     */
+    void onConnected(int attempts) {
+        connections.incrementAndGet();
+        connectAttempts.record(attempts);
+    }
+
+    /**
+     * @param delay time in milliseconds until the connection is retried
+     */
+    void onRetryScheduled(long delay) {
+        retriesScheduled.incrementAndGet();
+        retryDelay.record(delay);
+    }
+
+    void onRetryCancelled() {
+        retriesCancelled.incrementAndGet();
+    }
+
+    void onRetryBudgetExhausted() {
+        retryBudgetsExhausted.incrementAndGet();
+    }
+
+    /**
+     * @param latency  time in milliseconds from calling disconnect to the disconnect callback or the timeout
+     * @param timedOut true if the disconnect callback never arrived
+     */
+    void onTeardown(long latency, boolean timedOut) {
+        teardowns.incrementAndGet();
+        if (timedOut) {
+            teardownTimeouts.incrementAndGet();
+        }
+        teardownLatency.record(latency);
+    }
+
+    /**
+     * @param wait time in milliseconds the request waited for a connection slot
+     */
+    void onConnectionGranted(long wait) {
+        connectionsGranted.incrementAndGet();
+        connectionWait.record(wait);
+    }
+
+    void onPreempted() {
+        preemptions.incrementAndGet();
+    }
+
+    void onPendingChanged(int pending) {
+        pendingConnections.set(pending);
+    }
+
+    /**
+     * Called by the connection pool whenever a slot is taken or freed or the number of slots changes
+     *
+     * @param active connection slots in use
+     * @param max    connection slots available
+     * @param now    elapsed realtime in milliseconds
+     */
+    void onSlotsChanged(int active, int max, long now) {
+        long since = slotsChangedAt;
+        if (since >= 0 && now > since) {
+            usedSlotMillis.addAndGet(activeConnections.get() * (now - since));
+            availableSlotMillis.addAndGet(maxConnections.get() * (now - since));
+        }
+        slotsChangedAt = now;
+        activeConnections.set(active);
+        maxConnections.set(max);
+    }
+
+    /**
+     * @param roundTrip    time in milliseconds from writing a command to the lock's answer
+     * @param highPriority true if the connection priority was raised for a sync
+     */
+    void onCommandRoundTrip(long roundTrip, boolean highPriority) {
+        (highPriority ? commandRoundTripHighPriority : commandRoundTrip).record(roundTrip);
+    }
+
+    /**
+     * @param mtu the MTU the lock agreed to
+     */
+    void onMtuNegotiated(int mtu) {
+        mtuNegotiations.incrementAndGet();
+        lastMtu.set(mtu);
+    }
+
+    void onPipelineStarted() {
+        pipelinedSyncs.incrementAndGet();
+    }
+
+    void onPipelineFallback() {
+        pipelineFallbacks.incrementAndGet();
+    }
+
+    /**
+     * @param left the connection state a device left
+     * @param time time in milliseconds the device spent in it, or -1 if unknown
+     */
+    void onStateLeft(NokeConnectionState left, long time) {
+        if (time >= 0) {
+            timeInState[left.ordinal()].record(time);
+        }
+    }
+
+    /**
+     * @param latency time in milliseconds from reaching the connected state to unlocking
+     */
+    void onUnlocked(long latency) {
+        connectedToUnlocked.record(latency);
+    }
+
+    void onIllegalTransition() {
+        illegalTransitions.incrementAndGet();
+    }
+
+    void onConnectionTimeout() {
+        connectionTimeouts.incrementAndGet();
+    }
+
+    void onPinnedResume() {
+        pinnedResumes.incrementAndGet();
+    }
+
+    void onKeepAliveReconnect() {
+        keepAliveReconnects.incrementAndGet();
+    }
+
+    /**
+     * @param latency   time in milliseconds from starting service discovery to its callback
+     * @param refreshed true if the service cache was cleared before discovery
+     */
+    void onServiceDiscovery(long latency, boolean refreshed) {
+        (refreshed ? serviceDiscoveryRefreshed : serviceDiscovery).record(latency);
+    }
+
+    void onGattCacheRefreshed() {
+        gattCacheRefreshes.incrementAndGet();
+    }
+
+    /**
+     * Resets the counters and histograms.  The current queue depth is kept since it describes live connections
+     */
+    void reset() {
+        enqueued.set(0);
+        completed.set(0);
+        errors.set(0);
+        busyRetries.set(0);
+        busyFailures.set(0);
+        timeouts.set(0);
+        dropped.set(0);
+        maxQueueDepth.set(0);
+        queueWait.reset();
+        operationLatency.reset();
+        connections.set(0);
+        retriesScheduled.set(0);
+        retriesCancelled.set(0);
+        retryBudgetsExhausted.set(0);
+        retryDelay.reset();
+        connectAttempts.reset();
+        teardowns.set(0);
+        teardownTimeouts.set(0);
+        teardownLatency.reset();
+        connectionsGranted.set(0);
+        preemptions.set(0);
+        connectionWait.reset();
+        usedSlotMillis.set(0);
+        availableSlotMillis.set(0);
+        commandRoundTrip.reset();
+        commandRoundTripHighPriority.reset();
+        mtuNegotiations.set(0);
+        lastMtu.set(0);
+        pipelinedSyncs.set(0);
+        pipelineFallbacks.set(0);
+        for (NokeHistogram histogram : timeInState) {
+            histogram.reset();
+        }
+        connectedToUnlocked.reset();
+        illegalTransitions.set(0);
+        connectionTimeouts.set(0);
+        pinnedResumes.set(0);
+        keepAliveReconnects.set(0);
+        serviceDiscovery.reset();
+        serviceDiscoveryRefreshed.reset();
+        gattCacheRefreshes.set(0);
+    }
+
+    /**
+     * @return a copy of the current counters and histograms
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Immutable copy of the GATT telemetry
+     */
+    public static final class Snapshot {
+        private final long enqueued;
+        private final long completed;
+        private final long errors;
+        private final long busyRetries;
+        private final long busyFailures;
+        private final long timeouts;
+        private final long dropped;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final NokeHistogram.Snapshot queueWait;
+        private final NokeHistogram.Snapshot operationLatency;
+        private final long connections;
+        private final long retriesScheduled;
+        private final long retriesCancelled;
+        private final long retryBudgetsExhausted;
+        private final NokeHistogram.Snapshot retryDelay;
+        private final NokeHistogram.Snapshot connectAttempts;
+        private final long teardowns;
+        private final long teardownTimeouts;
+        private final NokeHistogram.Snapshot teardownLatency;
+        private final long connectionsGranted;
+        private final long preemptions;
+        private final NokeHistogram.Snapshot connectionWait;
+        private final int pendingConnections;
+        private final int activeConnections;
+        private final int maxConnections;
+        private final long usedSlotMillis;
+        private final long availableSlotMillis;
+        private final NokeHistogram.Snapshot commandRoundTrip;
+        private final NokeHistogram.Snapshot commandRoundTripHighPriority;
+        private final long mtuNegotiations;
+        private final int lastMtu;
+        private final long pipelinedSyncs;
+        private final long pipelineFallbacks;
+        private final NokeHistogram.Snapshot[] timeInState;
+        private final NokeHistogram.Snapshot connectedToUnlocked;
+        private final long illegalTransitions;
+        private final long connectionTimeouts;
+        private final long pinnedResumes;
+        private final long keepAliveReconnects;
+        private final NokeHistogram.Snapshot serviceDiscovery;
+        private final NokeHistogram.Snapshot serviceDiscoveryRefreshed;
+        private final long gattCacheRefreshes;
+
+        private Snapshot(NokeGattTelemetry telemetry) {
+            enqueued = telemetry.enqueued.get();
+            completed = telemetry.completed.get();
+            errors = telemetry.errors.get();
+            busyRetries = telemetry.busyRetries.get();
+            busyFailures = telemetry.busyFailures.get();
+            timeouts = telemetry.timeouts.get();
+            dropped = telemetry.dropped.get();
+            queueDepth = telemetry.queueDepth.get();
+            maxQueueDepth = telemetry.maxQueueDepth.get();
+            queueWait = telemetry.queueWait.snapshot();
+            operationLatency = telemetry.operationLatency.snapshot();
+            connections = telemetry.connections.get();
+            retriesScheduled = telemetry.retriesScheduled.get();
+            retriesCancelled = telemetry.retriesCancelled.get();
+            retryBudgetsExhausted = telemetry.retryBudgetsExhausted.get();
+            retryDelay = telemetry.retryDelay.snapshot();
+            connectAttempts = telemetry.connectAttempts.snapshot();
+            teardowns = telemetry.teardowns.get();
+            teardownTimeouts = telemetry.teardownTimeouts.get();
+            teardownLatency = telemetry.teardownLatency.snapshot();
+            connectionsGranted = telemetry.connectionsGranted.get();
+            preemptions = telemetry.preemptions.get();
+            connectionWait = telemetry.connectionWait.snapshot();
+            pendingConnections = telemetry.pendingConnections.get();
+            activeConnections = telemetry.activeConnections.get();
+            maxConnections = telemetry.maxConnections.get();
+            usedSlotMillis = telemetry.usedSlotMillis.get();
+            availableSlotMillis = telemetry.availableSlotMillis.get();
+            commandRoundTrip = telemetry.commandRoundTrip.snapshot();
+            commandRoundTripHighPriority = telemetry.commandRoundTripHighPriority.snapshot();
+            mtuNegotiations = telemetry.mtuNegotiations.get();
+            lastMtu = telemetry.lastMtu.get();
+            pipelinedSyncs = telemetry.pipelinedSyncs.get();
+            pipelineFallbacks = telemetry.pipelineFallbacks.get();
+            timeInState = new NokeHistogram.Snapshot[telemetry.timeInState.length];
+            for (int i = 0; i < timeInState.length; i++) {
+                timeInState[i] = telemetry.timeInState[i].snapshot();
+            }
+            connectedToUnlocked = telemetry.connectedToUnlocked.snapshot();
+            illegalTransitions = telemetry.illegalTransitions.get();
+            connectionTimeouts = telemetry.connectionTimeouts.get();
+            pinnedResumes = telemetry.pinnedResumes.get();
+            keepAliveReconnects = telemetry.keepAliveReconnects.get();
+            serviceDiscovery = telemetry.serviceDiscovery.snapshot();
+            serviceDiscoveryRefreshed = telemetry.serviceDiscoveryRefreshed.snapshot();
+            gattCacheRefreshes = telemetry.gattCacheRefreshes.get();
+        }
+
+        public long getEnqueued() {
+            return enqueued;
+        }
+
+        /**
+         * @return operations whose callback arrived, including callbacks that reported an error
+         */
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return completed operations whose callback reported an error status
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return times an operation was tried again because the stack was busy
+         */
+        public long getBusyRetries() {
+            return busyRetries;
+        }
+
+        /**
+         * @return operations that failed because the stack was still busy after all retries
+         */
+        public long getBusyFailures() {
+            return busyFailures;
+        }
+
+        /**
+         * @return operations whose callback didn't arrive in time
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * @return operations dropped because their connection was closed
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return operations currently queued or in progress on all connections
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return deepest queue seen on a single connection
+         */
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        /**
+         * @return time in milliseconds operations waited for the previous operation on their connection
+         */
+        public NokeHistogram.Snapshot getQueueWait() {
+            return queueWait;
+        }
+
+        /**
+         * @return time in milliseconds from starting an operation to its callback
+         */
+        public NokeHistogram.Snapshot getOperationLatency() {
+            return operationLatency;
+        }
+
+        /**
+         * @return connections that reached the connected state, whether or not they had to be retried
+         */
+        public long getConnections() {
+            return connections;
+        }
+
+        /**
+         * @return connection retries scheduled after GATT error 133
+         */
+        public long getRetriesScheduled() {
+            return retriesScheduled;
+        }
+
+        /**
+         * @return scheduled retries that were cancelled before they ran
+         */
+        public long getRetriesCancelled() {
+            return retriesCancelled;
+        }
+
+        /**
+         * @return connections given up on because every retry failed
+         */
+        public long getRetryBudgetsExhausted() {
+            return retryBudgetsExhausted;
+        }
+
+        /**
+         * @return time in milliseconds waited before each retry, including jitter
+         */
+        public NokeHistogram.Snapshot getRetryDelay() {
+            return retryDelay;
+        }
+
+        /**
+         * @return connection attempts it took to connect, including the first one
+         */
+        public NokeHistogram.Snapshot getConnectAttempts() {
+            return connectAttempts;
+        }
+
+        /**
+         * @return disconnects requested with disconnectNoke that have finished
+         */
+        public long getTeardowns() {
+            return teardowns;
+        }
+
+        /**
+         * @return disconnects whose callback didn't arrive, so the connection was closed by the timeout
+         */
+        public long getTeardownTimeouts() {
+            return teardownTimeouts;
+        }
+
+        /**
+         * @return time in milliseconds from calling disconnect to the disconnect callback or the timeout
+         */
+        public NokeHistogram.Snapshot getTeardownLatency() {
+            return teardownLatency;
+        }
+
+        /**
+         * @return connection requests that were given a slot
+         */
+        public long getConnectionsGranted() {
+            return connectionsGranted;
+        }
+
+        /**
+         * @return idle connections closed to make room for a request with a higher priority
+         */
+        public long getPreemptions() {
+            return preemptions;
+        }
+
+        /**
+         * @return time in milliseconds connection requests waited for a slot
+         */
+        public NokeHistogram.Snapshot getConnectionWait() {
+            return connectionWait;
+        }
+
+        /**
+         * @return connection requests waiting for a slot
+         */
+        public int getPendingConnections() {
+            return pendingConnections;
+        }
+
+        /**
+         * @return connection slots in use
+         */
+        public int getActiveConnections() {
+            return activeConnections;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        /**
+         * @return fraction of the available connection slots that were in use over time, up to the last time a
+         * slot was taken or freed
+         */
+        public double getSlotUtilization() {
+            return availableSlotMillis > 0 ? (double) usedSlotMillis / availableSlotMillis : 0;
+        }
+
+        /**
+         * @return time in milliseconds from writing a command to the lock's answer, at the default connection
+         * priority
+         */
+        public NokeHistogram.Snapshot getCommandRoundTrip() {
+            return commandRoundTrip;
+        }
+
+        /**
+         * @return time in milliseconds from writing a command to the lock's answer, while the connection priority
+         * was raised for a sync
+         */
+        public NokeHistogram.Snapshot getCommandRoundTripHighPriority() {
+            return commandRoundTripHighPriority;
+        }
+
+        /**
+         * @return successful MTU negotiations
+         */
+        public long getMtuNegotiations() {
+            return mtuNegotiations;
+        }
+
+        /**
+         * @return MTU agreed in the last negotiation, or 0
+         */
+        public int getLastMtu() {
+            return lastMtu;
+        }
+
+        /**
+         * @return syncs sent with pipelined writes
+         */
+        public long getPipelinedSyncs() {
+            return pipelinedSyncs;
+        }
+
+        /**
+         * @return pipelined syncs that fell back to stop-and-wait after an error result
+         */
+        public long getPipelineFallbacks() {
+            return pipelineFallbacks;
+        }
+
+        /**
+         * Time spent in a connection state, recorded when the device leaves it.  DISCOVERED is the wait before
+         * connecting, CONNECTING the time to bring the link up and DISCOVERING_SERVICES the time until the device
+         * is ready for commands
+         *
+         * @param state the connection state
+         * @return time in milliseconds spent in the state
+         */
+        public NokeHistogram.Snapshot getTimeInState(NokeConnectionState state) {
+            return timeInState[state.ordinal()];
+        }
+
+        /**
+         * @return time in milliseconds from reaching the connected state to unlocking, including syncs
+         */
+        public NokeHistogram.Snapshot getConnectedToUnlocked() {
+            return connectedToUnlocked;
+        }
+
+        /**
+         * @return state changes refused because the transition table doesn't allow them
+         */
+        public long getIllegalTransitions() {
+            return illegalTransitions;
+        }
+
+        /**
+         * @return connections torn down because a step didn't finish in time
+         */
+        public long getConnectionTimeouts() {
+            return connectionTimeouts;
+        }
+
+        /**
+         * @return connection requests for pinned devices served by the connection that was already open
+         */
+        public long getPinnedResumes() {
+            return pinnedResumes;
+        }
+
+        /**
+         * @return times a pinned device's connection dropped and was reopened in the background
+         */
+        public long getKeepAliveReconnects() {
+            return keepAliveReconnects;
+        }
+
+        /**
+         * @return time in milliseconds service discovery took when the services came from Android's cache
+         */
+        public NokeHistogram.Snapshot getServiceDiscovery() {
+            return serviceDiscovery;
+        }
+
+        /**
+         * @return time in milliseconds service discovery took after the cache was cleared
+         */
+        public NokeHistogram.Snapshot getServiceDiscoveryRefreshed() {
+            return serviceDiscoveryRefreshed;
+        }
+
+        /**
+         * @return times Android's service cache of a device was cleared
+         */
+        public long getGattCacheRefreshes() {
+            return gattCacheRefreshes;
+        }
+
+        @Override
+        public String toString() {
+            return "enqueued=" + enqueued + " completed=" + completed + " errors=" + errors
+                    + " busyRetries=" + busyRetries + " busyFailures=" + busyFailures + " timeouts=" + timeouts
+                    + " dropped=" + dropped + " depth=" + queueDepth + " maxDepth=" + maxQueueDepth
+                    + " wait[" + queueWait + "] latency[" + operationLatency + "]"
+                    + " connections=" + connections + " retries=" + retriesScheduled
+                    + " retriesCancelled=" + retriesCancelled + " retriesExhausted=" + retryBudgetsExhausted
+                    + " retryDelay[" + retryDelay + "] attempts[" + connectAttempts + "]"
+                    + " teardowns=" + teardowns + " teardownTimeouts=" + teardownTimeouts
+                    + " teardown[" + teardownLatency + "]"
+                    + " granted=" + connectionsGranted + " preemptions=" + preemptions
+                    + " pending=" + pendingConnections + " active=" + activeConnections + "/" + maxConnections
+                    + " utilization=" + Math.round(getSlotUtilization() * 100) + "%"
+                    + " connectionWait[" + connectionWait + "]"
+                    + " rtt[" + commandRoundTrip + "] rttHigh[" + commandRoundTripHighPriority + "]"
+                    + " mtuNegotiations=" + mtuNegotiations + " lastMtu=" + lastMtu
+                    + " pipelined=" + pipelinedSyncs + " pipelineFallbacks=" + pipelineFallbacks
+                    + " discovered[" + getTimeInState(NokeConnectionState.DISCOVERED) + "]"
+                    + " connecting[" + getTimeInState(NokeConnectionState.CONNECTING) + "]"
+                    + " services[" + getTimeInState(NokeConnectionState.DISCOVERING_SERVICES) + "]"
+                    + " connectedToUnlocked[" + connectedToUnlocked + "]"
+                    + " illegalTransitions=" + illegalTransitions + " connectionTimeouts=" + connectionTimeouts
+                    + " pinnedResumes=" + pinnedResumes + " keepAliveReconnects=" + keepAliveReconnects
+                    + " discovery[" + serviceDiscovery + "] discoveryRefreshed[" + serviceDiscoveryRefreshed + "]"
+                    + " cacheRefreshes=" + gattCacheRefreshes;
+        }
+    }
+}
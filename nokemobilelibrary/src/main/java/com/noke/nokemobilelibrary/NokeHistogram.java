@@ -0,0 +1,163 @@
+package com.noke.nokemobilelibrary;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Histogram with fixed bucket bounds.  Recording a value is a few atomic increments and never allocates or locks,
+ * so histograms can be left on in production.  Values above the last bound are counted in an overflow bucket.
+ */
+
+public final class NokeHistogram {
+
+    /**
+     * Inclusive upper bound of each bucket.  The overflow bucket isn't included
+     */
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param bounds inclusive upper bounds of the buckets, in increasing order
+     */
+    NokeHistogram(long... bounds) {
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Records a value
+     *
+     * @param value the value, usually a duration in milliseconds
+     */
+    void record(long value) {
+        int index = Arrays.binarySearch(bounds, value);
+        counts.incrementAndGet(index >= 0 ? index : -index - 1);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * Copies the current values.  Values recorded while copying may be partly included
+     *
+     * @return a snapshot of the histogram
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        long n = count.get();
+        return new Snapshot(bounds, copy, n, sum.get(), n > 0 ? max.get() : 0);
+    }
+
+    /**
+     * Immutable copy of a histogram
+     */
+    public static final class Snapshot {
+        private final long[] bounds;
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] bounds, long[] counts, long count, long sum, long max) {
+            this.bounds = bounds;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        /**
+         * @return inclusive upper bound of each bucket, not including the overflow bucket
+         */
+        public long[] getBucketBounds() {
+            return bounds.clone();
+        }
+
+        /**
+         * @return number of values in each bucket. The last entry is the overflow bucket
+         */
+        public long[] getBucketCounts() {
+            return counts.clone();
+        }
+
+        /**
+         * Estimates a percentile from the buckets.  Returns the upper bound of the bucket holding the percentile,
+         * or the maximum if it falls in the overflow bucket
+         *
+         * @param percentile percentile between 0 and 100
+         * @return the estimated value, or 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return i < bounds.length ? Math.min(bounds[i], max) : max;
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + Math.round(getMean()) + " p50=" + getPercentile(50)
+                    + " p90=" + getPercentile(90) + " p99=" + getPercentile(99) + " max=" + max;
+        }
+    }
+}
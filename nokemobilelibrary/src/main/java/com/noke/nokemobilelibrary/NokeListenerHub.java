@@ -0,0 +1,620 @@
+package com.noke.nokemobilelibrary;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Delivers the service's callbacks to the registered listeners.  Each listener has its own executor and a bounded
+ * queue, so a slow listener only delays its own callbacks and never the thread that raised the event.  Callbacks
+ * to a listener are delivered one at a time in the order they were raised.  Listeners are kept in a copy-on-write
+ * array, so raising an event doesn't take a lock shared with other listeners.
+ */
+
+public final class NokeListenerHub {
+
+    private static final String TAG = NokeListenerHub.class.getSimpleName();
+
+    /**
+     * What a listener's queue does with state callbacks, such as discovery and connection changes, when it's full.
+     * Unlocks, shutdowns, uploads and errors are never dropped or replaced: they take the place of the oldest queued
+     * state callback, and the queue grows when there is none
+     */
+    public enum Overflow {
+        /**
+         * The new state callback is dropped
+         */
+        DROP_NEWEST,
+        /**
+         * The oldest queued state callback is dropped
+         */
+        DROP_OLDEST,
+        /**
+         * A queued state callback for the same device is replaced by the new one, so the listener only sees the
+         * latest state.  When the queue is full the oldest queued state callback is dropped
+         */
+        COALESCE,
+        /**
+         * Nothing is dropped, the queue grows instead.  A listener that never catches up keeps using more memory
+         */
+        GROW
+    }
+
+    /**
+     * Runs callbacks on the thread that raised the event.  A slow listener on this executor delays the library
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static Executor mainThread;
+
+    /**
+     * @return executor that runs callbacks on the app's main thread
+     */
+    public static synchronized Executor mainThread() {
+        if (mainThread == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            mainThread = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    if (!handler.post(command)) {
+                        throw new RejectedExecutionException("Main looper is quitting");
+                    }
+                }
+            };
+        }
+        return mainThread;
+    }
+
+    /**
+     * Bucket bounds in milliseconds for dispatch latency and time spent in callbacks
+     */
+    private static final long[] LATENCY_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private static final Registration[] EMPTY = new Registration[0];
+
+    private volatile Registration[] registrations = EMPTY;
+
+    NokeListenerHub() {
+    }
+
+    /**
+     * Registers a listener.  A listener that is already registered keeps its place and gets the new settings
+     *
+     * @param listener the listener
+     * @param executor executor the callbacks run on
+     * @param capacity callbacks that can be queued for the listener
+     * @param overflow what to do when the queue is full
+     */
+    synchronized void add(NokeServiceListener listener, Executor executor, int capacity, Overflow overflow) {
+        Registration registration = new Registration(listener, executor, capacity, overflow);
+        Registration[] current = registrations;
+        int index = indexOf(current, listener);
+        Registration[] next;
+        if (index >= 0) {
+            next = current.clone();
+            next[index] = registration;
+        } else {
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = registration;
+        }
+        registrations = next;
+    }
+
+    /**
+     * Unregisters a listener.  Callbacks already queued for it are still delivered
+     *
+     * @param listener the listener
+     * @return true if the listener was registered
+     */
+    synchronized boolean remove(NokeServiceListener listener) {
+        Registration[] current = registrations;
+        int index = indexOf(current, listener);
+        if (index < 0) {
+            return false;
+        }
+        Registration[] next = new Registration[current.length - 1];
+        System.arraycopy(current, 0, next, 0, index);
+        System.arraycopy(current, index + 1, next, index, next.length - index);
+        registrations = next;
+        return true;
+    }
+
+    private static int indexOf(Registration[] registrations, NokeServiceListener listener) {
+        for (int i = 0; i < registrations.length; i++) {
+            if (registrations[i].listener == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of registered listeners
+     */
+    int size() {
+        return registrations.length;
+    }
+
+    /**
+     * @return dispatch statistics of each registered listener, in the order they were registered
+     */
+    List<Stats> getStats() {
+        Registration[] current = registrations;
+        List<Stats> stats = new ArrayList<>(current.length);
+        for (Registration registration : current) {
+            stats.add(registration.stats());
+        }
+        return stats;
+    }
+
+    void resetStats() {
+        for (Registration registration : registrations) {
+            registration.reset();
+        }
+    }
+
+    void onNokeDiscovered(NokeDevice noke) {
+        dispatch(new Event(Event.DISCOVERED, noke));
+    }
+
+    void onNokeConnecting(NokeDevice noke) {
+        dispatch(new Event(Event.CONNECTING, noke));
+    }
+
+    void onNokeConnected(NokeDevice noke) {
+        dispatch(new Event(Event.CONNECTED, noke));
+    }
+
+    void onNokeSyncing(NokeDevice noke) {
+        dispatch(new Event(Event.SYNCING, noke));
+    }
+
+    void onNokeUnlocked(NokeDevice noke) {
+        dispatch(new Event(Event.UNLOCKED, noke));
+    }
+
+    void onNokeShutdown(NokeDevice noke, Boolean isLocked, Boolean didTimeout) {
+        Event event = new Event(Event.SHUTDOWN, noke);
+        event.isLocked = isLocked;
+        event.didTimeout = didTimeout;
+        dispatch(event);
+    }
+
+    void onNokeDisconnected(NokeDevice noke) {
+        dispatch(new Event(Event.DISCONNECTED, noke));
+    }
+
+    void onNokeLost(NokeDevice noke) {
+        dispatch(new Event(Event.LOST, noke));
+    }
+
+    void onDataUploaded(int result, String message) {
+        Event event = new Event(Event.DATA_UPLOADED, null);
+        event.value = result;
+        event.message = message;
+        dispatch(event);
+    }
+
+    void onBluetoothStatusChanged(int bluetoothStatus) {
+        dispatch(bluetoothStatus(bluetoothStatus));
+    }
+
+    /**
+     * Sends the Bluetooth status to one listener, such as one that was just registered
+     *
+     * @param listener        the listener
+     * @param bluetoothStatus the adapter state
+     */
+    void onBluetoothStatusChanged(NokeServiceListener listener, int bluetoothStatus) {
+        Registration[] current = registrations;
+        int index = indexOf(current, listener);
+        if (index >= 0) {
+            current[index].offer(bluetoothStatus(bluetoothStatus));
+        }
+    }
+
+    void onError(NokeDevice noke, int error, String message) {
+        Event event = new Event(Event.ERROR, noke);
+        event.value = error;
+        event.message = message;
+        dispatch(event);
+    }
+
+    private static Event bluetoothStatus(int bluetoothStatus) {
+        Event event = new Event(Event.BLUETOOTH_STATUS, null);
+        event.value = bluetoothStatus;
+        return event;
+    }
+
+    private void dispatch(Event event) {
+        for (Registration registration : registrations) {
+            registration.offer(event);
+        }
+    }
+
+    /**
+     * A callback waiting to be delivered.  Shared by all listeners once it's queued, so it isn't changed after
+     */
+    private static final class Event {
+        static final int DISCOVERED = 0;
+        static final int CONNECTING = 1;
+        static final int CONNECTED = 2;
+        static final int SYNCING = 3;
+        static final int UNLOCKED = 4;
+        static final int SHUTDOWN = 5;
+        static final int DISCONNECTED = 6;
+        static final int LOST = 7;
+        static final int DATA_UPLOADED = 8;
+        static final int BLUETOOTH_STATUS = 9;
+        static final int ERROR = 10;
+
+        final int type;
+        final NokeDevice noke;
+        final long raisedAt = System.nanoTime();
+        int value;
+        String message;
+        Boolean isLocked;
+        Boolean didTimeout;
+
+        Event(int type, NokeDevice noke) {
+            this.type = type;
+            this.noke = noke;
+        }
+
+        /**
+         * @return true if the event only reports the latest state, so a newer one for the same device replaces it
+         */
+        boolean isState() {
+            return type != UNLOCKED && type != SHUTDOWN && type != DATA_UPLOADED && type != ERROR;
+        }
+
+        void deliver(NokeServiceListener listener) {
+            switch (type) {
+                case DISCOVERED:
+                    listener.onNokeDiscovered(noke);
+                    break;
+                case CONNECTING:
+                    listener.onNokeConnecting(noke);
+                    break;
+                case CONNECTED:
+                    listener.onNokeConnected(noke);
+                    break;
+                case SYNCING:
+                    listener.onNokeSyncing(noke);
+                    break;
+                case UNLOCKED:
+                    listener.onNokeUnlocked(noke);
+                    break;
+                case SHUTDOWN:
+                    listener.onNokeShutdown(noke, isLocked, didTimeout);
+                    break;
+                case DISCONNECTED:
+                    listener.onNokeDisconnected(noke);
+                    break;
+                case LOST:
+                    listener.onNokeLost(noke);
+                    break;
+                case DATA_UPLOADED:
+                    listener.onDataUploaded(value, message);
+                    break;
+                case BLUETOOTH_STATUS:
+                    listener.onBluetoothStatusChanged(value);
+                    break;
+                case ERROR:
+                    listener.onError(noke, value, message);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * A listener with its executor and queue.  Only one drain of the queue is submitted to the executor at a time,
+     * which keeps the callbacks in order even on an executor with several threads
+     */
+    static final class Registration {
+        final NokeServiceListener listener;
+        private final Executor executor;
+        private final Overflow overflow;
+        private Event[] queue;
+        private int head;
+        private int size;
+        private boolean draining;
+
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final NokeHistogram dispatchLatency = new NokeHistogram(LATENCY_BOUNDS);
+        private final NokeHistogram callbackTime = new NokeHistogram(LATENCY_BOUNDS);
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        Registration(NokeServiceListener listener, Executor executor, int capacity, Overflow overflow) {
+            this.listener = listener;
+            this.executor = executor;
+            this.overflow = overflow;
+            this.queue = new Event[Math.max(1, capacity)];
+        }
+
+        /**
+         * Queues a callback and submits a drain if none is running.  Never waits for the listener
+         */
+        void offer(Event event) {
+            synchronized (this) {
+                if (overflow == Overflow.COALESCE && event.isState() && replace(event)) {
+                    coalesced.incrementAndGet();
+                    return;
+                }
+                if (size == queue.length && !makeRoom(event)) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                queue[(head + size) % queue.length] = event;
+                size++;
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            submit();
+        }
+
+        /**
+         * Frees a slot in the full queue for a new callback.  State callbacks follow the overflow policy, other
+         * callbacks replace the oldest queued state callback or grow the queue
+         *
+         * @return false if the new callback should be dropped
+         */
+        private boolean makeRoom(Event event) {
+            if (overflow != Overflow.GROW) {
+                if (event.isState() && overflow == Overflow.DROP_NEWEST) {
+                    return false;
+                }
+                for (int i = 0; i < size; i++) {
+                    if (queue[(head + i) % queue.length].isState()) {
+                        removeAt(i);
+                        dropped.incrementAndGet();
+                        return true;
+                    }
+                }
+                if (event.isState()) {
+                    return false;
+                }
+            }
+            Event[] grown = new Event[queue.length * 2];
+            for (int i = 0; i < size; i++) {
+                grown[i] = queue[(head + i) % queue.length];
+            }
+            queue = grown;
+            head = 0;
+            return true;
+        }
+
+        /**
+         * Removes the queued callback at a position, keeping the others in order
+         */
+        private void removeAt(int position) {
+            for (int j = position; j < size - 1; j++) {
+                queue[(head + j) % queue.length] = queue[(head + j + 1) % queue.length];
+            }
+            queue[(head + size - 1) % queue.length] = null;
+            size--;
+        }
+
+        /**
+         * Hands the drain to the executor.  Callbacks are dropped if the executor won't take it
+         */
+        private void submit() {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    dropped.addAndGet(size);
+                    Arrays.fill(queue, null);
+                    head = 0;
+                    size = 0;
+                    draining = false;
+                }
+            }
+        }
+
+        /**
+         * Replaces a queued state callback of the same type for the same device
+         */
+        private boolean replace(Event event) {
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % queue.length;
+                Event queued = queue[index];
+                if (queued.type == event.type && queued.noke == event.noke) {
+                    //The replaced event leaves its place in the queue, so the newer state is delivered in order
+                    removeAt(i);
+                    queue[(head + size) % queue.length] = event;
+                    size++;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void drain() {
+            boolean drained = false;
+            try {
+                drainQueue();
+                drained = true;
+            } finally {
+                if (!drained) {
+                    //A listener threw an Error.  Keep delivering the rest of the queue instead of leaving it stuck
+                    failed.incrementAndGet();
+                    boolean pending;
+                    synchronized (this) {
+                        pending = size > 0;
+                        draining = pending;
+                    }
+                    if (pending) {
+                        submit();
+                    }
+                }
+            }
+        }
+
+        private void drainQueue() {
+            while (true) {
+                Event event;
+                synchronized (this) {
+                    if (size == 0) {
+                        draining = false;
+                        return;
+                    }
+                    event = queue[head];
+                    queue[head] = null;
+                    head = (head + 1) % queue.length;
+                    size--;
+                }
+                long start = System.nanoTime();
+                dispatchLatency.record((start - event.raisedAt) / 1000000);
+                try {
+                    event.deliver(listener);
+                    delivered.incrementAndGet();
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    Log.e(TAG, "Listener threw from a callback", e);
+                }
+                callbackTime.record((System.nanoTime() - start) / 1000000);
+            }
+        }
+
+        synchronized int getQueued() {
+            return size;
+        }
+
+        void reset() {
+            delivered.set(0);
+            dropped.set(0);
+            coalesced.set(0);
+            failed.set(0);
+            dispatchLatency.reset();
+            callbackTime.reset();
+        }
+
+        Stats stats() {
+            return new Stats(listener, delivered.get(), dropped.get(), coalesced.get(), failed.get(), getQueued(),
+                    dispatchLatency.snapshot(), callbackTime.snapshot());
+        }
+    }
+
+    /**
+     * Immutable copy of the dispatch statistics of one listener
+     */
+    public static final class Stats {
+        private final NokeServiceListener listener;
+        private final long delivered;
+        private final long dropped;
+        private final long coalesced;
+        private final long failed;
+        private final int queued;
+        private final NokeHistogram.Snapshot dispatchLatency;
+        private final NokeHistogram.Snapshot callbackTime;
+
+        Stats(NokeServiceListener listener, long delivered, long dropped, long coalesced, long failed, int queued,
+              NokeHistogram.Snapshot dispatchLatency, NokeHistogram.Snapshot callbackTime) {
+            this.listener = listener;
+            this.delivered = delivered;
+            this.dropped = dropped;
+            this.coalesced = coalesced;
+            this.failed = failed;
+            this.queued = queued;
+            this.dispatchLatency = dispatchLatency;
+            this.callbackTime = callbackTime;
+        }
+
+        public NokeServiceListener getListener() {
+            return listener;
+        }
+
+        /**
+         * @return callbacks delivered to the listener
+         */
+        public long getDelivered() {
+            return delivered;
+        }
+
+        /**
+         * @return callbacks dropped because the listener's queue was full or its executor rejected them
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return queued state callbacks replaced by a newer one
+         */
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        /**
+         * @return callbacks that threw
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return callbacks waiting to be delivered
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return time in milliseconds from an event being raised to the listener's callback starting
+         */
+        public NokeHistogram.Snapshot getDispatchLatency() {
+            return dispatchLatency;
+        }
+
+        /**
+         * @return time in milliseconds spent in the listener's callbacks
+         */
+        public NokeHistogram.Snapshot getCallbackTime() {
+            return callbackTime;
+        }
+
+        @Override
+        public String toString() {
+            return listener.getClass().getName() + ": delivered=" + delivered + " dropped=" + dropped
+                    + " coalesced=" + coalesced + " failed=" + failed + " queued=" + queued
+                    + " latency " + dispatchLatency + " callback " + callbackTime;
+        }
+    }
+}
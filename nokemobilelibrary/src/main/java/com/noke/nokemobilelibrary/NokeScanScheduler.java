@@ -0,0 +1,66 @@
+package com.noke.nokemobilelibrary;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Decides how long the NokeDeviceManagerService scans for and how long it waits between scans.  A custom scheduler
+ * can be set with NokeDeviceManagerService#setScanScheduler.  All times are in milliseconds from a monotonic clock.
+ */
+
+public interface NokeScanScheduler {
+
+    /**
+     * Returns the duration of the next scan window
+     *
+     * @param now               current time
+     * @param foreground        true if the app is in the foreground
+     * @param connectionPending true if a connection to a Noke device is in progress
+     * @return scan window in milliseconds
+     */
+    long getScanWindow(long now, boolean foreground, boolean connectionPending);
+
+    /**
+     * Returns the time to wait after a scan window before scanning again
+     *
+     * @param now               current time
+     * @param foreground        true if the app is in the foreground
+     * @param connectionPending true if a connection to a Noke device is in progress
+     * @return pause in milliseconds
+     */
+    long getScanPause(long now, boolean foreground, boolean connectionPending);
+
+    /**
+     * Called every time a scan is started
+     *
+     * @param now current time
+     */
+    void onScanStarted(long now);
+
+    /**
+     * Called every time an advertisement from a Noke device is received
+     *
+     * @param now current time
+     */
+    void onDeviceDiscovered(long now);
+
+    /**
+     * @return fraction of time spent scanning in the current cycle, between 0 and 1
+     */
+    float getDutyCycle();
+
+    /**
+     * @return expected time in milliseconds between a device coming into range and being discovered
+     */
+    long getPredictedDiscoveryLatency();
+}
@@ -0,0 +1,231 @@
+package com.noke.nokemobilelibrary;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Counters and histograms for the scan pipeline.  Every advertisement passes through a chain of filters (Noke name,
+ * allowlist, version broadcast) and each stage is counted, along with how often each lock advertises and how long
+ * it takes to discover the first lock after a scan starts.  Everything is lock-free so it can be left on.
+ */
+
+public final class NokeScanTelemetry {
+
+    /**
+     * Bucket bounds in milliseconds for the time between advertisements of a lock
+     */
+    private static final long[] INTERVAL_BOUNDS = {
+            20, 50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000, 30000, 60000};
+    /**
+     * Bucket bounds in milliseconds for the time from starting a scan to the first discovery
+     */
+    private static final long[] FIRST_DISCOVERY_BOUNDS = {
+            50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 4000, 6000, 8000, 15000, 30000};
+
+    private final AtomicLong scansStarted = new AtomicLong();
+    private final AtomicLong advertisements = new AtomicLong();
+    private final AtomicLong nokeAdvertisements = new AtomicLong();
+    private final AtomicLong allowlistHits = new AtomicLong();
+    private final AtomicLong versionFilterDrops = new AtomicLong();
+    private final AtomicLong discoveries = new AtomicLong();
+    private final NokeHistogram advertisingInterval = new NokeHistogram(INTERVAL_BOUNDS);
+    private final NokeHistogram firstDiscoveryLatency = new NokeHistogram(FIRST_DISCOVERY_BOUNDS);
+    /**
+     * Start of the current scan window in elapsed realtime
+     */
+    private volatile long scanStartedAt;
+    private final AtomicBoolean firstDiscoveryPending = new AtomicBoolean();
+    /**
+     * True to keep an advertising interval histogram for each lock
+     */
+    private volatile boolean perDevice;
+
+    /**
+     * @param now elapsed realtime in milliseconds
+     */
+    void onScanStarted(long now) {
+        scansStarted.incrementAndGet();
+        scanStartedAt = now;
+        firstDiscoveryPending.set(true);
+    }
+
+    void onAdvertisement() {
+        advertisements.incrementAndGet();
+    }
+
+    void onNokeAdvertisement() {
+        nokeAdvertisements.incrementAndGet();
+    }
+
+    /**
+     * Called for advertisements from devices that have been added to the service or are allowed because all devices
+     * are allowed
+     *
+     * @param noke     the device
+     * @param interval time in milliseconds since the previous advertisement of the device, or -1 for the first one
+     * @param now      elapsed realtime in milliseconds
+     */
+    void onAllowlistHit(NokeDevice noke, long interval, long now) {
+        allowlistHits.incrementAndGet();
+        if (interval >= 0) {
+            advertisingInterval.record(interval);
+            if (perDevice) {
+                if (noke.advertisingInterval == null) {
+                    noke.advertisingInterval = new NokeHistogram(INTERVAL_BOUNDS);
+                }
+                noke.advertisingInterval.record(interval);
+            }
+        }
+        if (firstDiscoveryPending.get() && firstDiscoveryPending.compareAndSet(true, false)) {
+            firstDiscoveryLatency.record(now - scanStartedAt);
+        }
+    }
+
+    /**
+     * Called for devices that don't broadcast their version and lock state, which are dropped
+     */
+    void onVersionFilterDrop() {
+        versionFilterDrops.incrementAndGet();
+    }
+
+    void onDiscovery() {
+        discoveries.incrementAndGet();
+    }
+
+    void setPerDevice(boolean perDevice) {
+        this.perDevice = perDevice;
+    }
+
+    void reset() {
+        scansStarted.set(0);
+        advertisements.set(0);
+        nokeAdvertisements.set(0);
+        allowlistHits.set(0);
+        versionFilterDrops.set(0);
+        discoveries.set(0);
+        advertisingInterval.reset();
+        firstDiscoveryLatency.reset();
+    }
+
+    /**
+     * @return a copy of the current counters and histograms
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Immutable copy of the scan telemetry
+     */
+    public static final class Snapshot {
+        private final long scansStarted;
+        private final long advertisements;
+        private final long nokeAdvertisements;
+        private final long allowlistHits;
+        private final long versionFilterDrops;
+        private final long discoveries;
+        private final NokeHistogram.Snapshot advertisingInterval;
+        private final NokeHistogram.Snapshot firstDiscoveryLatency;
+
+        private Snapshot(NokeScanTelemetry telemetry) {
+            scansStarted = telemetry.scansStarted.get();
+            advertisements = telemetry.advertisements.get();
+            nokeAdvertisements = telemetry.nokeAdvertisements.get();
+            allowlistHits = telemetry.allowlistHits.get();
+            versionFilterDrops = telemetry.versionFilterDrops.get();
+            discoveries = telemetry.discoveries.get();
+            advertisingInterval = telemetry.advertisingInterval.snapshot();
+            firstDiscoveryLatency = telemetry.firstDiscoveryLatency.snapshot();
+        }
+
+        public long getScansStarted() {
+            return scansStarted;
+        }
+
+        /**
+         * @return advertisements received from the scanner
+         */
+        public long getAdvertisements() {
+            return advertisements;
+        }
+
+        /**
+         * @return advertisements from devices identified as Noke devices
+         */
+        public long getNokeAdvertisements() {
+            return nokeAdvertisements;
+        }
+
+        /**
+         * @return advertisements from Noke devices that have been added to the service, or from any Noke device when
+         * all devices are allowed
+         */
+        public long getAllowlistHits() {
+            return allowlistHits;
+        }
+
+        /**
+         * @return advertisements dropped because the hardware doesn't broadcast its version (hardware versions 06 and
+         * 04)
+         */
+        public long getVersionFilterDrops() {
+            return versionFilterDrops;
+        }
+
+        /**
+         * @return discovery events sent to the listener
+         */
+        public long getDiscoveries() {
+            return discoveries;
+        }
+
+        /**
+         * @return fraction of advertisements that came from Noke devices
+         */
+        public double getNokeMatchRate() {
+            return advertisements > 0 ? (double) nokeAdvertisements / advertisements : 0;
+        }
+
+        /**
+         * @return fraction of Noke advertisements that passed the allowlist
+         */
+        public double getAllowlistHitRate() {
+            return nokeAdvertisements > 0 ? (double) allowlistHits / nokeAdvertisements : 0;
+        }
+
+        /**
+         * @return time in milliseconds between advertisements of the same lock, for all locks
+         */
+        public NokeHistogram.Snapshot getAdvertisingInterval() {
+            return advertisingInterval;
+        }
+
+        /**
+         * @return time in milliseconds from the start of a scan to the first lock advertisement in that scan
+         */
+        public NokeHistogram.Snapshot getFirstDiscoveryLatency() {
+            return firstDiscoveryLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "scans=" + scansStarted + " advertisements=" + advertisements + " noke=" + nokeAdvertisements
+                    + " allowlist=" + allowlistHits + " versionDrops=" + versionFilterDrops
+                    + " discoveries=" + discoveries + " interval[" + advertisingInterval + "]"
+                    + " firstDiscovery[" + firstDiscoveryLatency + "]";
+        }
+    }
+}
@@ -34,6 +34,8 @@ public interface NokeServiceListener  {
 
     void onNokeDisconnected(NokeDevice noke);
 
+    void onNokeLost(NokeDevice noke);
+
     void onDataUploaded(int result, String message);
 
     void onBluetoothStatusChanged(int bluetoothStatus);
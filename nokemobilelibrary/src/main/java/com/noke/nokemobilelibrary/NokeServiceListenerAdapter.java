@@ -56,6 +56,11 @@ public class NokeServiceListenerAdapter implements NokeServiceListener{
         //empty default implementation
     }
 
+    @Override
+    public void onNokeLost(NokeDevice noke) {
+        //empty default implementation
+    }
+
     @Override
     public void onDataUploaded(int result, String message) {
         //empty default implementation
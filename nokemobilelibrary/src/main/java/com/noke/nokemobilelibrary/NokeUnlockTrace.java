@@ -0,0 +1,299 @@
+package com.noke.nokemobilelibrary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Timeline of one unlock, from the device's first advertisement to the unlocked result.  Each phase the
+ * connection reaches is marked with the elapsed realtime, and the span of a phase is the time from the mark before
+ * it.  Commands are marked each time one is written and each time the lock answers with success.  Summaries of
+ * many traces only use plain Java, so they can be computed off the device.
+ */
+
+public final class NokeUnlockTrace {
+
+    /**
+     * Phases of an unlock, in the order they happen
+     */
+    public enum Phase {
+        FIRST_ADVERTISEMENT,
+        CONNECT_REQUESTED,
+        GATT_CONNECTED,
+        SERVICES_DISCOVERED,
+        SESSION_READ,
+        NOTIFICATIONS_ENABLED,
+        COMMAND_WRITTEN,
+        COMMAND_SUCCEEDED,
+        UNLOCKED
+    }
+
+    /**
+     * Receives traces as devices unlock.  Called on the thread that received the unlocked result
+     */
+    public interface Listener {
+        void onUnlockTrace(NokeUnlockTrace trace);
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final String mac;
+    private final byte[] phases;
+    private final long[] times;
+
+    private NokeUnlockTrace(String mac, byte[] phases, long[] times) {
+        this.mac = mac;
+        this.phases = phases;
+        this.times = times;
+    }
+
+    public String getMac() {
+        return mac;
+    }
+
+    /**
+     * @return number of marks in the trace
+     */
+    public int getMarkCount() {
+        return times.length;
+    }
+
+    public Phase getPhase(int index) {
+        return PHASES[phases[index]];
+    }
+
+    /**
+     * @return elapsed realtime in milliseconds of the mark
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * @param phase a phase
+     * @return elapsed realtime in milliseconds the phase was first reached, or -1 if it wasn't
+     */
+    public long getTime(Phase phase) {
+        int index = indexOf(phase);
+        return index >= 0 ? times[index] : -1;
+    }
+
+    /**
+     * @param phase a phase
+     * @return time in milliseconds from the mark before the phase to the first time it was reached, or -1 if the
+     * phase wasn't reached or is the first mark
+     */
+    public long getSpan(Phase phase) {
+        int index = indexOf(phase);
+        return index > 0 ? times[index] - times[index - 1] : -1;
+    }
+
+    /**
+     * @return time in milliseconds from connectToNoke to the unlocked result, the time a user waits for the lock
+     */
+    public long getTimeToUnlock() {
+        long start = getTime(Phase.CONNECT_REQUESTED);
+        long end = getTime(Phase.UNLOCKED);
+        return start >= 0 && end >= 0 ? end - start : -1;
+    }
+
+    private int indexOf(Phase phase) {
+        for (int i = 0; i < phases.length; i++) {
+            if (phases[i] == phase.ordinal()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(mac).append(':');
+        for (int i = 0; i < times.length; i++) {
+            builder.append(' ').append(PHASES[phases[i]]).append('=');
+            builder.append(i == 0 ? 0 : times[i] - times[0]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Computes percentiles of the phase spans and of the time to unlock over a set of traces
+     *
+     * @param traces completed traces
+     * @return the summary
+     */
+    public static Summary summarize(List<NokeUnlockTrace> traces) {
+        return new Summary(traces);
+    }
+
+    /**
+     * Percentiles over a set of traces.  Each phase only counts the traces that reached it
+     */
+    public static final class Summary {
+        private final int count;
+        private final long[][] spans = new long[PHASES.length][];
+        private final long[] timeToUnlock;
+
+        private Summary(List<NokeUnlockTrace> traces) {
+            count = traces.size();
+            for (Phase phase : PHASES) {
+                long[] values = new long[count];
+                int size = 0;
+                for (int i = 0; i < count; i++) {
+                    long span = traces.get(i).getSpan(phase);
+                    if (span >= 0) {
+                        values[size++] = span;
+                    }
+                }
+                values = Arrays.copyOf(values, size);
+                Arrays.sort(values);
+                spans[phase.ordinal()] = values;
+            }
+            long[] values = new long[count];
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                long time = traces.get(i).getTimeToUnlock();
+                if (time >= 0) {
+                    values[size++] = time;
+                }
+            }
+            timeToUnlock = Arrays.copyOf(values, size);
+            Arrays.sort(timeToUnlock);
+        }
+
+        /**
+         * @return number of traces summarized
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @param phase      a phase
+         * @param percentile percentile between 0 and 100
+         * @return span of the phase in milliseconds at the percentile, or -1 if no trace reached the phase
+         */
+        public long getSpanPercentile(Phase phase, double percentile) {
+            return percentile(spans[phase.ordinal()], percentile);
+        }
+
+        /**
+         * @param percentile percentile between 0 and 100
+         * @return time to unlock in milliseconds at the percentile, or -1 if there are no traces
+         */
+        public long getTimeToUnlockPercentile(double percentile) {
+            return percentile(timeToUnlock, percentile);
+        }
+
+        /**
+         * Nearest rank percentile of sorted values
+         */
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return -1;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("traces=").append(count);
+            builder.append(" unlock p50=").append(getTimeToUnlockPercentile(50));
+            builder.append(" p90=").append(getTimeToUnlockPercentile(90));
+            builder.append(" p99=").append(getTimeToUnlockPercentile(99));
+            for (Phase phase : PHASES) {
+                if (spans[phase.ordinal()].length > 0) {
+                    builder.append(' ').append(phase).append(" p50=").append(getSpanPercentile(phase, 50));
+                    builder.append(" p90=").append(getSpanPercentile(phase, 90));
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Collects the marks of a trace in progress.  Marks can come from the scan, GATT and Bluetooth threads
+     */
+    static final class Builder {
+        /**
+         * Marks kept per trace, so a long sync can't grow a trace without bound
+         */
+        static final int MAX_MARKS = 64;
+
+        private final String mac;
+        private final byte[] phases = new byte[MAX_MARKS];
+        private final long[] times = new long[MAX_MARKS];
+        private int size;
+
+        Builder(String mac) {
+            this.mac = mac;
+        }
+
+        /**
+         * @param phase the phase reached
+         * @param time  elapsed realtime in milliseconds
+         */
+        synchronized void mark(Phase phase, long time) {
+            if (size < MAX_MARKS) {
+                phases[size] = (byte) phase.ordinal();
+                times[size] = time;
+                size++;
+            }
+        }
+
+        synchronized NokeUnlockTrace build() {
+            return new NokeUnlockTrace(mac, Arrays.copyOf(phases, size), Arrays.copyOf(times, size));
+        }
+    }
+
+    /**
+     * Keeps the most recent completed traces
+     */
+    static final class Buffer {
+        private final NokeUnlockTrace[] traces;
+        private int next;
+        private int size;
+
+        Buffer(int capacity) {
+            traces = new NokeUnlockTrace[Math.max(1, capacity)];
+        }
+
+        synchronized void add(NokeUnlockTrace trace) {
+            traces[next] = trace;
+            next = (next + 1) % traces.length;
+            size = Math.min(size + 1, traces.length);
+        }
+
+        /**
+         * @return the traces, oldest first
+         */
+        synchronized List<NokeUnlockTrace> toList() {
+            List<NokeUnlockTrace> list = new ArrayList<>(size);
+            int start = (next - size + traces.length) % traces.length;
+            for (int i = 0; i < size; i++) {
+                list.add(traces[(start + i) % traces.length]);
+            }
+            return list;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(traces, null);
+            next = 0;
+            size = 0;
+        }
+    }
+}
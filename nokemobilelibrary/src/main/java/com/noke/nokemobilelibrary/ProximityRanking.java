@@ -0,0 +1,159 @@
+package com.noke.nokemobilelibrary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Keeps Noke devices ranked by their smoothed signal strength.  Devices are kept in one bucket per dBm, so moving a
+ * device after an advertisement is constant time and finding the N nearest devices only walks the buckets from the
+ * strongest signal down until N devices are found.  The registry is never sorted.
+ */
+
+final class ProximityRanking {
+
+    static final int MIN_RSSI = -127;
+    static final int MAX_RSSI = 20;
+
+    /**
+     * Position of a device in the ranking.  Stored on the device so updates don't need a lookup
+     */
+    static final class Entry {
+        final NokeDevice noke;
+        Entry previous;
+        Entry next;
+        int bucket = -1;
+
+        Entry(NokeDevice noke) {
+            this.noke = noke;
+        }
+    }
+
+    /**
+     * Head of the linked list of devices in each bucket. Index 0 is the strongest signal
+     */
+    private final Entry[] buckets = new Entry[MAX_RSSI - MIN_RSSI + 1];
+    /**
+     * Devices that haven't been seen for this long are dropped from the ranking
+     */
+    private long maxAge;
+    private int size;
+
+    ProximityRanking(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    synchronized void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Moves a device to the bucket of its current smoothed RSSI
+     *
+     * @param entry ranking entry of the device
+     * @param rssi  smoothed RSSI of the device
+     */
+    synchronized void update(Entry entry, float rssi) {
+        int bucket = bucketFor(rssi);
+        if (entry.bucket == bucket) {
+            return;
+        }
+        unlink(entry);
+        entry.bucket = bucket;
+        entry.previous = null;
+        entry.next = buckets[bucket];
+        if (entry.next != null) {
+            entry.next.previous = entry;
+        }
+        buckets[bucket] = entry;
+        size++;
+    }
+
+    synchronized void remove(Entry entry) {
+        unlink(entry);
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < buckets.length; i++) {
+            Entry entry = buckets[i];
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.previous = null;
+                entry.next = null;
+                entry.bucket = -1;
+                entry = next;
+            }
+            buckets[i] = null;
+        }
+        size = 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the devices with the strongest signal, strongest first.  Devices that haven't been seen within the
+     * maximum age are removed from the ranking as they are found.
+     *
+     * @param count maximum number of devices to return
+     * @param now   current time in milliseconds, compared against NokeDevice#getLastSeen
+     * @return list of the nearest devices
+     */
+    synchronized List<NokeDevice> nearest(int count, long now) {
+        List<NokeDevice> nearest = new ArrayList<>(Math.min(count, size));
+        for (int i = 0; i < buckets.length && nearest.size() < count; i++) {
+            Entry entry = buckets[i];
+            while (entry != null && nearest.size() < count) {
+                Entry next = entry.next;
+                if (now - entry.noke.getLastSeen() > maxAge) {
+                    unlink(entry);
+                } else {
+                    nearest.add(entry.noke);
+                }
+                entry = next;
+            }
+        }
+        return nearest;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.bucket < 0) {
+            return;
+        }
+        if (entry.previous != null) {
+            entry.previous.next = entry.next;
+        } else {
+            buckets[entry.bucket] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.previous = entry.previous;
+        }
+        entry.previous = null;
+        entry.next = null;
+        entry.bucket = -1;
+        size--;
+    }
+
+    private static int bucketFor(float rssi) {
+        int rounded = Math.round(rssi);
+        if (rounded > MAX_RSSI) {
+            rounded = MAX_RSSI;
+        } else if (rounded < MIN_RSSI) {
+            rounded = MIN_RSSI;
+        }
+        return MAX_RSSI - rounded;
+    }
+}
@@ -0,0 +1,68 @@
+package com.noke.nokemobilelibrary;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * One dimensional Kalman filter for smoothing the signal strength of a Noke device.  Raw RSSI readings jump around by
+ * several dBm between advertisements; the filter trusts new readings more when the device hasn't been heard from
+ * in a while, since the user may have moved.  Each update is constant time and doesn't allocate.
+ */
+
+final class RssiFilter {
+
+    /**
+     * Variance of a single RSSI reading (about 4 dBm standard deviation)
+     */
+    static final float MEASUREMENT_VARIANCE = 16f;
+    /**
+     * Variance added to the estimate per second, based on a user walking past locks
+     */
+    static final float PROCESS_VARIANCE_PER_SECOND = 4f;
+
+    private float estimate;
+    private float variance;
+    private long lastUpdate;
+    private boolean initialized;
+
+    /**
+     * Adds an RSSI reading to the filter
+     *
+     * @param rssi reading from the advertisement
+     * @param now  time of the reading in milliseconds
+     * @return the new estimate
+     */
+    synchronized float update(int rssi, long now) {
+        if (!initialized) {
+            initialized = true;
+            estimate = rssi;
+            variance = MEASUREMENT_VARIANCE;
+        } else {
+            float elapsed = Math.max(0, now - lastUpdate) / 1000f;
+            variance += PROCESS_VARIANCE_PER_SECOND * elapsed;
+            float gain = variance / (variance + MEASUREMENT_VARIANCE);
+            estimate += gain * (rssi - estimate);
+            variance *= (1 - gain);
+        }
+        lastUpdate = now;
+        return estimate;
+    }
+
+    synchronized float getEstimate() {
+        return estimate;
+    }
+
+    synchronized boolean isInitialized() {
+        return initialized;
+    }
+}
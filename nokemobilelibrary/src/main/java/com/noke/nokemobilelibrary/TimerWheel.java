@@ -0,0 +1,237 @@
+package com.noke.nokemobilelibrary;
+
+/************************************************************************************************************************************************
+ * Copyright © 2018 Nokē Inc. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Hierarchical timer wheel.  Each level has 64 slots; a slot on level 0 covers one tick, a slot on level 1 covers
+ * 64 ticks and so on.  Timeouts are placed on the lowest level that can hold their deadline and move down a level
+ * when the wheel reaches their slot, so scheduling, cancelling and expiring a timeout are all O(1).
+ *
+ * Timeouts are intrusive list nodes owned by the caller and can be scheduled again after they expire, so
+ * rescheduling doesn't allocate.  The wheel doesn't run anything by itself: the owner calls advance() and then
+ * drains the expired timeouts with poll().  All methods are synchronized.
+ */
+
+final class TimerWheel {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    /**
+     * Timeouts that have expired but haven't been polled are kept in an extra list after the levels
+     */
+    private static final int EXPIRED = LEVELS;
+    private static final long MAX_DELTA = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+    /**
+     * A timeout that can be scheduled on the wheel.  Subclasses implement onTimeout, which is called by the owner
+     * of the wheel after polling the timeout
+     */
+    abstract static class Timeout {
+        private long deadlineTick;
+        private int level = -1;
+        private int slot;
+        private Timeout previous;
+        private Timeout next;
+
+        /**
+         * @param now time that the wheel was advanced to
+         */
+        abstract void onTimeout(long now);
+
+        /**
+         * @return true if the timeout is waiting on the wheel or has expired and hasn't been polled yet
+         */
+        final boolean isScheduled() {
+            return level >= 0;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timeout[][] slots = new Timeout[LEVELS + 1][WHEEL_SIZE];
+    /**
+     * Last tick that has been processed
+     */
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis length of a tick. Timeouts fire up to one tick late
+     * @param now        current time in milliseconds
+     */
+    TimerWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * @return number of scheduled timeouts, including expired timeouts that haven't been polled
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Schedules a timeout, moving it if it is already scheduled
+     *
+     * @param timeout  the timeout
+     * @param deadline time in milliseconds the timeout should expire at
+     */
+    synchronized void schedule(Timeout timeout, long deadline) {
+        if (timeout.isScheduled()) {
+            unlink(timeout);
+        } else {
+            size++;
+        }
+        long tick = (deadline + tickMillis - 1) / tickMillis;
+        timeout.deadlineTick = Math.max(tick, currentTick + 1);
+        place(timeout);
+    }
+
+    /**
+     * @param timeout the timeout to cancel
+     * @return true if the timeout was scheduled
+     */
+    synchronized boolean cancel(Timeout timeout) {
+        if (!timeout.isScheduled()) {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves the wheel forward to the current time.  Timeouts with a deadline up to now are queued for poll()
+     *
+     * @param now current time in milliseconds
+     */
+    synchronized void advance(long now) {
+        long targetTick = now / tickMillis;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, targetTick);
+            return;
+        }
+        while (currentTick < targetTick) {
+            currentTick++;
+            int index = (int) (currentTick & WHEEL_MASK);
+            //Move timeouts down from the higher levels whenever the level below wraps around
+            for (int level = 1; index == 0 && level < LEVELS; level++) {
+                index = (int) ((currentTick >>> (level * WHEEL_BITS)) & WHEEL_MASK);
+                cascade(level, index);
+            }
+
+            Timeout expired = slots[0][(int) (currentTick & WHEEL_MASK)];
+            while (expired != null) {
+                Timeout next = expired.next;
+                unlink(expired);
+                insert(expired, EXPIRED, 0);
+                expired = next;
+            }
+        }
+    }
+
+    /**
+     * @return the next expired timeout, or null.  The timeout is no longer scheduled when it is returned
+     */
+    synchronized Timeout poll() {
+        Timeout timeout = slots[EXPIRED][0];
+        if (timeout != null) {
+            unlink(timeout);
+            size--;
+        }
+        return timeout;
+    }
+
+    /**
+     * Returns the time the wheel should next be advanced at.  This is the next tick with a timeout on level 0, or
+     * the next time a higher level moves timeouts down if level 0 is empty
+     *
+     * @return time in milliseconds, or -1 if nothing is scheduled
+     */
+    synchronized long nextWakeup() {
+        if (size == 0) {
+            return -1;
+        }
+        if (slots[EXPIRED][0] != null) {
+            return currentTick * tickMillis;
+        }
+        for (int i = 1; i <= WHEEL_SIZE; i++) {
+            if (slots[0][(int) ((currentTick + i) & WHEEL_MASK)] != null) {
+                return (currentTick + i) * tickMillis;
+            }
+        }
+        return ((currentTick >>> WHEEL_BITS) + 1 << WHEEL_BITS) * tickMillis;
+    }
+
+    private void cascade(int level, int index) {
+        Timeout timeout = slots[level][index];
+        slots[level][index] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.level = -1;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    private void place(Timeout timeout) {
+        long delta = timeout.deadlineTick - currentTick;
+        if (delta <= 0) {
+            insert(timeout, EXPIRED, 0);
+            return;
+        }
+        //Deadlines past the last level wait in the last level and are placed again when it wraps around
+        long tick = delta > MAX_DELTA ? currentTick + MAX_DELTA : timeout.deadlineTick;
+        delta = tick - currentTick;
+        int level = 0;
+        while (delta >= (1L << ((level + 1) * WHEEL_BITS))) {
+            level++;
+        }
+        insert(timeout, level, (int) ((tick >>> (level * WHEEL_BITS)) & WHEEL_MASK));
+    }
+
+    private void insert(Timeout timeout, int level, int slot) {
+        Timeout head = slots[level][slot];
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.previous = null;
+        timeout.next = head;
+        if (head != null) {
+            head.previous = timeout;
+        }
+        slots[level][slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[timeout.level][timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.level = -1;
+    }
+}
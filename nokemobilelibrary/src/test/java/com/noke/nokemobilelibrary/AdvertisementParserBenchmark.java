@@ -0,0 +1,84 @@
+package com.noke.nokemobilelibrary;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays the synthetic scan records in ScanRecordFixtures through the legacy manufacturer data parser and
+ * AdvertisementParser and reports the time and memory allocated per advertisement.  Run with:
+ * ./gradlew :nokemobilelibrary:testDebugUnitTest -Pnoke.benchmarks=true --tests '*AdvertisementParserBenchmark'
+ */
+public class AdvertisementParserBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int MEASURED_ITERATIONS = 2000000;
+
+    @Test
+    public void replayRecordedAdvertisements() {
+        Benchmarks.assumeEnabled();
+        AdvertisementParser parser = new AdvertisementParser();
+        byte[][] records = ScanRecordFixtures.RECORDED;
+
+        long legacyChecksum = runLegacy(records, WARMUP_ITERATIONS);
+        long parserChecksum = runParser(parser, records, WARMUP_ITERATIONS);
+        assertEquals(legacyChecksum, parserChecksum);
+
+        long legacyBytes = allocatedBytes();
+        long legacyStart = System.nanoTime();
+        legacyChecksum = runLegacy(records, MEASURED_ITERATIONS);
+        long legacyNanos = System.nanoTime() - legacyStart;
+        legacyBytes = allocatedBytes() - legacyBytes;
+
+        long parserBytes = allocatedBytes();
+        long parserStart = System.nanoTime();
+        parserChecksum = runParser(parser, records, MEASURED_ITERATIONS);
+        long parserNanos = System.nanoTime() - parserStart;
+        parserBytes = allocatedBytes() - parserBytes;
+
+        assertEquals(legacyChecksum, parserChecksum);
+        report("legacy getManufacturerData", legacyNanos, legacyBytes);
+        report("AdvertisementParser", parserNanos, parserBytes);
+    }
+
+    /**
+     * Parses the records the way the scan callback used to: parse the manufacturer data and copy the broadcast bytes
+     */
+    private static long runLegacy(byte[][] records, int iterations) {
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            byte[] getdata = ScanRecordFixtures.legacyManufacturerData(records[i % records.length]);
+            byte[] broadcastData = new byte[]{getdata[2], getdata[3], getdata[4]};
+            checksum += broadcastData[0] + broadcastData[1] * 31 + broadcastData[2] * 961;
+        }
+        return checksum;
+    }
+
+    private static long runParser(AdvertisementParser parser, byte[][] records, int iterations) {
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            parser.parse(records[i % records.length]);
+            checksum += parser.getStatus() + parser.getFirmwareMajor() * 31 + parser.getFirmwareMinor() * 961;
+        }
+        return checksum;
+    }
+
+    /**
+     * @return bytes allocated by the current thread, or 0 if the JVM doesn't report allocations
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static void report(String name, long nanos, long bytes) {
+        System.out.println(String.format("%-28s %8.1f ns/advertisement %8.1f bytes/advertisement",
+                name, (double) nanos / MEASURED_ITERATIONS, (double) bytes / MEASURED_ITERATIONS));
+    }
+}
@@ -0,0 +1,83 @@
+package com.noke.nokemobilelibrary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for AdvertisementParser
+ */
+public class AdvertisementParserTest {
+
+    private final AdvertisementParser parser = new AdvertisementParser();
+
+    @Test
+    public void parse_readsHdLockBroadcast() {
+        assertTrue(parser.parse(ScanRecordFixtures.HD_LOCK_LOCKED));
+        assertEquals(0x0059, parser.getCompanyId());
+        assertEquals(7, parser.getManufacturerDataLength());
+        assertEquals(2, parser.getFirmwareMajor());
+        assertEquals(13, parser.getFirmwareMinor());
+        assertEquals(NokeDefines.NOKE_LOCK_STATE_LOCKED, parser.getLockState());
+    }
+
+    @Test
+    public void parse_findsManufacturerDataBeforeName() {
+        assertTrue(parser.parse(ScanRecordFixtures.HD_LOCK_UNLOCKED));
+        assertEquals(2, parser.getFirmwareMajor());
+        assertEquals(13, parser.getFirmwareMinor());
+        assertEquals(NokeDefines.NOKE_LOCK_STATE_UNLOCKED, parser.getLockState());
+    }
+
+    @Test
+    public void parse_withoutManufacturerData_returnsZeros() {
+        assertFalse(parser.parse(ScanRecordFixtures.NO_MANUFACTURER_DATA));
+        assertFalse(parser.hasManufacturerData());
+        assertEquals(-1, parser.getCompanyId());
+        assertEquals(0, parser.getFirmwareMajor());
+        assertEquals(0, parser.getFirmwareMinor());
+        assertEquals(0, parser.getStatus());
+    }
+
+    @Test
+    public void parse_nullRecord() {
+        assertFalse(parser.parse(null));
+        assertEquals(0, parser.getFirmwareMajor());
+    }
+
+    @Test
+    public void parse_truncatedRecord_stopsAtLastCompleteStructure() {
+        byte[] truncated = NokeDefines.hexToBytes("02010608FF5900600203");
+        assertFalse(parser.parse(truncated));
+        assertEquals(0, parser.getFirmwareMinor());
+    }
+
+    @Test
+    public void parse_reusesParserAcrossRecords() {
+        assertTrue(parser.parse(ScanRecordFixtures.HD_LOCK_LOCKED));
+        assertFalse(parser.parse(ScanRecordFixtures.NO_MANUFACTURER_DATA));
+        assertFalse(parser.hasManufacturerData());
+        assertTrue(parser.parse(ScanRecordFixtures.PADLOCK));
+        assertEquals(10, parser.getFirmwareMinor());
+    }
+
+    @Test
+    public void parse_unpaddedRecord_readsLastStructure() {
+        //The legacy parser read one byte past the manufacturer data and returned zeros for this record
+        assertTrue(parser.parse(ScanRecordFixtures.UNPADDED));
+        assertEquals(3, parser.getFirmwareMajor());
+        assertEquals(1, parser.getFirmwareMinor());
+        assertEquals(0, parser.getManufacturerData(5));
+    }
+
+    @Test
+    public void parse_matchesLegacyParserForRecordedAdvertisements() {
+        for (byte[] record : ScanRecordFixtures.RECORDED) {
+            byte[] legacy = ScanRecordFixtures.legacyManufacturerData(record);
+            parser.parse(record);
+            assertEquals(legacy[2], parser.getStatus());
+            assertEquals(legacy[3], parser.getFirmwareMajor());
+            assertEquals(legacy[4], parser.getFirmwareMinor());
+        }
+    }
+}
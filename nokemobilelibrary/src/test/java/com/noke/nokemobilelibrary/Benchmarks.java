@@ -0,0 +1,20 @@
+package com.noke.nokemobilelibrary;
+
+import org.junit.Assume;
+
+/**
+ * Keeps benchmarks out of the regular unit test run.  Run them with:
+ * ./gradlew :nokemobilelibrary:testDebugUnitTest -Pnoke.benchmarks=true --tests '*Benchmark'
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Skips the calling test unless benchmarks were asked for
+     */
+    static void assumeEnabled() {
+        Assume.assumeTrue("benchmarks are off, run with -Pnoke.benchmarks=true", Boolean.getBoolean("noke.benchmarks"));
+    }
+}
@@ -0,0 +1,178 @@
+package com.noke.nokemobilelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the throughput of stop-and-wait and pipelined command writes against a simulated lock.  The simulation
+ * runs on a virtual clock in connection events: at every event the phone can send a few packets and the lock
+ * sends the answers it has ready.  The lock buffers the commands it receives and takes a fixed time to process
+ * each one.  The throughput report only runs when benchmarks are asked for:
+ * ./gradlew :nokemobilelibrary:testDebugUnitTest -Pnoke.benchmarks=true --tests '*CommandPipelineBenchmark'
+ */
+public class CommandPipelineBenchmark {
+
+    private static final int COMMANDS = 60;
+    private static final int[] WINDOWS = {1, 2, 4, 8};
+    /**
+     * Connection interval in milliseconds with the high connection priority
+     */
+    private static final int INTERVAL = 15;
+    /**
+     * Time in milliseconds the lock takes to process a command
+     */
+    private static final int PROCESSING = 8;
+    /**
+     * Packets the phone can send in one connection event with write without response
+     */
+    private static final int PACKETS_PER_EVENT = 4;
+
+    /**
+     * A lock that buffers commands and answers each one after processing it
+     */
+    private static final class SimulatedLock {
+        private final ArrayDeque<byte[]> buffer = new ArrayDeque<>();
+        private final ArrayDeque<Long> receivedAt = new ArrayDeque<>();
+        private final ArrayDeque<byte[]> answers = new ArrayDeque<>();
+        private final int failCommandId;
+        private long busyUntil;
+
+        SimulatedLock(int failCommandId) {
+            this.failCommandId = failCommandId;
+        }
+
+        void receive(byte[] command, long now) {
+            buffer.add(command);
+            receivedAt.add(now);
+        }
+
+        /**
+         * Answers the buffered commands whose processing has finished by the given time
+         */
+        void run(long now) {
+            while (!buffer.isEmpty()) {
+                long done = Math.max(busyUntil, receivedAt.peek()) + PROCESSING;
+                if (done > now) {
+                    return;
+                }
+                busyUntil = done;
+                receivedAt.poll();
+                byte[] command = buffer.poll();
+                byte[] answer = new byte[20];
+                answer[0] = NokeDefines.APP_Dest;
+                int id = command[2] & 0xFF;
+                answer[1] = id == failCommandId ? NokeDefines.INVALIDCMD_ResultType : NokeDefines.SUCCESS_ResultType;
+                answer[2] = command[2];
+                answers.add(answer);
+            }
+        }
+
+        byte[] pollAnswer() {
+            return answers.poll();
+        }
+    }
+
+    private static final class Result {
+        long elapsed;
+        int answered;
+        boolean fellBack;
+    }
+
+    private static List<String> commands() {
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < COMMANDS; i++) {
+            byte[] command = new byte[20];
+            command[0] = 0x7E;
+            command[1] = 0x10;
+            command[2] = (byte) (i + 1);
+            commands.add(NokeDefines.bytesToHex(command));
+        }
+        return commands;
+    }
+
+    /**
+     * Sends all commands through a pipeline and returns how long it took on the virtual clock
+     */
+    private static Result simulate(int window, int failCommandId) {
+        SimulatedLock lock = new SimulatedLock(failCommandId);
+        CommandPipeline pipeline = new CommandPipeline(window, commands());
+        ArrayDeque<byte[]> outgoing = new ArrayDeque<>();
+        Result result = new Result();
+        long now = 0;
+        CommandPipeline.Command command;
+        while ((command = pipeline.poll()) != null) {
+            outgoing.add(command.bytes);
+        }
+        while (!pipeline.isDone()) {
+            now += INTERVAL;
+            //Writes with response take a connection event each; writes without response share an event
+            int packets = window > 1 && !pipeline.isStopAndWait() ? PACKETS_PER_EVENT : 1;
+            for (int i = 0; i < packets && !outgoing.isEmpty(); i++) {
+                lock.receive(outgoing.poll(), now);
+            }
+            lock.run(now);
+            byte[] answer;
+            while ((answer = lock.pollAnswer()) != null) {
+                CommandPipeline.Command answered = pipeline.onResult(answer[2] & 0xFF, answer[1] == NokeDefines.SUCCESS_ResultType);
+                assertNotNull("answer without a command in flight", answered);
+                assertEquals(answer[2] & 0xFF, answered.id);
+                result.answered++;
+                while ((command = pipeline.poll()) != null) {
+                    outgoing.add(command.bytes);
+                }
+            }
+            assertTrue("simulation stalled", now < 600000);
+        }
+        result.elapsed = now;
+        result.fellBack = pipeline.isStopAndWait();
+        return result;
+    }
+
+    @Test
+    public void reportThroughputByWindow() {
+        Benchmarks.assumeEnabled();
+        double stopAndWait = 0;
+        for (int window : WINDOWS) {
+            Result result = simulate(window, -1);
+            assertEquals(COMMANDS, result.answered);
+            assertFalse(result.fellBack);
+            double perSecond = COMMANDS * 1000.0 / result.elapsed;
+            if (window == 1) {
+                stopAndWait = perSecond;
+            } else {
+                assertTrue("window " + window + " should be faster than stop-and-wait", perSecond > stopAndWait);
+            }
+            System.out.println(String.format("window %d: %5d ms for %d commands, %6.1f commands/s (%.1fx)",
+                    window, result.elapsed, COMMANDS, perSecond, perSecond / stopAndWait));
+        }
+    }
+
+    @Test
+    public void errorResult_fallsBackToStopAndWait() {
+        Result result = simulate(4, COMMANDS / 2);
+        assertEquals(COMMANDS, result.answered);
+        assertTrue(result.fellBack);
+    }
+
+    @Test
+    public void unmatchedAnswer_isTakenAsOldestAndStopsPipelining() {
+        List<String> commands = commands().subList(0, 3);
+        CommandPipeline pipeline = new CommandPipeline(3, commands);
+        CommandPipeline.Command first = pipeline.poll();
+        assertNotNull(pipeline.poll());
+        assertNotNull(pipeline.poll());
+        assertNull(pipeline.poll());
+
+        assertSame(first, pipeline.onResult(0xEE, true));
+        assertTrue(pipeline.isStopAndWait());
+        assertEquals(2, pipeline.getInFlight());
+        assertEquals(3, pipeline.onResult(3, true).id);
+        assertEquals(2, pipeline.onResult(2, true).id);
+        assertTrue(pipeline.isDone());
+    }
+}
@@ -0,0 +1,169 @@
+package com.noke.nokemobilelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ConnectionPool
+ */
+public class ConnectionPoolTest {
+
+    /**
+     * Records the connects and disconnects the pool asks for
+     */
+    private static final class RecordingConnector implements ConnectionPool.Connector {
+        final List<String> calls = new ArrayList<>();
+        final Set<NokeDevice> busy = new HashSet<>();
+        boolean refuse;
+        long now;
+
+        @Override
+        public boolean connect(NokeDevice noke) {
+            calls.add("connect " + noke.getName());
+            return !refuse;
+        }
+
+        @Override
+        public void disconnect(NokeDevice noke) {
+            calls.add("disconnect " + noke.getName());
+        }
+
+        @Override
+        public boolean isIdle(NokeDevice noke) {
+            return !busy.contains(noke);
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+    }
+
+    private static final int LOW = 0;
+    private static final int HIGH = 10;
+
+    private final NokeDevice lockA = new NokeDevice("A", "AA:BB:CC:DD:EE:01");
+    private final NokeDevice lockB = new NokeDevice("B", "AA:BB:CC:DD:EE:02");
+    private final NokeDevice lockC = new NokeDevice("C", "AA:BB:CC:DD:EE:03");
+    private final NokeDevice lockD = new NokeDevice("D", "AA:BB:CC:DD:EE:04");
+
+    private final RecordingConnector connector = new RecordingConnector();
+    private final NokeGattTelemetry telemetry = new NokeGattTelemetry();
+
+    @Test
+    public void requestsBeyondTheLimit_waitForASlot() {
+        ConnectionPool pool = new ConnectionPool(connector, telemetry, 2);
+        connector.busy.add(lockA);
+        connector.busy.add(lockB);
+        pool.request(lockA, LOW, -60);
+        pool.request(lockB, LOW, -60);
+        pool.request(lockC, LOW, -60);
+
+        assertEquals("[connect A, connect B]", connector.calls.toString());
+        assertEquals(2, pool.getActiveCount());
+        assertEquals(1, pool.getPendingCount());
+
+        pool.release(lockA);
+        assertEquals("[connect A, connect B, connect C]", connector.calls.toString());
+        assertTrue(pool.isActive(lockC));
+        assertEquals(0, pool.getPendingCount());
+    }
+
+    @Test
+    public void waitingRequests_areOrderedByPriorityThenSignal() {
+        ConnectionPool pool = new ConnectionPool(connector, telemetry, 1);
+        connector.busy.add(lockA);
+        pool.request(lockA, LOW, -60);
+        pool.request(lockB, LOW, -80);
+        pool.request(lockC, LOW, -50);
+        pool.request(lockD, HIGH, -90);
+
+        pool.release(lockA);
+        pool.release(lockD);
+        pool.release(lockC);
+        assertEquals("[connect A, connect D, connect C, connect B]", connector.calls.toString());
+    }
+
+    @Test
+    public void higherPriority_preemptsAnIdleLowerPrioritySlot() {
+        ConnectionPool pool = new ConnectionPool(connector, telemetry, 2);
+        connector.now = 100;
+        pool.request(lockA, LOW, -60);
+        connector.now = 200;
+        pool.request(lockB, LOW, -60);
+        connector.busy.add(lockB);
+
+        pool.request(lockC, HIGH, -60);
+        //A is idle and has held its slot the longest
+        assertEquals("[connect A, connect B, disconnect A]", connector.calls.toString());
+        assertTrue(pool.isActive(lockA));
+        assertEquals(1, pool.getPendingCount());
+
+        //The slot is only given away once the preempted device has disconnected
+        pool.release(lockA);
+        assertEquals("[connect A, connect B, disconnect A, connect C]", connector.calls.toString());
+        assertTrue(pool.isActive(lockC));
+        assertFalse(pool.isActive(lockA));
+        assertEquals(0, pool.getPendingCount());
+    }
+
+    @Test
+    public void preemptedDevice_isOnlyAskedToDisconnectOnce() {
+        ConnectionPool pool = new ConnectionPool(connector, telemetry, 1);
+        pool.request(lockA, LOW, -60);
+        pool.request(lockB, HIGH, -60);
+        pool.request(lockC, HIGH, -60);
+
+        assertEquals("[connect A, disconnect A]", connector.calls.toString());
+        pool.release(lockA);
+        assertEquals("[connect A, disconnect A, connect B]", connector.calls.toString());
+    }
+
+    @Test
+    public void busyOrEqualPriorityConnections_areNotPreempted() {
+        ConnectionPool pool = new ConnectionPool(connector, telemetry, 2);
+        pool.request(lockA, LOW, -60);
+        pool.request(lockB, HIGH, -60);
+        connector.busy.add(lockA);
+
+        pool.request(lockC, HIGH, -60);
+        assertEquals("[connect A, connect B]", connector.calls.toString());
+        assertEquals(1, pool.getPendingCount());
+    }
+
+    @Test
+    public void refusedConnection_freesTheSlotForTheNextRequest() {
+        ConnectionPool pool = new ConnectionPool(connector, telemetry, 1);
+        connector.refuse = true;
+        pool.request(lockA, LOW, -60);
+
+        assertEquals("[connect A]", connector.calls.toString());
+        assertEquals(0, pool.getActiveCount());
+
+        connector.refuse = false;
+        pool.request(lockB, LOW, -60);
+        assertTrue(pool.isActive(lockB));
+    }
+
+    @Test
+    public void cancelAndRaisingTheLimit() {
+        ConnectionPool pool = new ConnectionPool(connector, telemetry, 1);
+        connector.busy.add(lockA);
+        pool.request(lockA, LOW, -60);
+        pool.request(lockB, LOW, -60);
+        pool.request(lockC, LOW, -60);
+
+        assertTrue(pool.cancel(lockB));
+        assertFalse(pool.cancel(lockB));
+        pool.setMaxConnections(3);
+        assertEquals("[connect A, connect C]", connector.calls.toString());
+        assertEquals(2, pool.getActiveCount());
+        assertEquals(0, pool.getPendingCount());
+    }
+}
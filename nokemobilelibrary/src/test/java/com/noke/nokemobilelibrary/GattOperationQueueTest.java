@@ -0,0 +1,202 @@
+package com.noke.nokemobilelibrary;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for GattOperationQueue.  Timeouts run on a TimerWheel driven by a fake clock
+ */
+public class GattOperationQueueTest {
+
+    private static final long OPERATION_TIMEOUT = 1000;
+
+    /**
+     * Runs the queue's timeouts on a timer wheel with a clock the test moves
+     */
+    private static final class FakeHost implements GattOperationQueue.Host {
+        final TimerWheel wheel = new TimerWheel(1, 0);
+        long now;
+
+        @Override
+        public void scheduleTimeout(TimerWheel.Timeout timeout, long delay) {
+            wheel.schedule(timeout, now + delay);
+        }
+
+        @Override
+        public void cancelTimeout(TimerWheel.Timeout timeout) {
+            wheel.cancel(timeout);
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        void advance(long millis) {
+            now += millis;
+            wheel.advance(now);
+            TimerWheel.Timeout timeout;
+            while ((timeout = wheel.poll()) != null) {
+                timeout.onTimeout(now);
+            }
+        }
+    }
+
+    /**
+     * Records what happens to it.  Accepts the operation unless told the stack is busy
+     */
+    private static class RecordingOperation extends GattOperationQueue.Operation {
+        final String name;
+        final List<String> events;
+        int busyTimes;
+        int executions;
+
+        RecordingOperation(String name, int type, List<String> events) {
+            super(type);
+            this.name = name;
+            this.events = events;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            executions++;
+            if (busyTimes > 0) {
+                busyTimes--;
+                return false;
+            }
+            events.add("execute " + name);
+            return true;
+        }
+
+        @Override
+        void onCompleted(int status, byte[] value) {
+            events.add("completed " + name + " " + status);
+        }
+
+        @Override
+        void onFailed(int reason) {
+            events.add("failed " + name + " " + reason);
+        }
+    }
+
+    private final FakeHost host = new FakeHost();
+    private final NokeGattTelemetry telemetry = new NokeGattTelemetry();
+    private final GattOperationQueue queue = new GattOperationQueue(null, host, telemetry, OPERATION_TIMEOUT);
+    private final List<String> events = new ArrayList<>();
+
+    @Test
+    public void operationsRunOneAtATime() {
+        queue.enqueue(new RecordingOperation("a", GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, events));
+        queue.enqueue(new RecordingOperation("b", GattOperationQueue.TYPE_READ_CHARACTERISTIC, events));
+        assertEquals("[execute a]", events.toString());
+        assertEquals(2, queue.size());
+
+        assertTrue(queue.complete(GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, BluetoothGatt.GATT_SUCCESS, null));
+        assertTrue(queue.complete(GattOperationQueue.TYPE_READ_CHARACTERISTIC, BluetoothGatt.GATT_SUCCESS, null));
+
+        assertEquals("[execute a, completed a 0, execute b, completed b 0]", events.toString());
+        assertEquals(0, queue.size());
+        assertEquals(0, host.wheel.size());
+    }
+
+    @Test
+    public void callbackOfTheWrongType_isIgnored() {
+        queue.enqueue(new RecordingOperation("a", GattOperationQueue.TYPE_WRITE_DESCRIPTOR, events));
+
+        assertFalse(queue.complete(GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, BluetoothGatt.GATT_SUCCESS, null));
+        assertEquals("[execute a]", events.toString());
+        assertEquals(1, queue.size());
+
+        assertTrue(queue.complete(GattOperationQueue.TYPE_WRITE_DESCRIPTOR, BluetoothGatt.GATT_SUCCESS, null));
+        assertFalse(queue.complete(GattOperationQueue.TYPE_WRITE_DESCRIPTOR, BluetoothGatt.GATT_SUCCESS, null));
+    }
+
+    @Test
+    public void callbackBeforeTheTimeoutIsScheduled_completesWithoutATimeout() {
+        //The stack can call back on its own thread before execute() has returned
+        queue.enqueue(new RecordingOperation("a", GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, events) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                super.execute(gatt);
+                assertTrue(queue.complete(GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, BluetoothGatt.GATT_SUCCESS, null));
+                return true;
+            }
+        });
+        queue.enqueue(new RecordingOperation("b", GattOperationQueue.TYPE_READ_CHARACTERISTIC, events));
+
+        assertEquals("[execute a, completed a 0, execute b]", events.toString());
+        //Only b's timeout is left on the wheel
+        assertEquals(1, host.wheel.size());
+        assertEquals(1, queue.size());
+
+        host.advance(OPERATION_TIMEOUT);
+        assertEquals("[execute a, completed a 0, execute b, failed b 2]", events.toString());
+    }
+
+    @Test
+    public void missingCallback_timesOutAndStartsTheNextOperation() {
+        queue.enqueue(new RecordingOperation("a", GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, events));
+        queue.enqueue(new RecordingOperation("b", GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, events));
+
+        host.advance(OPERATION_TIMEOUT - 1);
+        assertEquals("[execute a]", events.toString());
+        host.advance(1);
+        assertEquals("[execute a, failed a " + GattOperationQueue.FAILURE_TIMEOUT + ", execute b]", events.toString());
+        assertEquals(1, queue.size());
+        assertEquals(1, host.wheel.size());
+    }
+
+    @Test
+    public void busyStack_isRetriedAfterADelay() {
+        RecordingOperation operation = new RecordingOperation("a", GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, events);
+        operation.busyTimes = 2;
+        queue.enqueue(operation);
+        assertEquals(1, operation.executions);
+        //Callbacks don't complete an operation that is waiting to be retried
+        assertFalse(queue.complete(GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, BluetoothGatt.GATT_SUCCESS, null));
+
+        host.advance(NokeDefines.GATT_OPERATION_BUSY_DELAY);
+        host.advance(NokeDefines.GATT_OPERATION_BUSY_DELAY);
+        assertEquals(3, operation.executions);
+        assertEquals("[execute a]", events.toString());
+
+        assertTrue(queue.complete(GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, BluetoothGatt.GATT_SUCCESS, null));
+        assertEquals("[execute a, completed a 0]", events.toString());
+    }
+
+    @Test
+    public void busyStack_failsWhenRetriesAreUsedUp() {
+        RecordingOperation operation = new RecordingOperation("a", GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, events);
+        operation.busyTimes = Integer.MAX_VALUE;
+        queue.enqueue(operation);
+        queue.enqueue(new RecordingOperation("b", GattOperationQueue.TYPE_READ_CHARACTERISTIC, events));
+
+        for (int i = 0; i < NokeDefines.GATT_OPERATION_BUSY_RETRIES; i++) {
+            assertTrue(events.isEmpty());
+            host.advance(NokeDefines.GATT_OPERATION_BUSY_DELAY);
+        }
+
+        assertEquals(NokeDefines.GATT_OPERATION_BUSY_RETRIES + 1, operation.executions);
+        assertEquals("[failed a " + GattOperationQueue.FAILURE_BUSY + ", execute b]", events.toString());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void close_dropsOperationsWithoutNotifyingThem() {
+        queue.enqueue(new RecordingOperation("a", GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, events));
+        queue.enqueue(new RecordingOperation("b", GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, events));
+        queue.close();
+        queue.enqueue(new RecordingOperation("c", GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, events));
+
+        assertEquals(0, queue.size());
+        assertEquals(0, host.wheel.size());
+        host.advance(OPERATION_TIMEOUT);
+        assertEquals("[execute a]", events.toString());
+    }
+}
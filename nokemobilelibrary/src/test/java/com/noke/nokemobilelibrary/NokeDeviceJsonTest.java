@@ -0,0 +1,55 @@
+package com.noke.nokemobilelibrary;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the JSON format devices are cached in
+ */
+public class NokeDeviceJsonTest {
+
+    private final Gson gson = new Gson();
+
+    @Test
+    public void details_areWrittenFlatInTheirOriginalPlaces() {
+        NokeDevice noke = new NokeDevice("Lock", "AA:BB:CC:DD:EE:01");
+        noke.setSerial("SN123");
+        noke.setTrackingKey("tracking");
+        noke.setOfflineUnlockCmd("cmd");
+        noke.setOfflineKey("key");
+
+        String json = gson.toJson(noke);
+        assertFalse(json.contains("details"));
+        assertTrue(json.indexOf("\"mac\"") < json.indexOf("\"serial\":\"SN123\""));
+        assertTrue(json.contains("\"trackingKey\":\"tracking\""));
+        assertTrue(json.endsWith("\"offlineUnlockCmd\":\"cmd\",\"offlineKey\":\"key\"}"));
+    }
+
+    @Test
+    public void cachedDevice_keepsItsDetails() {
+        NokeDevice noke = new NokeDevice("Lock", "AA:BB:CC:DD:EE:01");
+        noke.setSerial("SN123");
+        noke.setOfflineKey("key");
+
+        NokeDevice cached = gson.fromJson(gson.toJson(noke), NokeDevice.class);
+        assertEquals("Lock", cached.getName());
+        assertEquals("AA:BB:CC:DD:EE:01", cached.getMac());
+        assertEquals("SN123", cached.getSerial());
+        assertEquals("key", cached.getOfflineKey());
+        assertNull(cached.getTrackingKey());
+        assertNull(cached.getOfflineUnlockCmd());
+    }
+
+    @Test
+    public void deviceWithoutDetails_hasNoDetailFields() {
+        NokeDevice noke = new NokeDevice("Lock", "AA:BB:CC:DD:EE:01");
+
+        String json = gson.toJson(noke);
+        assertFalse(json.contains("serial"));
+        assertFalse(json.contains("offlineKey"));
+        assertNull(gson.fromJson(json, NokeDevice.class).getSerial());
+    }
+}
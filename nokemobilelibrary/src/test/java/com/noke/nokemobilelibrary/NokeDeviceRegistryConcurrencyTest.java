@@ -0,0 +1,358 @@
+package com.noke.nokemobilelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrency tests for NokeDeviceRegistry.  Written in the style of jcstress: each test runs a small set of actors
+ * racing against each other many times, then checks that only allowed outcomes were observed.  The actors mimic the
+ * scan callback and GATT callback threads adding, looking up and removing devices.
+ */
+public class NokeDeviceRegistryConcurrencyTest {
+
+    private static final int ITERATIONS = 2000;
+    private static final int DEVICES_PER_ACTOR = 500;
+
+    /**
+     * Runs the actors at the same time and waits for them to finish
+     */
+    private static void race(Runnable... actors) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(actors.length);
+        final AtomicInteger failures = new AtomicInteger();
+        for (final Runnable actor : actors) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        actor.run();
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals("actor threw", 0, failures.get());
+    }
+
+    private static String mac(int actor, int i) {
+        return String.format("%02X:00:00:00:%02X:%02X", actor, (i >> 8) & 0xFF, i & 0xFF);
+    }
+
+    /**
+     * Counts listener events per device
+     */
+    private static final class CountingListener implements NokeDeviceRegistry.Listener {
+        final ConcurrentHashMap<String, AtomicInteger> balance = new ConcurrentHashMap<>();
+        final AtomicInteger added = new AtomicInteger();
+
+        private AtomicInteger counter(String mac) {
+            AtomicInteger counter = balance.get(mac);
+            if (counter == null) {
+                AtomicInteger created = new AtomicInteger();
+                counter = balance.putIfAbsent(mac, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            return counter;
+        }
+
+        @Override
+        public void onNokeDeviceAdded(NokeDevice noke) {
+            added.incrementAndGet();
+            counter(noke.getMac()).incrementAndGet();
+        }
+
+        @Override
+        public void onNokeDeviceRemoved(NokeDevice noke) {
+            counter(noke.getMac()).decrementAndGet();
+        }
+    }
+
+    @Test
+    public void putIfAbsent_sameMac_exactlyOneActorWins() throws InterruptedException {
+        for (int i = 0; i < ITERATIONS; i++) {
+            final NokeDeviceRegistry registry = new NokeDeviceRegistry();
+            final CountingListener listener = new CountingListener();
+            registry.addListener(listener);
+            final NokeDevice scanned = new NokeDevice("NOKE3E_SCAN", "AA:BB:CC:DD:EE:FF");
+            final NokeDevice added = new NokeDevice("NOKE3E_APP", "AA:BB:CC:DD:EE:FF");
+            final NokeDevice[] results = new NokeDevice[2];
+
+            race(new Runnable() {
+                @Override
+                public void run() {
+                    results[0] = registry.putIfAbsent(scanned);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    results[1] = registry.putIfAbsent(added);
+                }
+            });
+
+            //Allowed outcomes: (null, scanned) or (added, null)
+            boolean scanWon = results[0] == null && results[1] == scanned;
+            boolean appWon = results[1] == null && results[0] == added;
+            assertTrue("unexpected outcome", scanWon ^ appWon);
+            assertSame(scanWon ? scanned : added, registry.get("AA:BB:CC:DD:EE:FF"));
+            assertEquals(1, registry.size());
+            assertEquals(1, listener.added.get());
+        }
+    }
+
+    @Test
+    public void put_distinctMacs_noLostUpdates() throws InterruptedException {
+        assertNoLostUpdates(new NokeDeviceRegistry());
+    }
+
+    @Test
+    public void compact_put_distinctMacs_noLostUpdates() throws InterruptedException {
+        NokeDeviceRegistry registry = new NokeDeviceRegistry();
+        registry.setCompact(true);
+        assertNoLostUpdates(registry);
+    }
+
+    @Test
+    public void compact_removeAndRelookup_acrossRehashes() {
+        NokeDeviceRegistry registry = new NokeDeviceRegistry();
+        registry.setCompact(true);
+        for (int i = 0; i < DEVICES_PER_ACTOR; i++) {
+            registry.putIfAbsent(new NokeDevice("NOKE3E", mac(2, i)));
+        }
+        //Remove every other device so later inserts have to skip removed slots and rehash
+        for (int i = 0; i < DEVICES_PER_ACTOR; i += 2) {
+            assertNotNull(registry.remove(mac(2, i)));
+        }
+        for (int i = 0; i < DEVICES_PER_ACTOR; i++) {
+            registry.putIfAbsent(new NokeDevice("NOKE3E", mac(3, i)));
+        }
+        assertEquals(DEVICES_PER_ACTOR / 2 + DEVICES_PER_ACTOR, registry.size());
+        for (int i = 0; i < DEVICES_PER_ACTOR; i++) {
+            assertEquals(i % 2 == 1, registry.contains(mac(2, i)));
+            assertTrue(registry.contains(mac(3, i)));
+        }
+        //Lowercase and invalid addresses
+        assertNotNull(registry.get(mac(3, 1).toLowerCase()));
+        assertNull(registry.putIfAbsent(new NokeDevice("NOKE3E", "not a mac")));
+        assertNotNull(registry.get("not a mac"));
+
+        registry.setCompact(false);
+        assertEquals(DEVICES_PER_ACTOR / 2 + DEVICES_PER_ACTOR + 1, registry.snapshot().size());
+        assertTrue(registry.contains(mac(3, DEVICES_PER_ACTOR - 1)));
+    }
+
+    @Test
+    public void macAddress_roundTrips() {
+        assertEquals(0xC0FFEE00BEEFL, MacAddress.parse("C0:FF:EE:00:BE:EF"));
+        assertEquals(0xC0FFEE00BEEFL, MacAddress.parse("c0:ff:ee:00:be:ef"));
+        assertEquals("C0:FF:EE:00:BE:EF", MacAddress.format(0xC0FFEE00BEEFL));
+        assertEquals("00:00:00:00:00:00", MacAddress.format(MacAddress.parse("00:00:00:00:00:00")));
+        assertEquals(MacAddress.INVALID, MacAddress.parse("C0:FF:EE:00:BE"));
+        assertEquals(MacAddress.INVALID, MacAddress.parse("C0-FF-EE-00-BE-EF"));
+        assertEquals(MacAddress.INVALID, MacAddress.parse("G0:FF:EE:00:BE:EF"));
+    }
+
+    @Test
+    public void packedAddress_getAndRemoveInBothModes() {
+        for (boolean compact : new boolean[]{false, true}) {
+            NokeDeviceRegistry registry = new NokeDeviceRegistry();
+            registry.setCompact(compact);
+            CountingListener listener = new CountingListener();
+            registry.addListener(listener);
+            NokeDevice noke = new NokeDevice("NOKE3E", "C0:FF:EE:00:BE:EF");
+            registry.putIfAbsent(noke);
+
+            assertSame(noke, registry.get(0xC0FFEE00BEEFL));
+            assertNull(registry.get(0xC0FFEE00BEEEL));
+            assertNull(registry.get(MacAddress.INVALID));
+            assertNull(registry.remove(MacAddress.INVALID));
+
+            assertSame(noke, registry.remove(0xC0FFEE00BEEFL));
+            assertNull(registry.remove(0xC0FFEE00BEEFL));
+            assertNull(registry.get("C0:FF:EE:00:BE:EF"));
+            assertEquals(1, listener.added.get());
+            assertEquals(0, listener.balance.get("C0:FF:EE:00:BE:EF").get());
+            assertTrue(registry.snapshot().isEmpty());
+        }
+    }
+
+    private static void assertNoLostUpdates(final NokeDeviceRegistry registry) throws InterruptedException {
+        final CountingListener listener = new CountingListener();
+        registry.addListener(listener);
+
+        Runnable[] actors = new Runnable[4];
+        for (int a = 0; a < actors.length; a++) {
+            final int actor = a;
+            actors[a] = new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < DEVICES_PER_ACTOR; i++) {
+                        registry.putIfAbsent(new NokeDevice("NOKE3E", mac(actor, i)));
+                        //Interleave snapshots with the writes, like the scan loop checking for pending connections
+                        registry.snapshot();
+                    }
+                }
+            };
+        }
+        race(actors);
+
+        int expected = actors.length * DEVICES_PER_ACTOR;
+        assertEquals(expected, registry.size());
+        assertEquals(expected, registry.snapshot().size());
+        assertEquals(expected, listener.added.get());
+        for (int a = 0; a < actors.length; a++) {
+            for (int i = 0; i < DEVICES_PER_ACTOR; i++) {
+                assertNotNull(registry.get(mac(a, i)));
+            }
+        }
+    }
+
+    @Test
+    public void addAndRemove_sameMacs_listenerEventsMatchContents() throws InterruptedException {
+        final NokeDeviceRegistry registry = new NokeDeviceRegistry();
+        final CountingListener listener = new CountingListener();
+        registry.addListener(listener);
+
+        Runnable scanActor = new Runnable() {
+            @Override
+            public void run() {
+                for (int round = 0; round < 20; round++) {
+                    for (int i = 0; i < DEVICES_PER_ACTOR; i++) {
+                        registry.putIfAbsent(new NokeDevice("NOKE3E", mac(0, i)));
+                    }
+                }
+            }
+        };
+        Runnable appActor = new Runnable() {
+            @Override
+            public void run() {
+                for (int round = 0; round < 20; round++) {
+                    for (int i = 0; i < DEVICES_PER_ACTOR; i++) {
+                        registry.remove(mac(0, i));
+                    }
+                }
+            }
+        };
+        Runnable restoreActor = new Runnable() {
+            @Override
+            public void run() {
+                for (int round = 0; round < 20; round++) {
+                    for (int i = DEVICES_PER_ACTOR - 1; i >= 0; i--) {
+                        registry.put(new NokeDevice("NOKE3E", mac(0, i)));
+                    }
+                }
+            }
+        };
+        race(scanActor, appActor, restoreActor);
+
+        //Every add is matched by a remove unless the device is still in the registry
+        for (int i = 0; i < DEVICES_PER_ACTOR; i++) {
+            String mac = mac(0, i);
+            AtomicInteger balance = listener.balance.get(mac);
+            assertEquals(mac, registry.contains(mac) ? 1 : 0, balance != null ? balance.get() : 0);
+        }
+        assertEquals(registry.size(), registry.snapshot().size());
+    }
+
+    @Test
+    public void snapshot_isImmutableAndRebuiltAfterChange() {
+        NokeDeviceRegistry registry = new NokeDeviceRegistry();
+        NokeDevice first = new NokeDevice("NOKE3E_1", "00:00:00:00:00:01");
+        NokeDevice second = new NokeDevice("NOKE3E_2", "00:00:00:00:00:02");
+        registry.putIfAbsent(first);
+        registry.putIfAbsent(second);
+
+        List<NokeDevice> snapshot = registry.snapshot();
+        assertSame(snapshot, registry.snapshot());
+        assertSame(first, snapshot.get(0));
+        assertSame(second, snapshot.get(1));
+        try {
+            snapshot.clear();
+            fail("snapshot should be immutable");
+        } catch (UnsupportedOperationException expected) {
+            //expected
+        }
+
+        registry.remove(first.getMac());
+        assertEquals(2, snapshot.size());
+        List<NokeDevice> rebuilt = registry.snapshot();
+        assertEquals(1, rebuilt.size());
+        assertSame(second, rebuilt.get(0));
+    }
+
+    @Test
+    public void snapshot_keepsInsertionOrderInBothModes() {
+        NokeDeviceRegistry registry = new NokeDeviceRegistry();
+        List<String> added = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String mac = mac(i % 7, (i * 31) % 200);
+            registry.put(new NokeDevice("NOKE3E", mac));
+            added.add(mac);
+        }
+        registry.put(new NokeDevice("NOKE3E", "not a mac"));
+        added.add("not a mac");
+        assertEquals(added, macsOf(registry.snapshot()));
+
+        registry.setCompact(true);
+        assertEquals(added, macsOf(registry.snapshot()));
+
+        registry.remove(added.remove(0));
+        registry.put(new NokeDevice("NOKE3E", added.get(0)));
+        added.add(added.remove(0));
+        registry.putIfAbsent(new NokeDevice("NOKE3E", added.get(0)));
+        assertEquals(added, macsOf(registry.snapshot()));
+
+        registry.setCompact(false);
+        assertEquals(added, macsOf(registry.snapshot()));
+    }
+
+    private static List<String> macsOf(List<NokeDevice> devices) {
+        List<String> macs = new ArrayList<>();
+        for (NokeDevice noke : devices) {
+            macs.add(noke.getMac());
+        }
+        return macs;
+    }
+
+    @Test
+    public void snapshot_duringWrites_neverContainsDuplicates() throws InterruptedException {
+        final NokeDeviceRegistry registry = new NokeDeviceRegistry();
+        final AtomicInteger duplicates = new AtomicInteger();
+        race(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < DEVICES_PER_ACTOR * 4; i++) {
+                    registry.put(new NokeDevice("NOKE3E", mac(1, i % DEVICES_PER_ACTOR)));
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < DEVICES_PER_ACTOR; i++) {
+                    HashSet<String> macs = new HashSet<>();
+                    for (NokeDevice noke : registry.snapshot()) {
+                        if (!macs.add(noke.getMac())) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        });
+        assertEquals(0, duplicates.get());
+    }
+}
@@ -0,0 +1,106 @@
+package com.noke.nokemobilelibrary;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Registers a site worth of locks and reports the heap the container retains per registered lock for a
+ * LinkedHashMap keyed by MAC, like the baseline used, the default registry and the compact registry.  The devices
+ * are created before measuring and are the same objects for every container, so only the container's own tables,
+ * entries and keys are counted.  The heap deltas are only indicative, so nothing is asserted about them.  Run with:
+ * ./gradlew :nokemobilelibrary:testDebugUnitTest -Pnoke.benchmarks=true --tests '*NokeDeviceRegistryFootprintBenchmark'
+ */
+public class NokeDeviceRegistryFootprintBenchmark {
+
+    private static final int[] LOCK_COUNTS = {1000, 10000, 50000};
+
+    private interface Loader {
+        Object load(NokeDevice[] devices);
+    }
+
+    @Test
+    public void reportBytesPerRegisteredLock() {
+        Benchmarks.assumeEnabled();
+        Loader linkedHashMap = new Loader() {
+            @Override
+            public Object load(NokeDevice[] devices) {
+                LinkedHashMap<String, NokeDevice> map = new LinkedHashMap<>();
+                for (NokeDevice noke : devices) {
+                    map.put(noke.getMac(), noke);
+                }
+                return map;
+            }
+        };
+        Loader registry = new Loader() {
+            @Override
+            public Object load(NokeDevice[] devices) {
+                return fill(new NokeDeviceRegistry(), devices);
+            }
+        };
+        Loader compactRegistry = new Loader() {
+            @Override
+            public Object load(NokeDevice[] devices) {
+                NokeDeviceRegistry registry = new NokeDeviceRegistry();
+                registry.setCompact(true);
+                return fill(registry, devices);
+            }
+        };
+
+        //Warm up so class loading isn't counted
+        NokeDevice[] warmUp = createLocks(100);
+        linkedHashMap.load(warmUp);
+        registry.load(warmUp);
+        compactRegistry.load(warmUp);
+
+        for (int count : LOCK_COUNTS) {
+            NokeDevice[] devices = createLocks(count);
+            double map = bytesPerLock(linkedHashMap, devices);
+            double regular = bytesPerLock(registry, devices);
+            double compact = bytesPerLock(compactRegistry, devices);
+            System.out.println(String.format("%6d locks: LinkedHashMap %6.1f  registry %6.1f  compact registry %6.1f bytes/lock",
+                    count, map, regular, compact));
+        }
+    }
+
+    private static NokeDeviceRegistry fill(NokeDeviceRegistry registry, NokeDevice[] devices) {
+        for (NokeDevice noke : devices) {
+            registry.putIfAbsent(noke);
+        }
+        assertEquals(devices.length, registry.size());
+        return registry;
+    }
+
+    private static NokeDevice[] createLocks(int count) {
+        NokeDevice[] devices = new NokeDevice[count];
+        for (int i = 0; i < count; i++) {
+            devices[i] = new NokeDevice("NOKE3E_" + i, MacAddress.format(0xC0FFEE000000L + i));
+            //Pack the MAC up front so the compact registry isn't charged for it
+            devices[i].getMacValue();
+        }
+        return devices;
+    }
+
+    private static double bytesPerLock(Loader loader, NokeDevice[] devices) {
+        long before = usedHeap();
+        Object retained = loader.load(devices);
+        long after = usedHeap();
+        assertNotNull(retained);
+        return (double) (after - before) / devices.length;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
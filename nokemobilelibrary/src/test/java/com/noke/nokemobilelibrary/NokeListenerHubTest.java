@@ -0,0 +1,265 @@
+package com.noke.nokemobilelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for NokeListenerHub
+ */
+public class NokeListenerHubTest {
+
+    /**
+     * Records the callbacks it receives
+     */
+    private static class RecordingListener extends NokeServiceListenerAdapter {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void onNokeDiscovered(NokeDevice noke) {
+            calls.add("discovered " + noke.getName());
+        }
+
+        @Override
+        public void onNokeConnected(NokeDevice noke) {
+            calls.add("connected " + noke.getName());
+        }
+
+        @Override
+        public void onNokeUnlocked(NokeDevice noke) {
+            calls.add("unlocked " + noke.getName());
+        }
+
+        @Override
+        public void onError(NokeDevice noke, int error, String message) {
+            calls.add("error " + error);
+        }
+    }
+
+    /**
+     * Holds the runnables it's given until they're run
+     */
+    private static final class ManualExecutor implements Executor {
+        final List<Runnable> pending = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            pending.add(command);
+        }
+
+        void runAll() {
+            while (!pending.isEmpty()) {
+                pending.remove(0).run();
+            }
+        }
+    }
+
+    private final NokeDevice lockA = new NokeDevice("A", "AA:BB:CC:DD:EE:01");
+    private final NokeDevice lockB = new NokeDevice("B", "AA:BB:CC:DD:EE:02");
+    private final NokeDevice lockC = new NokeDevice("C", "AA:BB:CC:DD:EE:03");
+
+    @Test
+    public void direct_deliversInOrderToEveryListener() {
+        NokeListenerHub hub = new NokeListenerHub();
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        hub.add(first, NokeListenerHub.DIRECT, 8, NokeListenerHub.Overflow.DROP_OLDEST);
+        hub.add(second, NokeListenerHub.DIRECT, 8, NokeListenerHub.Overflow.DROP_OLDEST);
+
+        hub.onNokeDiscovered(lockA);
+        hub.onNokeConnected(lockA);
+        hub.onNokeUnlocked(lockA);
+
+        assertEquals(first.calls, second.calls);
+        assertEquals("[discovered A, connected A, unlocked A]", first.calls.toString());
+        assertEquals(3, hub.getStats().get(0).getDelivered());
+    }
+
+    @Test
+    public void remove_stopsDelivery() {
+        NokeListenerHub hub = new NokeListenerHub();
+        RecordingListener listener = new RecordingListener();
+        hub.add(listener, NokeListenerHub.DIRECT, 8, NokeListenerHub.Overflow.DROP_OLDEST);
+        assertTrue(hub.remove(listener));
+        assertFalse(hub.remove(listener));
+        hub.onNokeDiscovered(lockA);
+        assertTrue(listener.calls.isEmpty());
+        assertEquals(0, hub.size());
+    }
+
+    @Test
+    public void fullQueue_dropsNewestOrOldestState() {
+        NokeListenerHub hub = new NokeListenerHub();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener newest = new RecordingListener();
+        RecordingListener oldest = new RecordingListener();
+        hub.add(newest, executor, 2, NokeListenerHub.Overflow.DROP_NEWEST);
+        hub.add(oldest, executor, 2, NokeListenerHub.Overflow.DROP_OLDEST);
+
+        hub.onNokeDiscovered(lockA);
+        hub.onNokeDiscovered(lockB);
+        hub.onNokeDiscovered(lockC);
+        executor.runAll();
+
+        assertEquals("[discovered A, discovered B]", newest.calls.toString());
+        assertEquals("[discovered B, discovered C]", oldest.calls.toString());
+        assertEquals(1, hub.getStats().get(0).getDropped());
+        assertEquals(1, hub.getStats().get(1).getDropped());
+    }
+
+    @Test
+    public void fullQueue_neverDropsOneShotCallbacks() {
+        NokeListenerHub hub = new NokeListenerHub();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        hub.add(listener, executor, 2, NokeListenerHub.Overflow.DROP_NEWEST);
+
+        hub.onNokeDiscovered(lockA);
+        hub.onError(lockA, 1, "");
+        hub.onNokeUnlocked(lockA);
+        hub.onError(lockA, 2, "");
+        hub.onNokeConnected(lockB);
+        executor.runAll();
+
+        //The unlock takes the place of the queued discovery, then the queue grows for the second error
+        assertEquals("[error 1, unlocked A, error 2, connected B]", listener.calls.toString());
+        assertEquals(1, hub.getStats().get(0).getDropped());
+    }
+
+    @Test
+    public void grow_neverDrops() {
+        NokeListenerHub hub = new NokeListenerHub();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        hub.add(listener, executor, 1, NokeListenerHub.Overflow.GROW);
+
+        hub.onNokeDiscovered(lockA);
+        hub.onNokeDiscovered(lockA);
+        hub.onNokeConnected(lockA);
+        hub.onNokeUnlocked(lockA);
+        assertEquals(4, hub.getStats().get(0).getQueued());
+        executor.runAll();
+
+        assertEquals("[discovered A, discovered A, connected A, unlocked A]", listener.calls.toString());
+        assertEquals(0, hub.getStats().get(0).getDropped());
+    }
+
+    @Test
+    public void listenerError_doesNotStopDelivery() {
+        NokeListenerHub hub = new NokeListenerHub();
+        ManualExecutor executor = new ManualExecutor();
+        final List<String> unlocks = new ArrayList<>();
+        hub.add(new NokeServiceListenerAdapter() {
+            @Override
+            public void onNokeConnected(NokeDevice noke) {
+                throw new AssertionError("listener bug");
+            }
+
+            @Override
+            public void onNokeUnlocked(NokeDevice noke) {
+                unlocks.add("unlocked " + noke.getName());
+            }
+        }, executor, 8, NokeListenerHub.Overflow.COALESCE);
+
+        hub.onNokeConnected(lockA);
+        hub.onNokeUnlocked(lockA);
+        try {
+            executor.runAll();
+            fail("the Error should reach the executor");
+        } catch (AssertionError e) {
+            assertEquals("listener bug", e.getMessage());
+        }
+        executor.runAll();
+        hub.onNokeUnlocked(lockB);
+        executor.runAll();
+
+        assertEquals("[unlocked A, unlocked B]", unlocks.toString());
+        assertEquals(1, hub.getStats().get(0).getFailed());
+        assertEquals(0, hub.getStats().get(0).getQueued());
+    }
+
+    @Test
+    public void coalesce_keepsLatestStatePerDeviceAndNeverReplacesUnlocks() {
+        NokeListenerHub hub = new NokeListenerHub();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        hub.add(listener, executor, 8, NokeListenerHub.Overflow.COALESCE);
+
+        hub.onNokeDiscovered(lockA);
+        hub.onNokeDiscovered(lockB);
+        hub.onNokeUnlocked(lockA);
+        hub.onNokeUnlocked(lockA);
+        hub.onNokeDiscovered(lockA);
+        executor.runAll();
+
+        assertEquals("[discovered B, unlocked A, unlocked A, discovered A]", listener.calls.toString());
+        NokeListenerHub.Stats stats = hub.getStats().get(0);
+        assertEquals(1, stats.getCoalesced());
+        assertEquals(4, stats.getDelivered());
+        assertEquals(0, stats.getQueued());
+    }
+
+    @Test
+    public void slowListener_doesNotBlockTheCallerOrOtherListeners() throws Exception {
+        NokeListenerHub hub = new NokeListenerHub();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(4);
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        try {
+            hub.add(new NokeServiceListenerAdapter() {
+                @Override
+                public void onNokeConnected(NokeDevice noke) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    delivered.countDown();
+                }
+            }, background, 4, NokeListenerHub.Overflow.DROP_NEWEST);
+            RecordingListener fast = new RecordingListener();
+            hub.add(fast, NokeListenerHub.DIRECT, 4, NokeListenerHub.Overflow.DROP_NEWEST);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                hub.onNokeConnected(lockA);
+            }
+            assertTrue("raising events waited for the slow listener",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+            assertEquals(100, fast.calls.size());
+
+            release.countDown();
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+            background.shutdown();
+            assertTrue(background.awaitTermination(5, TimeUnit.SECONDS));
+            NokeListenerHub.Stats stats = hub.getStats().get(0);
+            //One callback is running when the rest arrive, so four more fit in the queue
+            assertTrue(stats.getDropped() >= 95);
+            assertEquals(100, stats.getDelivered() + stats.getDropped() + stats.getQueued());
+        } finally {
+            background.shutdownNow();
+        }
+    }
+
+    @Test
+    public void rejectedExecution_countsDroppedCallbacks() {
+        NokeListenerHub hub = new NokeListenerHub();
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        background.shutdown();
+        hub.add(new RecordingListener(), background, 8, NokeListenerHub.Overflow.DROP_OLDEST);
+
+        hub.onNokeConnected(lockA);
+        hub.onNokeConnected(lockB);
+
+        assertEquals(2, hub.getStats().get(0).getDropped());
+        assertEquals(0, hub.getStats().get(0).getQueued());
+    }
+}
@@ -0,0 +1,77 @@
+package com.noke.nokemobilelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for NokeUnlockTrace
+ */
+public class NokeUnlockTraceTest {
+
+    private static NokeUnlockTrace trace(long start, long connect, long discover, long unlock) {
+        NokeUnlockTrace.Builder builder = new NokeUnlockTrace.Builder("AA:BB:CC:DD:EE:FF");
+        builder.mark(NokeUnlockTrace.Phase.FIRST_ADVERTISEMENT, start);
+        builder.mark(NokeUnlockTrace.Phase.CONNECT_REQUESTED, start + 100);
+        builder.mark(NokeUnlockTrace.Phase.GATT_CONNECTED, start + 100 + connect);
+        builder.mark(NokeUnlockTrace.Phase.SERVICES_DISCOVERED, start + 100 + connect + discover);
+        builder.mark(NokeUnlockTrace.Phase.COMMAND_WRITTEN, start + 100 + connect + discover + 10);
+        builder.mark(NokeUnlockTrace.Phase.COMMAND_SUCCEEDED, start + 100 + connect + discover + 10 + unlock);
+        builder.mark(NokeUnlockTrace.Phase.UNLOCKED, start + 100 + connect + discover + 10 + unlock);
+        return builder.build();
+    }
+
+    @Test
+    public void spans_measureFromPreviousMark() {
+        NokeUnlockTrace trace = trace(1000, 400, 300, 200);
+        assertEquals(7, trace.getMarkCount());
+        assertEquals(-1, trace.getSpan(NokeUnlockTrace.Phase.FIRST_ADVERTISEMENT));
+        assertEquals(100, trace.getSpan(NokeUnlockTrace.Phase.CONNECT_REQUESTED));
+        assertEquals(400, trace.getSpan(NokeUnlockTrace.Phase.GATT_CONNECTED));
+        assertEquals(300, trace.getSpan(NokeUnlockTrace.Phase.SERVICES_DISCOVERED));
+        assertEquals(-1, trace.getSpan(NokeUnlockTrace.Phase.SESSION_READ));
+        assertEquals(400 + 300 + 10 + 200, trace.getTimeToUnlock());
+    }
+
+    @Test
+    public void builder_capsMarks() {
+        NokeUnlockTrace.Builder builder = new NokeUnlockTrace.Builder("AA:BB:CC:DD:EE:FF");
+        for (int i = 0; i < NokeUnlockTrace.Builder.MAX_MARKS * 2; i++) {
+            builder.mark(NokeUnlockTrace.Phase.COMMAND_WRITTEN, i);
+        }
+        assertEquals(NokeUnlockTrace.Builder.MAX_MARKS, builder.build().getMarkCount());
+    }
+
+    @Test
+    public void summary_nearestRankPercentiles() {
+        List<NokeUnlockTrace> traces = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            traces.add(trace(i * 10000, i * 10, 50, 100));
+        }
+        NokeUnlockTrace.Summary summary = NokeUnlockTrace.summarize(traces);
+        assertEquals(100, summary.getCount());
+        assertEquals(500, summary.getSpanPercentile(NokeUnlockTrace.Phase.GATT_CONNECTED, 50));
+        assertEquals(900, summary.getSpanPercentile(NokeUnlockTrace.Phase.GATT_CONNECTED, 90));
+        assertEquals(1000, summary.getSpanPercentile(NokeUnlockTrace.Phase.GATT_CONNECTED, 100));
+        assertEquals(50, summary.getSpanPercentile(NokeUnlockTrace.Phase.SERVICES_DISCOVERED, 99));
+        assertEquals(-1, summary.getSpanPercentile(NokeUnlockTrace.Phase.SESSION_READ, 50));
+        assertEquals(500 + 50 + 10 + 100, summary.getTimeToUnlockPercentile(50));
+    }
+
+    @Test
+    public void buffer_keepsMostRecentOldestFirst() {
+        NokeUnlockTrace.Buffer buffer = new NokeUnlockTrace.Buffer(3);
+        List<NokeUnlockTrace> added = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            NokeUnlockTrace trace = trace(i, 1, 1, 1);
+            added.add(trace);
+            buffer.add(trace);
+        }
+        assertEquals(added.subList(2, 5), buffer.toList());
+        buffer.clear();
+        assertTrue(buffer.toList().isEmpty());
+    }
+}
@@ -0,0 +1,81 @@
+package com.noke.nokemobilelibrary;
+
+/**
+ * Synthetic scan records written by hand to follow the layout of Noke devices and neighbouring beacons, not captures
+ * from real hardware. Android pads scan records to 62 bytes.
+ */
+final class ScanRecordFixtures {
+
+    /**
+     * HD lock (2I) running firmware 2.13, broadcasting a locked state
+     */
+    static final byte[] HD_LOCK_LOCKED = NokeDefines.hexToBytes(
+            "02010614094E4F4B4532495F45314632413342344335443608FF590060020D11220000000000000000000000000000000000000000000000000000000000");
+    /**
+     * HD lock (2I) running firmware 2.13, broadcasting an unlocked state. Manufacturer data comes before the name
+     */
+    static final byte[] HD_LOCK_UNLOCKED = NokeDefines.hexToBytes(
+            "02010608FF590000020D112214094E4F4B4532495F4531463241334234433544360000000000000000000000000000000000000000000000000000000000");
+    /**
+     * 2nd gen padlock (3P) running firmware 2.10
+     */
+    static final byte[] PADLOCK = NokeDefines.hexToBytes(
+            "02010614094E4F4B4533505F43384636443045314132423308FF590001020A00000000000000000000000000000000000000000000000000000000000000");
+    /**
+     * 1st gen padlock (2P) that doesn't broadcast manufacturer data
+     */
+    static final byte[] NO_MANUFACTURER_DATA = NokeDefines.hexToBytes(
+            "02010614094E4F4B4532505F4338463644304531413242330000000000000000000000000000000000000000000000000000000000000000000000000000");
+    /**
+     * iBeacon from a neighbouring unit
+     */
+    static final byte[] BEACON = NokeDefines.hexToBytes(
+            "0201061AFF4C000215000102030405060708090A0B0C0D0E0F00010002C50000000000000000000000000000000000000000000000000000000000000000");
+    /**
+     * U-Lock (2U) record that hasn't been padded, with the manufacturer data as the last AD structure
+     */
+    static final byte[] UNPADDED = NokeDefines.hexToBytes(
+            "0201060C094E4F4B4532555F4338463606FF5900200301");
+
+    /**
+     * Padded records in the order a scan near a few locks and a beacon might report them
+     */
+    static final byte[][] RECORDED = new byte[][]{
+            HD_LOCK_LOCKED, BEACON, PADLOCK, HD_LOCK_UNLOCKED, BEACON, NO_MANUFACTURER_DATA, BEACON, HD_LOCK_LOCKED
+    };
+
+    private ScanRecordFixtures() {
+    }
+
+    /**
+     * Manufacturer data parser used by NokeDeviceManagerService before AdvertisementParser was added.  Kept for
+     * comparing results and performance with the new parser.
+     *
+     * @param scanRecord broadcast data from the lock
+     * @return formatted manufacturer data
+     */
+    static byte[] legacyManufacturerData(byte[] scanRecord) {
+        int i = 0;
+        do {
+            try {
+                int length = scanRecord[i];
+                i++;
+                byte type = scanRecord[i];
+                if (type == (byte) 0xFF) {
+                    i++;
+                    byte[] manufacturerdata = new byte[length];
+                    for (int j = 0; j < length; j++) {
+                        manufacturerdata[j] = scanRecord[i];
+                        i++;
+                    }
+                    return manufacturerdata;
+                } else {
+                    i = i + length;
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                return new byte[]{0, 0, 0, 0, 0};
+            }
+        } while (i < scanRecord.length);
+        return new byte[]{0, 0, 0, 0, 0};
+    }
+}
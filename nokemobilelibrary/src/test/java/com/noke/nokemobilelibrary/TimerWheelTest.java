@@ -0,0 +1,147 @@
+package com.noke.nokemobilelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TimerWheel
+ */
+public class TimerWheelTest {
+
+    /**
+     * Records the time it fired at
+     */
+    private static final class RecordingTimeout extends TimerWheel.Timeout {
+        final List<Long> fired = new ArrayList<>();
+
+        @Override
+        void onTimeout(long now) {
+            fired.add(now);
+        }
+    }
+
+    /**
+     * Advances the wheel and fires the timeouts that expired
+     */
+    private static int advance(TimerWheel wheel, long now) {
+        wheel.advance(now);
+        int count = 0;
+        TimerWheel.Timeout timeout;
+        while ((timeout = wheel.poll()) != null) {
+            timeout.onTimeout(now);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Checks that a timeout fires on its deadline and not the tick before
+     */
+    private static void assertFiresAt(long deadline) {
+        TimerWheel wheel = new TimerWheel(1, 0);
+        RecordingTimeout timeout = new RecordingTimeout();
+        wheel.schedule(timeout, deadline);
+
+        assertEquals("fired early for deadline " + deadline, 0, advance(wheel, deadline - 1));
+        assertTrue(timeout.isScheduled());
+        assertEquals("didn't fire for deadline " + deadline, 1, advance(wheel, deadline));
+        assertFalse(timeout.isScheduled());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void deadlinesOnEveryLevel_fireOnTime() {
+        //Level 0 covers 64 ticks, level 1 4096, level 2 262144 and level 3 16777216
+        long[] deadlines = {1, 63, 64, 65, 4095, 4096, 4097, 262143, 262144, 262145, 16777215};
+        for (long deadline : deadlines) {
+            assertFiresAt(deadline);
+        }
+    }
+
+    @Test
+    public void deadlinesPastTheLastLevel_areClampedAndPlacedAgain() {
+        assertFiresAt(16777216);
+        assertFiresAt(16777216 + 5000);
+        assertFiresAt(3 * 16777216L + 7);
+    }
+
+    @Test
+    public void deadlinesAfterTheWheelHasMoved_fireOnTime() {
+        TimerWheel wheel = new TimerWheel(1, 0);
+        advance(wheel, 4000);
+        RecordingTimeout first = new RecordingTimeout();
+        RecordingTimeout second = new RecordingTimeout();
+        wheel.schedule(first, 4200);
+        wheel.schedule(second, 300000);
+
+        assertEquals(0, advance(wheel, 4199));
+        assertEquals(1, advance(wheel, 4200));
+        assertEquals(0, advance(wheel, 299999));
+        assertEquals(1, advance(wheel, 300000));
+        assertEquals("[4200]", first.fired.toString());
+        assertEquals("[300000]", second.fired.toString());
+    }
+
+    @Test
+    public void deadlinesRoundUpToTheNextTick() {
+        TimerWheel wheel = new TimerWheel(10, 0);
+        RecordingTimeout timeout = new RecordingTimeout();
+        wheel.schedule(timeout, 15);
+
+        assertEquals(0, advance(wheel, 19));
+        assertEquals(1, advance(wheel, 20));
+    }
+
+    @Test
+    public void pastDeadlines_fireOnTheNextTick() {
+        TimerWheel wheel = new TimerWheel(1, 100);
+        RecordingTimeout timeout = new RecordingTimeout();
+        wheel.schedule(timeout, 50);
+
+        assertEquals(0, advance(wheel, 100));
+        assertEquals(1, advance(wheel, 101));
+    }
+
+    @Test
+    public void cancelAndReschedule() {
+        TimerWheel wheel = new TimerWheel(1, 0);
+        RecordingTimeout timeout = new RecordingTimeout();
+        wheel.schedule(timeout, 100);
+        assertTrue(wheel.cancel(timeout));
+        assertFalse(wheel.cancel(timeout));
+        assertEquals(0, wheel.size());
+        assertEquals(0, advance(wheel, 200));
+
+        wheel.schedule(timeout, 300);
+        wheel.schedule(timeout, 250);
+        assertEquals(1, wheel.size());
+        assertEquals(1, advance(wheel, 300));
+        assertEquals("[300]", timeout.fired.toString());
+
+        wheel.schedule(timeout, 400);
+        assertEquals(1, advance(wheel, 400));
+        assertEquals("[300, 400]", timeout.fired.toString());
+    }
+
+    @Test
+    public void nextWakeup() {
+        TimerWheel wheel = new TimerWheel(1, 0);
+        assertEquals(-1, wheel.nextWakeup());
+
+        RecordingTimeout near = new RecordingTimeout();
+        wheel.schedule(near, 10);
+        assertEquals(10, wheel.nextWakeup());
+
+        wheel.cancel(near);
+        wheel.schedule(near, 1000);
+        //Nothing on level 0, so the wheel wakes up when level 1 moves timeouts down
+        assertEquals(64, wheel.nextWakeup());
+
+        wheel.advance(1000);
+        assertEquals(1000, wheel.nextWakeup());
+    }
+}